@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.assignments.align;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -9,6 +10,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import edu.berkeley.nlp.assignments.align.student.AlignerOptions;
+import edu.berkeley.nlp.assignments.align.student.aligner.AlignmentModelIO;
+import edu.berkeley.nlp.assignments.align.student.aligner.Symmetrizer;
 import edu.berkeley.nlp.assignments.align.student.HeuristicAlignerFactory;
 import edu.berkeley.nlp.assignments.align.student.HmmAlignerFactory;
 import edu.berkeley.nlp.assignments.align.student.Model1AlignerFactory;
@@ -24,7 +28,7 @@ import edu.berkeley.nlp.langmodel.impl.NgramMapOpts;
 import edu.berkeley.nlp.mt.Alignment;
 import edu.berkeley.nlp.mt.BaselineWordAligner;
 import edu.berkeley.nlp.mt.BleuScore;
-import edu.berkeley.nlp.mt.PhraseExtractor;
+import edu.berkeley.nlp.mt.PhraseCountingPipeline;
 import edu.berkeley.nlp.mt.SentencePair;
 import edu.berkeley.nlp.mt.Weights;
 import edu.berkeley.nlp.mt.WordAligner;
@@ -36,8 +40,11 @@ import edu.berkeley.nlp.mt.decoder.DistortionModel;
 import edu.berkeley.nlp.mt.decoder.LinearDistortionModel;
 import edu.berkeley.nlp.mt.decoder.Logger;
 import edu.berkeley.nlp.mt.decoder.MonotonicGreedyDecoder.MonotonicGreedyDecoderFactory;
-import edu.berkeley.nlp.mt.decoder.internal.BeamDecoder;
+import edu.berkeley.nlp.mt.decoder.ParallelDecoder;
 import edu.berkeley.nlp.mt.decoder.StubDistortionModel;
+import edu.berkeley.nlp.mt.decoder.internal.BeamDecoder;
+import edu.berkeley.nlp.mt.decoder.internal.BeamDecoder.BeamDecoderFactory;
+import edu.berkeley.nlp.mt.decoder.internal.ReorderingBeamDecoder.ReorderingBeamDecoderFactory;
 import edu.berkeley.nlp.mt.phrasetable.PhraseTable;
 import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
 import edu.berkeley.nlp.util.CollectionUtils;
@@ -56,6 +63,9 @@ import edu.berkeley.nlp.util.TIntOpenHashMap.Entry;
  */
 public class AlignmentTester
 {
+	private static final int MAX_PHRASE_SIZE = 5;
+
+	private static final int MAX_NUM_TRANSLATIONS = 30;
 
 	enum AlignerType
 	{
@@ -109,6 +119,8 @@ public class AlignmentTester
 		boolean sanityCheck = false;
 		boolean printTranslations = true;
 		boolean randomLm = false;
+		boolean reorder = false;
+		int popLimit = 0;
 
 		int maxTrainingSentences = Integer.MAX_VALUE;
 		if (argMap.containsKey("-maxTrain")) {
@@ -134,11 +146,45 @@ public class AlignmentTester
 			phraseTableOut = argMap.get("-phraseTableOut");
 		}
 
+		// a compiled table written by -binaryPhraseTableOut, skips aligning and phrase extraction
+		String binaryPhraseTableIn = null;
+		if (argMap.containsKey("-binaryPhraseTableIn")) {
+			binaryPhraseTableIn = argMap.get("-binaryPhraseTableIn");
+		}
+
+		String binaryPhraseTableOut = null;
+		if (argMap.containsKey("-binaryPhraseTableOut")) {
+			binaryPhraseTableOut = argMap.get("-binaryPhraseTableOut");
+		}
+
 		boolean printAlignments = false;
 		if (argMap.containsKey("-printAlignments")) {
 			printAlignments = true;
 		}
 
+		if (argMap.containsKey("-threads")) {
+			AlignerOptions.numThreads = Integer.parseInt(argMap.get("-threads"));
+		}
+		if (argMap.containsKey("-emBlockSize")) {
+			AlignerOptions.emBlockSize = Integer.parseInt(argMap.get("-emBlockSize"));
+		}
+
+		if (argMap.containsKey("-corpusCache")) {
+			AlignerOptions.corpusCacheFile = argMap.get("-corpusCache");
+		}
+		if (argMap.containsKey("-saveModel")) {
+			AlignerOptions.saveModelFile = argMap.get("-saveModel");
+		}
+		if (argMap.containsKey("-loadModel")) {
+			AlignerOptions.loadModelFile = argMap.get("-loadModel");
+		}
+		if (argMap.containsKey("-symmetrization")) {
+			AlignerOptions.symmetrization = Symmetrizer.Heuristic.valueOf(argMap.get("-symmetrization").toUpperCase());
+		}
+		if (argMap.containsKey("-scaledFB")) {
+			AlignerOptions.scaledForwardBackward = true;
+		}
+
 		if (argMap.containsKey("-sanityCheck")) {
 			sanityCheck = true;
 		}
@@ -150,6 +196,15 @@ public class AlignmentTester
 		}
 
 		if (sanityCheck) randomLm = true;
+
+		// Decode with ReorderingBeamDecoder, within the distortion limit, instead of the monotone BeamDecoder
+		if (argMap.containsKey("-reorder")) {
+			reorder = true;
+		}
+		// Fill the beams of BeamDecoder with cube pruning, popping at most the given number of pairs (or the default)
+		if (argMap.containsKey("-cubePruning")) {
+			popLimit = argMap.get("-cubePruning") == null ? BeamDecoder.DEFAULT_POP_LIMIT : Integer.parseInt(argMap.get("-cubePruning"));
+		}
 		String prefix = sanityCheck ? "sanity_" : "";
 
 		// Update defaults using command line specifications
@@ -168,7 +223,9 @@ public class AlignmentTester
 			System.out.println("No data set specified.  Use -data [miniTest, validate, test].");
 		}
 
-		Iterable<SentencePair> trainingSentencePairs = SentencePair.readSentencePairs(new File(basePath, prefix + "training").getPath(), maxTrainingSentences);
+		// with a corpus cache the aligners do not need the training pairs in memory, stream them from disk instead
+		Iterable<SentencePair> trainingSentencePairs = SentencePair.readSentencePairs(new File(basePath, prefix + "training").getPath(), maxTrainingSentences,
+			AlignerOptions.corpusCacheFile == null);
 		List<SentencePair> testSentencePairs = new ArrayList<SentencePair>();
 		Map<Integer, Alignment> testAlignments = new HashMap<Integer, Alignment>();
 		if (sanityCheck) {
@@ -202,17 +259,26 @@ public class AlignmentTester
 		File weightsFile = new File(basePath, "weights.txt");
 
 		final Counter<String> weights = Weights.readWeightsFile(weightsFile);
-		PhraseTable phraseTable = alignAndBuildPhraseTable(justAlign, printAlignments, trainingSentencePairs, testSentencePairs, testAlignments,
-			concatSentencePairs, wordAlignerType, weights);
-		if (phraseTableOut != null) {
-			phraseTable.writeToFile(phraseTableOut);
+		PhraseTable phraseTable;
+		if (binaryPhraseTableIn != null) {
+			phraseTable = new PhraseTable(MAX_PHRASE_SIZE, MAX_NUM_TRANSLATIONS);
+			phraseTable.readFromBinaryFile(binaryPhraseTableIn);
+		} else {
+			phraseTable = alignAndBuildPhraseTable(justAlign, printAlignments, trainingSentencePairs, testSentencePairs, testAlignments,
+				concatSentencePairs, wordAlignerType, weights);
+			if (phraseTableOut != null) {
+				phraseTable.writeToFile(phraseTableOut);
+			}
+			if (binaryPhraseTableOut != null) {
+				phraseTable.writeToBinaryFile(binaryPhraseTableOut);
+			}
 		}
 		NgramLanguageModel languageModel = getActualLanguageModel(lmFile, randomLm);
 
-		Decoder decoder = new BeamDecoder(languageModel, phraseTable, EnglishWordIndexer.getIndexer());
-		//		final DistortionModel distortionModel = decoderType.getDistortionModel(weights);
-		evaluateDecoder(decoder, phraseTable, testFrench, testEnglish, weightsFile, getActualLanguageModel(lmFile, randomLm), maxNumTest, printTranslations,
-			getActualDistortionModel(weights));
+		final DistortionModel distortionModel = getActualDistortionModel(weights);
+		final DecoderFactory decoderFactory = reorder ? new ReorderingBeamDecoderFactory() : new BeamDecoderFactory(popLimit);
+		ParallelDecoder decoder = new ParallelDecoder(decoderFactory, phraseTable, languageModel, distortionModel, AlignerOptions.numThreads);
+		evaluateDecoder(decoder, phraseTable, testFrench, testEnglish, weightsFile, languageModel, maxNumTest, printTranslations, distortionModel);
 
 	}
 
@@ -232,15 +298,55 @@ public class AlignmentTester
 		final Counter<String> weights) {
 		// Build model
 		Logger.startTrack("Building aligner");
-		WordAligner wordAligner = wordAlignerType.getWordAlignerFactory().newAligner(concatSentencePairs);
+		WordAligner wordAligner = buildAligner(wordAlignerType, concatSentencePairs);
 		Logger.endTrack();
 		testAlignments(wordAligner, testSentencePairs, testAlignments, printAlignments);
 
 		if (justAlign) System.exit(0);
 		PhraseTable phraseTable = getPhraseTableFromAlignedCorpus(trainingSentencePairs, wordAligner, weights);
+		closeAligner(wordAligner);
 		return phraseTable;
 	}
 
+	/**
+	 * Releases what the aligner holds outside the heap, for the aligners which are Closeable.
+	 */
+	private static void closeAligner(WordAligner wordAligner) {
+		if (!(wordAligner instanceof Closeable)) return;
+		try {
+			((Closeable) wordAligner).close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Trains a new aligner, or loads the one in AlignerOptions.loadModelFile, and saves it to
+	 * AlignerOptions.saveModelFile if set.
+	 */
+	private static WordAligner buildAligner(AlignerType wordAlignerType, Iterable<SentencePair> concatSentencePairs) {
+		try {
+			WordAligner wordAligner;
+			if (AlignerOptions.loadModelFile != null) {
+				Logger.logss("Loading aligner from " + AlignerOptions.loadModelFile);
+				wordAligner = AlignmentModelIO.load(new File(AlignerOptions.loadModelFile));
+			} else {
+				wordAligner = wordAlignerType.getWordAlignerFactory().newAligner(concatSentencePairs);
+			}
+			if (AlignerOptions.saveModelFile != null) {
+				if (AlignmentModelIO.canSave(wordAligner)) {
+					Logger.logss("Saving aligner to " + AlignerOptions.saveModelFile);
+					AlignmentModelIO.save(wordAligner, new File(AlignerOptions.saveModelFile));
+				} else {
+					Logger.logss("Cannot save a " + wordAligner.getClass().getSimpleName() + ", -saveModel ignored");
+				}
+			}
+			return wordAligner;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public static class IntArrayWrapper
 	{
 		/**
@@ -334,62 +440,19 @@ public class AlignmentTester
 
 	private static PhraseTable getPhraseTableFromAlignedCorpus(Iterable<SentencePair> trainingSentencePairs, WordAligner wordAligner, Counter<String> weights) {
 		Logger.startTrack("Extracting phrases");
-		final int maxPhraseSize = 5;
-		final int maxNumTranslations = 30;
+		final int maxPhraseSize = MAX_PHRASE_SIZE;
+		final int maxNumTranslations = MAX_NUM_TRANSLATIONS;
 		final int maxNumUnaligned = 1;
 		StringIndexer foreignWordIndexer = new StringIndexer();
 		StringIndexer englishWordIndexer = EnglishWordIndexer.getIndexer();
-		HashMap<IntPhrasePair, Integer> counter = new HashMap<IntPhrasePair, Integer>(1000, 0.5f);
-		int sent = 0;
-		for (SentencePair sentencePair : trainingSentencePairs) {
-			if (sent % 1000 == 0) System.out.println("Sentence " + sent);
-			sent++;
-			final PhraseExtractor phraseExtractor = new PhraseExtractor();
-			Alignment al = wordAligner.alignSentencePair(sentencePair);
-			List<IntPhrasePair> phrases = phraseExtractor.extract(al, lowercase(sentencePair), maxPhraseSize, englishWordIndexer, foreignWordIndexer,
-				maxNumUnaligned);
-			for (IntPhrasePair pair : phrases) {
-				increment(counter, pair, 1);
-			}
-
-		}
-		Logger.endTrack();
-		HashMap<IntArrayWrapper, Integer> eCounter = new HashMap<IntArrayWrapper, Integer>(1000, 0.5f);
-		HashMap<IntArrayWrapper, Integer> fCounter = new HashMap<IntArrayWrapper, Integer>(1000, 0.5f);
-
-		Logger.startTrack("Counting extracted phrases");
-		int phraseNum = 0;
-		for (java.util.Map.Entry<IntPhrasePair, Integer> pair : counter.entrySet()) {
-			if (phraseNum % 100000 == 0) System.out.println("Phrase " + phraseNum + " of " + counter.size());
-			phraseNum++;
-			int count = pair.getValue();
-			IntPhrasePair key = pair.getKey();
-
-			increment(eCounter, new IntArrayWrapper(key.english), count);
-			increment(fCounter, new IntArrayWrapper(key.foreign), count);
-		}
+		PhraseCountingPipeline pipeline = new PhraseCountingPipeline(AlignerOptions.numThreads, maxPhraseSize, maxNumUnaligned);
+		pipeline.run(trainingSentencePairs, wordAligner, englishWordIndexer, foreignWordIndexer);
 		Logger.endTrack();
 		PhraseTable phraseTable = new PhraseTable(maxPhraseSize, maxNumTranslations);
-		phraseTable.readFromCounts(counter, eCounter, fCounter, weights, foreignWordIndexer);
+		phraseTable.readFromCounts(pipeline.getCounts(), weights, foreignWordIndexer);
 		return phraseTable;
 	}
 
-	/**
-	 * @param counter
-	 * @param pair
-	 */
-	private static <T> void increment(HashMap<T, Integer> counter, T pair, int count) {
-		final Integer integer = counter.get(pair);
-		int old = integer == null ? 0 : integer;
-		counter.put(pair, old + count);
-	}
-
-	private static SentencePair lowercase(SentencePair sentencePair) {
-		SentencePair ret = new SentencePair(sentencePair.getSentenceID(), sentencePair.getSourceFile(), lowercase(sentencePair.getEnglishWords()),
-			lowercase(sentencePair.getFrenchWords()));
-		return ret;
-	}
-
 	private static List<SentencePair> toList(Iterable<SentencePair> sentencePairs) {
 
 		List<SentencePair> list = new ArrayList<SentencePair>();
@@ -409,7 +472,7 @@ public class AlignmentTester
 	 * @param weightsFile
 	 * @param languageModel
 	 */
-	private static void evaluateDecoder(Decoder decoder, PhraseTable phraseTable, File testFrench, File testEnglish, File weightsFile,
+	private static void evaluateDecoder(ParallelDecoder decoder, PhraseTable phraseTable, File testFrench, File testEnglish, File weightsFile,
 		NgramLanguageModel languageModel, int maxNumTest, boolean printTranslations, DistortionModel distortionModel) {
 
 		MemoryUsageUtils.printMemoryUsage();
@@ -482,25 +545,27 @@ public class AlignmentTester
 	 * @param scores
 	 * @param languageModel
 	 */
-	private static void doDecoding(Decoder decoder, Iterable<List<String>> frenchSentences, Iterable<List<String>> englishSentences, List<BleuScore> scores,
-		int maxNumTest, boolean printTranslations, NgramLanguageModel languageModel, double[] modelScore, DistortionModel dm) {
+	private static void doDecoding(ParallelDecoder decoder, Iterable<List<String>> frenchSentences, Iterable<List<String>> englishSentences,
+		List<BleuScore> scores, int maxNumTest, boolean printTranslations, NgramLanguageModel languageModel, double[] modelScore, DistortionModel dm) {
 		long startTime = System.nanoTime();
-		int sent = 0;
 		System.out.println("Decoding " + (maxNumTest == Integer.MAX_VALUE ? "all" : ("" + maxNumTest)) + " test sentences");
+		List<List<String>> inputs = new ArrayList<List<String>>();
+		List<List<String>> references = new ArrayList<List<String>>();
 		for (Pair<List<String>, List<String>> input : CollectionUtils.zip(Pair.makePair(frenchSentences, englishSentences))) {
-			if (sent >= maxNumTest) break;
-			sent++;
-
-			if (sent % 100 == 0) Logger.logs("On sentence " + sent);
-
-			final List<ScoredPhrasePairForSentence> hyp = decoder.decode(input.getFirst());
+			if (inputs.size() >= maxNumTest) break;
+			inputs.add(input.getFirst());
+			references.add(input.getSecond());
+		}
+		List<List<ScoredPhrasePairForSentence>> hyps = decoder.decodeAll(inputs);
+		for (int sent = 0; sent < inputs.size(); ++sent) {
+			final List<ScoredPhrasePairForSentence> hyp = hyps.get(sent);
 			double score = StaticMethods.scoreHypothesis(hyp, languageModel, dm);
 			List<String> hypothesisEnglish = Decoder.StaticMethods.extractEnglish(hyp);
-			List<String> reference = input.getSecond();
+			List<String> reference = references.get(sent);
 			if (printTranslations) {
 
 				System.out.println("Model score:\t" + score);
-				System.out.println("Input:\t\t" + StrUtils.join(input.getFirst()));
+				System.out.println("Input:\t\t" + StrUtils.join(inputs.get(sent)));
 				System.out.println("Hypothesis\t" + StrUtils.join(hypothesisEnglish));
 				System.out.println("Reference:\t" + StrUtils.join(reference));
 				System.out.println();
@@ -519,8 +584,9 @@ public class AlignmentTester
 		int proposedPossibleCount = 0;
 		int sureCount = 0;
 		int proposedCount = 0;
+		Iterator<Alignment> proposedAlignments = wordAligner.alignAll(testSentencePairs, AlignerOptions.numThreads).iterator();
 		for (SentencePair sentencePair : testSentencePairs) {
-			Alignment proposedAlignment = wordAligner.alignSentencePair(sentencePair);
+			Alignment proposedAlignment = proposedAlignments.next();
 			Alignment referenceAlignment = testAlignments.get(sentencePair.getSentenceID());
 			if (referenceAlignment == null) throw new RuntimeException("No reference alignment found for sentenceID " + sentencePair.getSentenceID());
 			if (verbose) System.out.println("Alignment:\n" + Alignment.render(referenceAlignment, proposedAlignment, sentencePair));
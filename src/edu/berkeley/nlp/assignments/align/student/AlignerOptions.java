@@ -0,0 +1,41 @@
+package edu.berkeley.nlp.assignments.align.student;
+
+import edu.berkeley.nlp.assignments.align.student.aligner.Symmetrizer;
+
+/**
+ * Global knobs for the student aligners, set from the command line by AlignmentTester
+ * (the WordAlignerFactory interface has no room for options).
+ */
+public class AlignerOptions
+{
+	/** worker threads for EM training, WordAligner.alignAll, phrase extraction and decoding, -threads */
+	public static int numThreads = 1;
+
+	/**
+	 * sentences per E-step block, -emBlockSize. Results depend on this (summation order) but not on numThreads.
+	 */
+	public static int emBlockSize = 1000;
+
+	/**
+	 * binary indexed corpus file, -corpusCache. Written by the first run, memory-mapped by later ones.
+	 */
+	public static String corpusCacheFile = null;
+
+	/** model file written after training, -saveModel. See AlignmentModelIO */
+	public static String saveModelFile = null;
+
+	/** model file to align with instead of training, -loadModel. Its tables are memory-mapped */
+	public static String loadModelFile = null;
+
+	/**
+	 * HMM E-step with the scaled linear space forward-backward instead of the log space one, -scaledFB.
+	 * Faster, posteriors agree up to rounding.
+	 */
+	public static boolean scaledForwardBackward = false;
+
+	/**
+	 * how the aligners that decode both directions combine them, -symmetrization (INTERSECTION, UNION, GROW_DIAG,
+	 * GROW_DIAG_FINAL, GROW_DIAG_FINAL_AND)
+	 */
+	public static Symmetrizer.Heuristic symmetrization = Symmetrizer.Heuristic.INTERSECTION;
+}
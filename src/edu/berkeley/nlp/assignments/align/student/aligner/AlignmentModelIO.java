@@ -0,0 +1,50 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import edu.berkeley.nlp.assignments.align.student.util.ModelFile;
+import edu.berkeley.nlp.mt.WordAligner;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Saves a trained aligner to a model file and loads it back, so a run can skip EM (AlignmentTester -saveModel and
+ * -loadModel). The vocabularies and jump weights are read into memory, the translation tables are memory-mapped
+ * (see ModelFile), so a loaded aligner starts aligning in seconds and processes on one machine share the tables.
+ * Loaded aligners can align but not be trained further.
+ *
+ * Supported: IBM1Aligner2 (Model1AlignerFactory) and HMMAligner (HmmAlignerFactory).
+ */
+public class AlignmentModelIO {
+    private static final String IBM1 = "IBM1Aligner2";
+    private static final String HMM = "HMMAligner";
+
+    public static boolean canSave(WordAligner aligner) {
+        return aligner instanceof IBM1Aligner2 || aligner instanceof HMMAligner;
+    }
+
+    public static void save(WordAligner aligner, File file) throws IOException {
+        ModelFile.Writer out;
+        if (aligner instanceof IBM1Aligner2) {
+            out = new ModelFile.Writer(IBM1);
+            ((IBM1Aligner2) aligner).save(out);
+        } else if (aligner instanceof HMMAligner) {
+            out = new ModelFile.Writer(HMM);
+            ((HMMAligner) aligner).save(out);
+        } else {
+            throw new IllegalArgumentException("Cannot save a " + aligner.getClass().getSimpleName());
+        }
+        out.writeTo(file);
+    }
+
+    public static WordAligner load(File file) throws IOException {
+        ModelFile.Reader in = new ModelFile.Reader(file);
+        try {
+            String kind = in.getKind();
+            if (kind.equals(IBM1)) return IBM1Aligner2.load(in);
+            if (kind.equals(HMM)) return HMMAligner.load(in);
+            throw new IOException("Unknown model " + kind + " in " + file);
+        } finally {
+            in.close(); // the mapped tables stay valid
+        }
+    }
+}
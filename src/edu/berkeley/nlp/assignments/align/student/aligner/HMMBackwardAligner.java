@@ -1,7 +1,12 @@
 package edu.berkeley.nlp.assignments.align.student.aligner;
 
+import edu.berkeley.nlp.assignments.align.student.AlignerOptions;
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpus;
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpusIO;
+import edu.berkeley.nlp.assignments.align.student.util.SparseLogTranslationTable;
 import edu.berkeley.nlp.math.SloppyMath;
 import edu.berkeley.nlp.mt.Alignment;
+import edu.berkeley.nlp.mt.BitAlignment;
 import edu.berkeley.nlp.mt.SentencePair;
 import edu.berkeley.nlp.mt.WordAligner;
 import edu.berkeley.nlp.util.StringIndexer;
@@ -16,27 +21,44 @@ import java.util.List;
  */
 public class HMMBackwardAligner implements WordAligner {
 
-    private static StringIndexer enIndexer = new StringIndexer();
-    private static StringIndexer frIndexer = new StringIndexer();
-    private static int maxFrenchLen = 0;
-    private static int maxEnglishLen = 0;
+    private StringIndexer enIndexer;
+    private StringIndexer frIndexer;
+    private int maxFrenchLen = 0;
+    private int maxEnglishLen = 0;
 
-    private static double[][] probFoverE; // E is state, F is word (size is N x T)
+    private SparseLogTranslationTable probFoverE; // log t(e|f), only observed pairs are stored
+
+    static final int NUM_ITERATIONS = 10;
+    private final JumpTransitionModel jumpModel = JumpTransitionModel.laplace(1., 5.);
+    private boolean scaledForwardBackward = AlignerOptions.scaledForwardBackward;
+    private ScaledForwardBackward scaledFB; // created on first use, sized to the longest sentences
 
     public HMMBackwardAligner(Iterable<SentencePair> trainingData) {
-        initializeHMM(trainingData);
-        trainBwdHMM(trainingData);
+        this(IndexedCorpusIO.loadOrBuild(AlignerOptions.corpusCacheFile, trainingData, false));
     }
 
-    private void initializeHMM(Iterable<SentencePair> trainingData) {
-        initIndexer(trainingData);
+    /**
+     * Train on an already indexed corpus, e.g. one shared with the aligner of the other direction
+     */
+    public HMMBackwardAligner(IndexedCorpus corpus) {
+        this(corpus, true);
+    }
 
-        probFoverE = new double[frIndexer.size()][enIndexer.size()];
-        for (double[] row : probFoverE)
-            Arrays.fill(row, Math.log(1 / (double) enIndexer.size()));
+    /**
+     * @param train if false, only set up the model, the caller drives EM (see HMMJointTrainer)
+     */
+    HMMBackwardAligner(IndexedCorpus corpus, boolean train) {
+        initializeHMM(corpus);
+        if (train) trainBwdHMM(corpus);
+    }
 
+    private void initializeHMM(IndexedCorpus corpus) {
+        enIndexer = corpus.getEnIndexer();
+        frIndexer = corpus.getFrIndexer();
+        maxEnglishLen = corpus.getMaxEnglishLen();
+        maxFrenchLen = corpus.getMaxFrenchLen();
 
-        System.out.println("Shape of EMISSION matrix is (" + probFoverE[0].length + ")" + probFoverE.length + ",");
+        probFoverE = new SparseLogTranslationTable(frIndexer.size(), Math.log(1 / (double) enIndexer.size()));
 //        print2DArray(probFoverE, "t(f|e)");
 
         // init transition matrix
@@ -67,11 +89,12 @@ public class HMMBackwardAligner implements WordAligner {
             }
 
             // init sentence-wise variables
-            double[] prior = initPriorLog(englishWords.size());
-            double[][] transition = initTransitionMatrix(englishWords.size());
+            double[] prior = jumpModel.logPrior(englishWords.size());
+            double[][] transition = jumpModel.logMatrix(englishWords.size());
 
-            double[][] alpha = calculateAlphaLog(enIdx, frIdx, prior, transition);
-            double[][] beta = calculateBetaLog(enIdx, frIdx, transition);
+            double[][] emission = emissionLog(enIdx, frIdx);
+            double[][] alpha = calculateAlphaLog(emission, prior, transition);
+            double[][] beta = calculateBetaLog(emission, transition);
 //            double[][] gamma = calculateGammaLog(alpha, beta);
 
 //            assert (alpha.length == beta.length);
@@ -89,7 +112,7 @@ public class HMMBackwardAligner implements WordAligner {
 //            //log version
 //            double[] sumB = new double[beta.length];
 //            for (int i = 0; i < beta.length; i++)
-//                sumB[i] = prior[i] + probFoverE[i][frIdx[0]] + beta[i][0];
+//                sumB[i] = prior[i] + probFoverE.get(frIdx[0], i) + beta[i][0];
 //            double b = SloppyMath.logAdd(sumB);
 
             // log version 2
@@ -101,173 +124,113 @@ public class HMMBackwardAligner implements WordAligner {
             //log version
             double[] sumB = new double[beta[0].length];
             for (int i = 0; i < beta[0].length; i++)
-                sumB[i] = prior[i] + probFoverE[i][frIdx[0]] + beta[0][i];
+                sumB[i] = prior[i] + probFoverE.get(frIdx[0], i) + beta[0][i];
             double b = SloppyMath.logAdd(sumB);
 
             System.out.println("a = " + a + " b = " + b);
         }
     }
 
-    private void initIndexer(Iterable<SentencePair> trainingData) {
-        int pairCount = 0;
-        for (SentencePair pair : trainingData) {
-            if (pairCount % 1000 == 0) System.out.println(pairCount+ " sentences loaded");
-            pairCount++;
-
-            List<String> englishWords = pair.getEnglishWords();
-            List<String> frenchWords = pair.getFrenchWords();
-            if (maxEnglishLen < englishWords.size()) maxEnglishLen = englishWords.size();
-            if (maxFrenchLen < frenchWords.size()) maxFrenchLen = frenchWords.size();
-
-            // get english words
-            for (String en : englishWords) enIndexer.add(en.toLowerCase());
-            // and scan thru french words
-            for (String fr : frenchWords) frIndexer.add(fr.toLowerCase());
-        }
-        int frVocabSize = frIndexer.size();
-        int enVocabSize = enIndexer.size();
-        System.out.println("Size of FR vocab is " + frVocabSize + " size of EN vocab is " + enVocabSize);
-        System.out.println("Max ENG sentence length is " + maxEnglishLen + " and for FR is " + maxFrenchLen);
-        System.out.println("Initializing of Indexer is done!");
-    }
-
-    private double[] initPriorLog(int size) {
-        double[] P = new double[size];
-        Arrays.fill(P, Math.log(1 / (double) size));
-        return P;
-    }
-
-
-    private double[][] initTransitionMatrix(int size) {
-//        return uniformTransitionInit(size);
-        return laplaceTransitionInitLog(size);
-    }
-
-    private double[][] uniformTransitionInit(int size) {
-//        System.out.println("Using Uniform distribution for transition matrix");
-        double[][] T = new double[size][size];
-        for (double[] row : T) {
-            Arrays.fill(row, Math.log(1 / (double) size));
-        }
-        return T;
-    }
-
-    private double[][] laplaceTransitionInitLog(int size) {
-//        System.out.println("Using Laplacian distribution for transition matrix");
-        double[][] T = new double[size][size];
-
-        for (int row = 0; row < size; row ++) {
-            for (int col = 0; col < size; col++) {
-                T[row][col] = laplacianSample((double)(row-col), 1., 5.);
-            }
-        }
-
-        for (int col=0; col < size; col++) {
-            double colSum = 0;
-            for (int row = 0; row < size; row++) {
-                colSum += T[row][col];
-            }
-            for (int row = 0; row < size; row++) {
-                T[row][col] /= colSum;
-            }
-        }
-        for (int i = 0; i < size; i++)
-            for (int j = 0; j < size; j++)
-                T[i][j] = Math.log(T[i][j]);
-
-        return T;
-    }
-
-    private double laplacianSample(double x, double mu, double b) {
-        return ( Math.exp( - Math.abs(x - mu) / b) ) /  (2.0 * b);
-    }
-
     // ======================= BACKWARD BACKWARD =====================
-    private void trainBwdHMM(Iterable<SentencePair> trainingData) {
+    private void trainBwdHMM(IndexedCorpus corpus) {
         // convergence criteria
-        int targetNumIterations = 10;
+        int targetNumIterations = NUM_ITERATIONS;
         double delta = 1e-5;
 
         int iter = 0;
         double lossBW = 1.;
         while ((iter < targetNumIterations) && (lossBW > delta)) {
-            System.out.println("\n---------------------\n" + "HMM BACKWARD Iteration" + iter + "\n--------------------\n");
-            double[][] countFoverE = new double[frIndexer.size()][enIndexer.size()];
-            double[] totalF = new double[frIndexer.size()];
-            for (double[] row: countFoverE)
-                Arrays.fill(row, Double.NEGATIVE_INFINITY);
-            Arrays.fill(totalF, Double.NEGATIVE_INFINITY);
-
-//            double[] totalPrior = new double[enIndexer.size()];
-//            double priorNormalize = 0;
-
-            int count = 0;
-            for (SentencePair pair : trainingData) {
-                if (count % 1000 == 0)
-                    System.out.println(count + " pairs processed");
-                count++;
-
-                List<String> englishWords = pair.getEnglishWords();
-                List<String> frenchWords = pair.getFrenchWords();
-                int[] enIdx = new int[englishWords.size()];
-                for (int j = 0; j < englishWords.size(); j++) {
-                    enIdx[j] = enIndexer.indexOf(englishWords.get(j).toLowerCase());
-                }
+            beginIteration(iter);
+            for (int s = 0; s < corpus.size(); s++) {
+                if (s % 1000 == 0)
+                    System.out.println(s + " pairs processed");
+                accumulate(corpus.englishSentence(s), corpus.frenchSentence(s));
+            } // end for all sentence pairs
+            endIteration();
+            iter++;
+        } // end while
+    }
 
-                int[] frIdx = new int[frenchWords.size()];
-                for (int i = 0; i < frenchWords.size(); i++) {
-                    frIdx[i] = frIndexer.indexOf(frenchWords.get(i).toLowerCase());
-                }
+    /**
+     * Start of an EM iteration, the expected counts are empty after the previous M-step
+     */
+    void beginIteration(int iter) {
+        System.out.println("\n---------------------\n" + "HMM BACKWARD Iteration" + iter + "\n--------------------\n");
+    }
+
+    /**
+     * E-step for one sentence pair, adds its posteriors to the expected counts
+     */
+    void accumulate(int[] enIdx, int[] frIdx) {
+        if (scaledForwardBackward && accumulateScaled(enIdx, frIdx)) return;
 
-                // init sentence-wise variables
-                double[] prior = initPriorLog(frenchWords.size());
-                double[][] transition = initTransitionMatrix(frenchWords.size());
+        double[] prior = jumpModel.logPrior(frIdx.length);
+        double[][] transition = jumpModel.logMatrix(frIdx.length);
 
-                // E-step
-                // GAMMA
-                double[][] alpha = calculateAlphaLog(frIdx, enIdx, prior, transition);
-                double[][] beta = calculateBetaLog(frIdx, enIdx, transition);
+        // E-step
+        // GAMMA
+        double[][] emission = emissionLog(frIdx, enIdx);
+        double[][] alpha = calculateAlphaLog(emission, prior, transition);
+        double[][] beta = calculateBetaLog(emission, transition);
 
 //                print2DArray(alpha, "alpha");
 //                print2DArray(beta, "beta");
 //                print2DArray(transition, "transition");
 
-                // TODO: compute Xi
+        // TODO: compute Xi
 
 
-                double[] sentenceTotalE = new double[enIdx.length];
-                Arrays.fill(sentenceTotalE, Double.NEGATIVE_INFINITY);
-                for (int i = 0; i < enIdx.length; i++) {
-                    for (int j = 0; j < frIdx.length; j++) {
-                        sentenceTotalE[i] = SloppyMath.logAdd(alpha[i][j] + beta[i][j], sentenceTotalE[i]);
-                    }
-                }
-                // accumulate partial counts for emission
-                for (int i = 0; i < enIdx.length; i++) {
-                    for (int j = 0; j < frIdx.length; j++) {
-                        double gamma = alpha[i][j] + beta[i][j] - sentenceTotalE[i];
-                        countFoverE[frIdx[j]][enIdx[i]] = SloppyMath.logAdd(countFoverE[frIdx[j]][enIdx[i]], gamma);
-                        totalF[frIdx[j]] = SloppyMath.logAdd(totalF[frIdx[j]], gamma);
-                    }
-                }
-
+        double[] sentenceTotalE = new double[enIdx.length];
+        Arrays.fill(sentenceTotalE, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < enIdx.length; i++) {
+            for (int j = 0; j < frIdx.length; j++) {
+                sentenceTotalE[i] = SloppyMath.logAdd(alpha[i][j] + beta[i][j], sentenceTotalE[i]);
+            }
+        }
+        // accumulate partial counts for emission
+        for (int i = 0; i < enIdx.length; i++) {
+            for (int j = 0; j < frIdx.length; j++) {
+                double gamma = alpha[i][j] + beta[i][j] - sentenceTotalE[i];
+                probFoverE.addLogCount(enIdx[i], frIdx[j], gamma); // total is collected along
+            }
+        }
+    }
 
-            } // end for all sentence pairs
+    /**
+     * Same E-step with the linear space kernel.
+     * Returns false, without adding anything, if the sentence underflows there and needs the log space one
+     */
+    private boolean accumulateScaled(int[] enIdx, int[] frIdx) {
+        if (scaledFB == null) scaledFB = new ScaledForwardBackward(jumpModel, maxFrenchLen, maxEnglishLen);
+        double[][] emission = scaledFB.emission();
+        for (int t = 0; t < enIdx.length; t++)
+            for (int i = 0; i < frIdx.length; i++)
+                emission[t][i] = Math.exp(probFoverE.get(enIdx[t], frIdx[i]));
+        if (!scaledFB.run(enIdx.length, frIdx.length)) return false;
+
+        double[][] gamma = scaledFB.posteriors();
+        for (int t = 0; t < enIdx.length; t++) {
+            for (int i = 0; i < frIdx.length; i++) {
+                if (gamma[t][i] > 0.)
+                    probFoverE.addLogCount(enIdx[t], frIdx[i], Math.log(gamma[t][i]));
+            }
+        }
+        return true;
+    }
 
-            // now reupdating master t(e|f)
-            System.out.println("Reupdaing table t(e|f)");
+    /**
+     * M-step: re-estimate the emission table from the expected counts
+     */
+    void endIteration() {
+        // now reupdating master t(e|f)
+        System.out.println("Reupdaing table t(e|f)");
 //            lossBW = 0.;
-            for (int f = 0; f < frIndexer.size(); f++) {
-                for (int e = 0; e< enIndexer.size(); e++) {
-                    double oldValue = probFoverE[f][e];
-//                    lossBW += Math.abs(Math.exp(oldValue) - Math.exp(countFoverE[f][e] - totalF[f]));
-                    probFoverE[f][e] = countFoverE[f][e] - totalF[f];
-                }
-            }
+        probFoverE.maximize();
+        System.out.println(probFoverE.size() + " observed pairs");
 //            lossBW /= (enIndexer.size() * frIndexer.size());
 //            System.out.println("Loss = " + lossBW);
 
-            // now updating prior
+        // now updating prior
 //            for (int e = 0; e < enIndexer.size(); e++) {
 //                fwdPrior[e] = (double) (totalPrior[e] / priorNormalize);
 //            }
@@ -275,11 +238,18 @@ public class HMMBackwardAligner implements WordAligner {
 
 //            print2DArray(probFoverE, "t(f|e)");
 
-            // to the next loop if not converged
-            countFoverE = null;
-            totalF = null;
-            iter++;
-        } // end while
+    }
+
+    /**
+     * Emission log probabilities of one sentence, emission[t][i] = log t(colIdx[t] | rowIdx[i]).
+     * Looked up once here instead of inside the O(T N^2) loops of forward-backward
+     */
+    private double[][] emissionLog(int[] rowIdx, int[] colIdx) {
+        double[][] emission = new double[colIdx.length][rowIdx.length];
+        for (int t = 0; t < colIdx.length; t++)
+            for (int i = 0; i < rowIdx.length; i++)
+                emission[t][i] = probFoverE.get(colIdx[t], rowIdx[i]);
+        return emission;
     }
 
     /**
@@ -288,37 +258,37 @@ public class HMMBackwardAligner implements WordAligner {
      * Usage:
      * Extract emissions from t(f|e) table, while reuse global prior and transition
      *
-     * @param colIdx: given a sentence, extract the label index of the sentence words
+     * @param emission: emissionLog() of the sentence
      */
-    private double[][] calculateAlphaLog(int[] rowIdx, int[] colIdx, double[] prior, double[][] transition) {
-        int E = rowIdx.length; // eng
-        int F = colIdx.length; // fr
+    private double[][] calculateAlphaLog(double[][] emission, double[] prior, double[][] transition) {
+        int E = prior.length; // eng
+        int F = emission.length; // fr
         double[][] alpha = new double[F][E];
 
         //base case
         for (int i = 0; i < E; i++) {
-            alpha[0][i] = prior[i] + probFoverE[rowIdx[i]][colIdx[0]];
-//            System.out.println(alpha[0][i] + " " + prior[i] + " " + probFoverE[rowIdx[i]][colIdx[0]]);
+            alpha[0][i] = prior[i] + emission[0][i];
+//            System.out.println(alpha[0][i] + " " + prior[i] + " " + probFoverE.get(colIdx[0], rowIdx[i]));
         }
 
         // forward
         for (int t = 1; t < F; t++) {
             for (int i = 0; i < E; i++) {
                 double logSum = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < E; k++) {
+                for (int k = jumpModel.firstPrev(i); k <= jumpModel.lastPrev(i, E); k++) {
                     logSum = SloppyMath.logAdd(logSum, alpha[t - 1][k] + transition[i][k]);
                 }
                 // calculate next timestep alpha
-                alpha[t][i] = probFoverE[rowIdx[i]][colIdx[t]] + logSum;
+                alpha[t][i] = emission[t][i] + logSum;
             }
 
         }
         return alpha;
     }
 
-    private double[][] calculateBetaLog(int[] rowIdx, int[] colIdx, double[][] transition) {
-        int N = rowIdx.length;
-        int T = colIdx.length;
+    private double[][] calculateBetaLog(double[][] emission, double[][] transition) {
+        int N = transition.length;
+        int T = emission.length;
         double[][] beta = new double[T][N]; // N x T
 
         // base case, no need to normalize
@@ -330,8 +300,8 @@ public class HMMBackwardAligner implements WordAligner {
         for (int t = T - 2; t >= 0; t--) {
             for (int i = 0; i < N; i++) {
                 double logSum = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < N; k++) {
-                    logSum = SloppyMath.logAdd(logSum, beta[t + 1][k] + transition[k][i] + probFoverE[rowIdx[k]][colIdx[t + 1]]);
+                for (int k = jumpModel.firstNext(i); k <= jumpModel.lastNext(i, N); k++) {
+                    logSum = SloppyMath.logAdd(logSum, beta[t + 1][k] + transition[k][i] + emission[t + 1][k]);
                 }
                 beta[t][i] = logSum;
             }
@@ -364,91 +334,6 @@ public class HMMBackwardAligner implements WordAligner {
         return gamma;
     }
 
-    /**
-     * Viterbi decoder using for alignment
-     * Given FR decode EN
-     */
-    private List<Integer> viterbiDecode(int[] rowIdx, int[] colIdx, double[] prior, double[][] transition) {
-        int F = rowIdx.length;
-        int E = colIdx.length;
-        double[][] B = new double[E][F]; // N x T // back pointer
-        List<List<List<Integer>>> V = new ArrayList<>(); // T x N x (colIdx.length)
-
-        // base case for B
-        for (int i = 0; i < F; i++) {
-            B[0][i] = prior[i] + probFoverE[i][0];
-        }
-        // base case for V
-        for (int i = 0; i < E; i++) {
-            V.add(i, new ArrayList<>());
-            for (int j = 0; j < F; j++) {
-                V.get(i).add(j, new ArrayList<>());
-            }
-        }
-        // init V with init EN states
-        for (int j = 0; j < F; j++) {
-//            V.get(0).get(j).add(rowIdx[j]);
-            V.get(0).get(j).add(j);
-
-        }
-//        System.out.println("After init the content of V = " + V);
-//        print2DArray(B, "B");
-        // decode
-        for (int t = 1; t < E; t++) { // from 1 -> T
-            for (int i = 0; i < F; i++) {
-                int maxIdx = -1;
-                double maxVal = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < F; k++) {
-//                    double current = B[t-1][k] + transition[k][i] + probFoverE[rowIdx[i]][colIdx[t]];
-                    double current = B[t-1][k] + transition[i][k] + probFoverE[rowIdx[i]][colIdx[t]];
-                    if (maxVal < current) {
-                        maxVal = current;
-                        maxIdx = k;
-                    }
-                }
-                // update
-                B[t][i] = maxVal;
-//                System.out.println("MaxVal = " + maxVal + " maxIDx = " + maxIdx);
-                List<Integer> currentList = new ArrayList<>(V.get(t-1).get(maxIdx)); // copy, not reference
-//                System.out.println("Current List at (t-1)= " + (t-1) + " and i = " + i + " is " + currentList);
-//                currentList.add(rowIdx[i]);
-                currentList.add(i);
-                V.get(t).add(i, currentList);
-            }
-//            System.out.println("After step " + t + " the content of V = " + V);
-        }
-
-        // now backtracking
-        List<Integer> maxDecoded = new ArrayList<>();
-        for (int i = E-1; i >= 0; i--) {
-            maxDecoded.add(0, argmax(B, i));
-        }
-
-
-//        print2DArray(B, "backpointer");
-//        System.out.println(V);
-
-        return maxDecoded;
-    }
-
-
-    /**
-     * helper for viterbi, dealing with back pointer matrix with size T x N
-     * Usage: Back track for each time step from t = 0 => t = T-1
-     */
-    private int argmax(double[][] backPtr, int rowIdx) {
-        int maxIdx = 0;
-        double maxVal = Double.NEGATIVE_INFINITY;
-        for (int col = 0; col < backPtr[rowIdx].length; col++) {
-            if (maxVal < backPtr[rowIdx][col]) {
-                maxVal = backPtr[rowIdx][col];
-                maxIdx = col;
-            }
-        }
-        return maxIdx;
-    }
-
-
     private double[][][] calculateXi(double[][] alpha, double[][] beta) {
         int N = alpha.length;
         int T = alpha[0].length;
@@ -463,7 +348,7 @@ public class HMMBackwardAligner implements WordAligner {
     // ======================= ALIGN NOW =============================
     @Override
     public Alignment alignSentencePair(SentencePair sentencePair) {
-        Alignment alignment = new Alignment();
+        Alignment alignment = new BitAlignment(sentencePair.getEnglishWords().size(), sentencePair.getFrenchWords().size());
         List<String> englishWords = sentencePair.getEnglishWords();
         List<String> frenchWords = sentencePair.getFrenchWords();
         int[] enIdx = new int[englishWords.size()];
@@ -475,16 +360,12 @@ public class HMMBackwardAligner implements WordAligner {
         for (int i = 0; i < frenchWords.size(); i++) {
             frIdx[i] = frIndexer.indexOf(frenchWords.get(i).toLowerCase());
         }
-        // init sentence-wise variables
-        double[] prior = initPriorLog(frenchWords.size());
-        double[][] transition = initTransitionMatrix(frenchWords.size());
-
-        List<Integer> decoded = viterbiDecode(frIdx, enIdx, prior, transition);
+        int[] decoded = HMMViterbi.decode(probFoverE, jumpModel, frIdx, enIdx);
 //        System.out.println(print1DArray(enIdx));
 //        System.out.println(print1DArray(frIdx));
-//        System.out.println(decoded);
+//        System.out.println(Arrays.toString(decoded));
         for (int i = 0; i < enIdx.length; i++) {
-            alignment.addAlignment(i, decoded.get(i), true);
+            alignment.addAlignment(i, decoded[i], true);
         }
 
         return alignment;
@@ -536,15 +417,26 @@ public class HMMBackwardAligner implements WordAligner {
         return s;
     }
 
-    public static StringIndexer getEnIndexer() {
+    public StringIndexer getEnIndexer() {
         return enIndexer;
     }
 
-    public static StringIndexer getFrIndexer() {
+    public StringIndexer getFrIndexer() {
         return frIndexer;
     }
 
-    public static double[][] getProbFoverE() {
+    /**
+     * Choose between the log space forward-backward (default) and the scaled linear space one
+     */
+    public void setScaledForwardBackward(boolean scaled) {
+        scaledForwardBackward = scaled;
+    }
+
+    public JumpTransitionModel getJumpModel() {
+        return jumpModel;
+    }
+
+    public SparseLogTranslationTable getProbFoverE() {
         return probFoverE;
     }
 }
@@ -1,7 +1,12 @@
 package edu.berkeley.nlp.assignments.align.student.aligner;
 
+import edu.berkeley.nlp.assignments.align.student.AlignerOptions;
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpus;
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpusIO;
+import edu.berkeley.nlp.assignments.align.student.util.SparseLogTranslationTable;
 import edu.berkeley.nlp.math.SloppyMath;
 import edu.berkeley.nlp.mt.Alignment;
+import edu.berkeley.nlp.mt.BitAlignment;
 import edu.berkeley.nlp.mt.SentencePair;
 import edu.berkeley.nlp.mt.WordAligner;
 import edu.berkeley.nlp.util.StringIndexer;
@@ -16,27 +21,44 @@ import java.util.List;
  */
 public class HMMForwardAligner implements WordAligner {
 
-    private static StringIndexer enIndexer = new StringIndexer();
-    private static StringIndexer frIndexer = new StringIndexer();
-    private static int maxFrenchLen = 0;
-    private static int maxEnglishLen = 0;
+    private StringIndexer enIndexer;
+    private StringIndexer frIndexer;
+    private int maxFrenchLen = 0;
+    private int maxEnglishLen = 0;
 
-    private static double[][] probEoverF; // E is state, F is word (size is N x T)
+    private SparseLogTranslationTable probEoverF; // log t(f|e), only observed pairs are stored
+
+    static final int NUM_ITERATIONS = 10;
+    private final JumpTransitionModel jumpModel = JumpTransitionModel.laplace(1., 5.);
+    private boolean scaledForwardBackward = AlignerOptions.scaledForwardBackward;
+    private ScaledForwardBackward scaledFB; // created on first use, sized to the longest sentences
 
     public HMMForwardAligner(Iterable<SentencePair> trainingData) {
-        initializeHMM(trainingData);
-        trainFwdHMM(trainingData);
+        this(IndexedCorpusIO.loadOrBuild(AlignerOptions.corpusCacheFile, trainingData, false));
     }
 
-    private void initializeHMM(Iterable<SentencePair> trainingData) {
-        initIndexer(trainingData);
+    /**
+     * Train on an already indexed corpus, e.g. one shared with the aligner of the other direction
+     */
+    public HMMForwardAligner(IndexedCorpus corpus) {
+        this(corpus, true);
+    }
 
-        probEoverF = new double[enIndexer.size()][frIndexer.size()];
-        for (double[] row : probEoverF)
-            Arrays.fill(row, Math.log(1 / (double) frIndexer.size()));
+    /**
+     * @param train if false, only set up the model, the caller drives EM (see HMMJointTrainer)
+     */
+    HMMForwardAligner(IndexedCorpus corpus, boolean train) {
+        initializeHMM(corpus);
+        if (train) trainFwdHMM(corpus);
+    }
 
+    private void initializeHMM(IndexedCorpus corpus) {
+        enIndexer = corpus.getEnIndexer();
+        frIndexer = corpus.getFrIndexer();
+        maxEnglishLen = corpus.getMaxEnglishLen();
+        maxFrenchLen = corpus.getMaxFrenchLen();
 
-        System.out.println("Shape of EMISSION matrix is (" + probEoverF.length + "," + probEoverF[0].length + ")");
+        probEoverF = new SparseLogTranslationTable(enIndexer.size(), Math.log(1 / (double) frIndexer.size()));
     }
 
     private void alphaBetaTest(Iterable<SentencePair> trainingData) {
@@ -55,11 +77,12 @@ public class HMMForwardAligner implements WordAligner {
             }
 
             // init sentence-wise variables
-            double[] prior = initPriorLog(englishWords.size());
-            double[][] transition = initTransitionMatrix(englishWords.size());
+            double[] prior = jumpModel.logPrior(englishWords.size());
+            double[][] transition = jumpModel.logMatrix(englishWords.size());
 
-            double[][] alpha = calculateAlphaLog(enIdx, frIdx, prior, transition);
-            double[][] beta = calculateBetaLog(enIdx, frIdx, transition);
+            double[][] emission = emissionLog(enIdx, frIdx);
+            double[][] alpha = calculateAlphaLog(emission, prior, transition);
+            double[][] beta = calculateBetaLog(emission, transition);
 //            double[][] gamma = calculateGammaLog(alpha, beta);
 
 //            assert (alpha.length == beta.length);
@@ -77,7 +100,7 @@ public class HMMForwardAligner implements WordAligner {
 //            //log version
 //            double[] sumB = new double[beta.length];
 //            for (int i = 0; i < beta.length; i++)
-//                sumB[i] = prior[i] + probEoverF[i][frIdx[0]] + beta[i][0];
+//                sumB[i] = prior[i] + probEoverF.get(frIdx[0], i) + beta[i][0];
 //            double b = SloppyMath.logAdd(sumB);
 
             // log version 2
@@ -89,189 +112,137 @@ public class HMMForwardAligner implements WordAligner {
             //log version
             double[] sumB = new double[beta[0].length];
             for (int i = 0; i < beta[0].length; i++)
-                sumB[i] = prior[i] + probEoverF[i][frIdx[0]] + beta[0][i];
+                sumB[i] = prior[i] + probEoverF.get(frIdx[0], i) + beta[0][i];
             double b = SloppyMath.logAdd(sumB);
 
             System.out.println("a = " + a + " b = " + b);
         }
     }
 
-    private void initIndexer(Iterable<SentencePair> trainingData) {
-        int pairCount = 0;
-        for (SentencePair pair : trainingData) {
-            if (pairCount % 1000 == 0) System.out.println(pairCount+ " sentences loaded");
-            pairCount++;
-
-            List<String> englishWords = pair.getEnglishWords();
-            List<String> frenchWords = pair.getFrenchWords();
-            if (maxEnglishLen < englishWords.size()) maxEnglishLen = englishWords.size();
-            if (maxFrenchLen < frenchWords.size()) maxFrenchLen = frenchWords.size();
-
-            // get english words
-            for (String en : englishWords) enIndexer.add(en.toLowerCase());
-            // and scan thru french words
-            for (String fr : frenchWords) frIndexer.add(fr.toLowerCase());
-        }
-        int frVocabSize = frIndexer.size();
-        int enVocabSize = enIndexer.size();
-        System.out.println("Size of FR vocab is " + frVocabSize + " size of EN vocab is " + enVocabSize);
-        System.out.println("Max ENG sentence length is " + maxEnglishLen + " and for FR is " + maxFrenchLen);
-        System.out.println("Initializing of Indexer is done!");
-    }
-
-    private double[] initPriorLog(int size) {
-        double[] P = new double[size];
-        Arrays.fill(P, Math.log(1 / (double) size));
-        return P;
-    }
-
-    private double[][] initTransitionMatrix(int size) {
-//        return uniformTransitionInit(size);
-        return laplaceTransitionInitLog(size);
-    }
-
-    private double[][] uniformTransitionInit(int size) {
-//        System.out.println("Using Uniform distribution for transition matrix");
-        double[][] T = new double[size][size];
-        for (double[] row : T) {
-            Arrays.fill(row, Math.log(1 / (double) size));
-        }
-        return T;
-    }
-
-    private double[][] laplaceTransitionInitLog(int size) {
-//        System.out.println("Using Laplacian distribution for transition matrix");
-        double[][] T = new double[size][size];
-
-        for (int row = 0; row < size; row ++) {
-            for (int col = 0; col < size; col++) {
-                T[row][col] = laplacianSample((double)(row-col), 1., 5.);
-            }
-        }
-
-        for (int col=0; col < size; col++) {
-            double colSum = 0;
-            for (int row = 0; row < size; row++) {
-                colSum += T[row][col];
-            }
-            for (int row = 0; row < size; row++) {
-                T[row][col] /= colSum;
-            }
-        }
-
-        for (int i = 0; i < size; i++)
-            for (int j = 0; j < size; j++)
-                T[i][j] = Math.log(T[i][j]);
-
-        return T;
-    }
-
-    private double laplacianSample(double x, double mu, double b) {
-        return ( Math.exp( - Math.abs(x - mu) / b) ) /  (2.0 * b);
-    }
-
     // ======================= FORWARD BACKWARD =====================
-    private void trainFwdHMM(Iterable<SentencePair> trainingData) {
+    private void trainFwdHMM(IndexedCorpus corpus) {
         // convergence criteria
-        int targetNumIterations = 10;
+        int targetNumIterations = NUM_ITERATIONS;
         double delta = 1e-5;
 
         int iter = 0;
         double lossFW = 1.;
         while ((iter < targetNumIterations) && (lossFW > delta)) {
-            System.out.println("\n---------------------\n" + "HMM FORWARD Iteration" + iter + "\n--------------------\n");
-            double[][] countEoverF = new double[enIndexer.size()][frIndexer.size()];
-            double[] totalE = new double[enIndexer.size()];
-            for (double[] row: countEoverF)
-                Arrays.fill(row, Double.NEGATIVE_INFINITY);
-            Arrays.fill(totalE, Double.NEGATIVE_INFINITY);
-
-//            double[] totalPrior = new double[enIndexer.size()];
-//            double priorNormalize = 0;
-
-            int count = 0;
-            for (SentencePair pair : trainingData) {
-                if (count % 1000 == 0)
-                    System.out.println(count + " pairs processed");
-                count++;
-
-                List<String> englishWords = pair.getEnglishWords();
-                List<String> frenchWords = pair.getFrenchWords();
-                int[] enIdx = new int[englishWords.size()];
-                for (int j = 0; j < englishWords.size(); j++) {
-                    enIdx[j] = enIndexer.indexOf(englishWords.get(j).toLowerCase());
-                }
+            beginIteration(iter);
+            for (int s = 0; s < corpus.size(); s++) {
+                if (s % 1000 == 0)
+                    System.out.println(s + " pairs processed");
+                accumulate(corpus.englishSentence(s), corpus.frenchSentence(s));
+            } // end for all sentence pairs
+            endIteration();
+            iter++;
+        } // end while
+    }
 
-                int[] frIdx = new int[frenchWords.size()];
-                for (int i = 0; i < frenchWords.size(); i++) {
-                    frIdx[i] = frIndexer.indexOf(frenchWords.get(i).toLowerCase());
-                }
+    /**
+     * Start of an EM iteration, the expected counts are empty after the previous M-step
+     */
+    void beginIteration(int iter) {
+        System.out.println("\n---------------------\n" + "HMM FORWARD Iteration" + iter + "\n--------------------\n");
+    }
 
-                // init sentence-wise variables
-                double[] prior = initPriorLog(englishWords.size());
-                double[][] transition = initTransitionMatrix(englishWords.size());
+    /**
+     * E-step for one sentence pair, adds its posteriors to the expected counts
+     */
+    void accumulate(int[] enIdx, int[] frIdx) {
+        if (scaledForwardBackward && accumulateScaled(enIdx, frIdx)) return;
+
+        double[] prior = jumpModel.logPrior(enIdx.length);
+        double[][] transition = jumpModel.logMatrix(enIdx.length);
 
-                // E-step
-                // GAMMA
-                double[][] alpha = calculateAlphaLog(enIdx, frIdx, prior, transition);
-                double[][] beta = calculateBetaLog(enIdx, frIdx, transition);
+        // E-step
+        // GAMMA
+        double[][] emission = emissionLog(enIdx, frIdx);
+        double[][] alpha = calculateAlphaLog(emission, prior, transition);
+        double[][] beta = calculateBetaLog(emission, transition);
 
 //                print2DArray(alpha, "alpha");
 //                print2DArray(beta, "beta");
 //                print2DArray(transition, "transition");
 
-                // TODO: compute Xi
+        // TODO: compute Xi
 
-                double[] sentenceTotalF = new double[frIdx.length];
-                Arrays.fill(sentenceTotalF, Double.NEGATIVE_INFINITY);
-                for (int i = 0; i < frIdx.length; i++) {
-                    for (int j = 0; j < enIdx.length; j++) {
-                        sentenceTotalF[i] = SloppyMath.logAdd(alpha[i][j] + beta[i][j], sentenceTotalF[i]);
-                    }
-                }
-                // accumulate partial counts for emission
-                for (int i = 0; i < frIdx.length; i++) {
-                    for (int j = 0; j < enIdx.length; j++) {
-                        double gamma = alpha[i][j] + beta[i][j] - sentenceTotalF[i];
-                        countEoverF[enIdx[j]][frIdx[i]] = SloppyMath.logAdd(countEoverF[enIdx[j]][frIdx[i]], gamma);
-                        totalE[enIdx[j]] = SloppyMath.logAdd(totalE[enIdx[j]], gamma);
-                    }
-                }
+        double[] sentenceTotalF = new double[frIdx.length];
+        Arrays.fill(sentenceTotalF, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < frIdx.length; i++) {
+            for (int j = 0; j < enIdx.length; j++) {
+                sentenceTotalF[i] = SloppyMath.logAdd(alpha[i][j] + beta[i][j], sentenceTotalF[i]);
+            }
+        }
+        // accumulate partial counts for emission
+        for (int i = 0; i < frIdx.length; i++) {
+            for (int j = 0; j < enIdx.length; j++) {
+                double gamma = alpha[i][j] + beta[i][j] - sentenceTotalF[i];
+                probEoverF.addLogCount(frIdx[i], enIdx[j], gamma); // total is collected along
+            }
+        }
 
-                        // accumulate partia counts for priors
-                // TODO: update this
+        // accumulate partia counts for priors
+        // TODO: update this
 //                for (int i = 0; i < enIdx.length; i++) { // row of gamma
 //                    totalPrior[enIdx[i]] += gamma[i][0];
 //                    priorNormalize += gamma[i][0];
 //                }
+    }
 
-            } // end for all sentence pairs
+    /**
+     * Same E-step with the linear space kernel.
+     * Returns false, without adding anything, if the sentence underflows there and needs the log space one
+     */
+    private boolean accumulateScaled(int[] enIdx, int[] frIdx) {
+        if (scaledFB == null) scaledFB = new ScaledForwardBackward(jumpModel, maxEnglishLen, maxFrenchLen);
+        double[][] emission = scaledFB.emission();
+        for (int t = 0; t < frIdx.length; t++)
+            for (int i = 0; i < enIdx.length; i++)
+                emission[t][i] = Math.exp(probEoverF.get(frIdx[t], enIdx[i]));
+        if (!scaledFB.run(frIdx.length, enIdx.length)) return false;
+
+        double[][] gamma = scaledFB.posteriors();
+        for (int t = 0; t < frIdx.length; t++) {
+            for (int i = 0; i < enIdx.length; i++) {
+                if (gamma[t][i] > 0.)
+                    probEoverF.addLogCount(frIdx[t], enIdx[i], Math.log(gamma[t][i]));
+            }
+        }
+        return true;
+    }
 
-            // now reupdating master t(e|f)
-            System.out.println("Reupdaing table t(e|f)");
+    /**
+     * M-step: re-estimate the emission table from the expected counts
+     */
+    void endIteration() {
+        // now reupdating master t(e|f)
+        System.out.println("Reupdaing table t(e|f)");
 //            lossFW = 0.;
-            for (int e = 0; e < enIndexer.size(); e++) {
-                for (int f = 0; f< frIndexer.size(); f++) {
-                    double oldValue = probEoverF[e][f];
-//                    lossFW += Math.abs(Math.exp(oldValue) - Math.exp(countEoverF[e][f] - totalE[e]));
-                    probEoverF[e][f] = countEoverF[e][f] - totalE[e];
-                }
-            }
+        probEoverF.maximize();
+        System.out.println(probEoverF.size() + " observed pairs");
 //            lossFW /= (enIndexer.size() * frIndexer.size());
 //            System.out.println("Loss = " + lossFW);
 
-            // now updating prior
+        // now updating prior
 //            for (int e = 0; e < enIndexer.size(); e++) {
 //                fwdPrior[e] = (double) (totalPrior[e] / priorNormalize);
 //            }
 
 //            print2DArray(probEoverF, "t(f|e)");
 
-            // to the next loop if not converged
-            countEoverF = null;
-            totalE = null;
-            iter++;
-        } // end while
+    }
+
+    /**
+     * Emission log probabilities of one sentence, emission[t][i] = log t(colIdx[t] | rowIdx[i]).
+     * Looked up once here instead of inside the O(T N^2) loops of forward-backward
+     */
+    private double[][] emissionLog(int[] rowIdx, int[] colIdx) {
+        double[][] emission = new double[colIdx.length][rowIdx.length];
+        for (int t = 0; t < colIdx.length; t++)
+            for (int i = 0; i < rowIdx.length; i++)
+                emission[t][i] = probEoverF.get(colIdx[t], rowIdx[i]);
+        return emission;
     }
 
     /**
@@ -280,28 +251,28 @@ public class HMMForwardAligner implements WordAligner {
      * Usage:
      * Extract emissions from t(f|e) table, while reuse global prior and transition
      *
-     * @param colIdx: given a sentence, extract the label index of the sentence words
+     * @param emission: emissionLog() of the sentence
      */
-    private double[][] calculateAlphaLog(int[] rowIdx, int[] colIdx, double[] prior, double[][] transition) {
-        int E = rowIdx.length; // eng
-        int F = colIdx.length; // fr
+    private double[][] calculateAlphaLog(double[][] emission, double[] prior, double[][] transition) {
+        int E = prior.length; // eng
+        int F = emission.length; // fr
         double[][] alpha = new double[F][E];
 
         //base case
         for (int i = 0; i < E; i++) {
-            alpha[0][i] = prior[i] + probEoverF[rowIdx[i]][colIdx[0]];
-//            System.out.println(alpha[0][i] + " " + prior[i] + " " + probEoverF[rowIdx[i]][colIdx[0]]);
+            alpha[0][i] = prior[i] + emission[0][i];
+//            System.out.println(alpha[0][i] + " " + prior[i] + " " + probEoverF.get(colIdx[0], rowIdx[i]));
         }
 
         // forward
         for (int t = 1; t < F; t++) {
             for (int i = 0; i < E; i++) {
                 double logSum = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < E; k++) {
+                for (int k = jumpModel.firstPrev(i); k <= jumpModel.lastPrev(i, E); k++) {
                     logSum = SloppyMath.logAdd(logSum, alpha[t - 1][k] + transition[i][k]);
                 }
                 // calculate next timestep alpha
-                alpha[t][i] = probEoverF[rowIdx[i]][colIdx[t]] + logSum;
+                alpha[t][i] = emission[t][i] + logSum;
             }
 
         }
@@ -311,12 +282,12 @@ public class HMMForwardAligner implements WordAligner {
     /**
      * Calculate beta (backward) in log space
      *
-     * @param colIdx: given a sentence, extract the label index of the sentence words
+     * @param emission: emissionLog() of the sentence
      * @return
      */
-    private double[][] calculateBetaLog(int[] rowIdx, int[] colIdx, double[][] transition) {
-        int N = rowIdx.length;
-        int T = colIdx.length;
+    private double[][] calculateBetaLog(double[][] emission, double[][] transition) {
+        int N = transition.length;
+        int T = emission.length;
         double[][] beta = new double[T][N]; // N x T
 
         // base case, no need to normalize
@@ -328,8 +299,8 @@ public class HMMForwardAligner implements WordAligner {
         for (int t = T - 2; t >= 0; t--) {
             for (int i = 0; i < N; i++) {
                 double logSum = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < N; k++) {
-                    logSum = SloppyMath.logAdd(logSum, beta[t + 1][k] + transition[k][i] + probEoverF[rowIdx[k]][colIdx[t + 1]]);
+                for (int k = jumpModel.firstNext(i); k <= jumpModel.lastNext(i, N); k++) {
+                    logSum = SloppyMath.logAdd(logSum, beta[t + 1][k] + transition[k][i] + emission[t + 1][k]);
                 }
                 beta[t][i] = logSum;
             }
@@ -362,91 +333,6 @@ public class HMMForwardAligner implements WordAligner {
         return gamma;
     }
 
-    /**
-     * Viterbi decoder using for alignment
-     * Given FR decode EN
-     */
-    private List<Integer> viterbiDecode(int[] rowIdx, int[] colIdx, double[] prior, double[][] transition) {
-        int E = rowIdx.length;
-        int F = colIdx.length;
-        double[][] B = new double[F][E]; // N x T // back pointer
-        List<List<List<Integer>>> V = new ArrayList<>(); // T x N x (colIdx.length)
-
-        // base case for B
-        for (int i = 0; i < E; i++) {
-            B[0][i] = prior[i] + probEoverF[i][0];
-        }
-        // base case for V
-        for (int i = 0; i < F; i++) {
-            V.add(i, new ArrayList<>());
-            for (int j = 0; j < E; j++) {
-                V.get(i).add(j, new ArrayList<>());
-            }
-        }
-        // init V with init EN states
-        for (int j = 0; j < E; j++) {
-//            V.get(0).get(j).add(rowIdx[j]);
-            V.get(0).get(j).add(j);
-
-        }
-//        System.out.println("After init the content of V = " + V);
-//        print2DArray(B, "B");
-        // decode
-        for (int t = 1; t < F; t++) { // from 1 -> T
-            for (int i = 0; i < E; i++) {
-                int maxIdx = -1;
-                double maxVal = Double.NEGATIVE_INFINITY;
-                for (int k = 0; k < E; k++) {
-//                    double current = B[t-1][k] + transition[k][i] + probEoverF[rowIdx[i]][colIdx[t]];
-                    double current = B[t-1][k] + transition[i][k] + probEoverF[rowIdx[i]][colIdx[t]];
-                    if (maxVal < current) {
-                        maxVal = current;
-                        maxIdx = k;
-                    }
-                }
-                // update
-                B[t][i] = maxVal;
-//                System.out.println("MaxVal = " + maxVal + " maxIDx = " + maxIdx);
-                List<Integer> currentList = new ArrayList<>(V.get(t-1).get(maxIdx)); // copy, not reference
-//                System.out.println("Current List at (t-1)= " + (t-1) + " and i = " + i + " is " + currentList);
-//                currentList.add(rowIdx[i]);
-                currentList.add(i);
-                V.get(t).add(i, currentList);
-            }
-//            System.out.println("After step " + t + " the content of V = " + V);
-        }
-
-        // now backtracking
-        List<Integer> maxDecoded = new ArrayList<>();
-        for (int i = F-1; i >= 0; i--) {
-            maxDecoded.add(0, argmax(B, i));
-        }
-
-
-//        print2DArray(B, "backpointer");
-//        System.out.println(V);
-
-        return maxDecoded;
-    }
-
-
-    /**
-     * helper for viterbi, dealing with back pointer matrix with size T x N
-     * Usage: Back track for each time step from t = 0 => t = T-1
-     */
-    private int argmax(double[][] backPtr, int rowIdx) {
-        int maxIdx = 0;
-        double maxVal = Double.NEGATIVE_INFINITY;
-        for (int col = 0; col < backPtr[rowIdx].length; col++) {
-            if (maxVal < backPtr[rowIdx][col]) {
-                maxVal = backPtr[rowIdx][col];
-                maxIdx = col;
-            }
-        }
-        return maxIdx;
-    }
-
-
     private double[][][] calculateXi(double[][] alpha, double[][] beta) {
         int N = alpha.length;
         int T = alpha[0].length;
@@ -461,7 +347,7 @@ public class HMMForwardAligner implements WordAligner {
     // ======================= ALIGN NOW =============================
     @Override
     public Alignment alignSentencePair(SentencePair sentencePair) {
-        Alignment alignment = new Alignment();
+        Alignment alignment = new BitAlignment(sentencePair.getEnglishWords().size(), sentencePair.getFrenchWords().size());
         List<String> englishWords = sentencePair.getEnglishWords();
         List<String> frenchWords = sentencePair.getFrenchWords();
         int[] enIdx = new int[englishWords.size()];
@@ -473,16 +359,12 @@ public class HMMForwardAligner implements WordAligner {
         for (int i = 0; i < frenchWords.size(); i++) {
             frIdx[i] = frIndexer.indexOf(frenchWords.get(i).toLowerCase());
         }
-        // init sentence-wise variables
-        double[] prior = initPriorLog(englishWords.size());
-        double[][] transition = initTransitionMatrix(englishWords.size());
-
-        List<Integer> decoded = viterbiDecode(enIdx, frIdx, prior, transition);
+        int[] decoded = HMMViterbi.decode(probEoverF, jumpModel, enIdx, frIdx);
         System.out.println(print1DArray(enIdx));
         System.out.println(print1DArray(frIdx));
-        System.out.println(decoded);
+        System.out.println(Arrays.toString(decoded));
         for (int i = 0; i < frIdx.length; i++) {
-            alignment.addAlignment(decoded.get(i), i, true);
+            alignment.addAlignment(decoded[i], i, true);
         }
 
         return alignment;
@@ -534,15 +416,26 @@ public class HMMForwardAligner implements WordAligner {
         return s;
     }
 
-    public static StringIndexer getEnIndexer() {
+    public StringIndexer getEnIndexer() {
         return enIndexer;
     }
 
-    public static StringIndexer getFrIndexer() {
+    public StringIndexer getFrIndexer() {
         return frIndexer;
     }
 
-    public static double[][] getProbEoverF() {
+    /**
+     * Choose between the log space forward-backward (default) and the scaled linear space one
+     */
+    public void setScaledForwardBackward(boolean scaled) {
+        scaledForwardBackward = scaled;
+    }
+
+    public JumpTransitionModel getJumpModel() {
+        return jumpModel;
+    }
+
+    public SparseLogTranslationTable getProbEoverF() {
         return probEoverF;
     }
 }
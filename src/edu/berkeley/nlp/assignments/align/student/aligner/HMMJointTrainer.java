@@ -0,0 +1,85 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpus;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Trains the forward and the backward HMM together.
+ * Every EM iteration is a single pass over the corpus: each sentence is read once and the same int arrays
+ * are fed to both directional E-steps. With 2 or more threads the backward E-step of a block of sentences
+ * runs on a second thread while the calling thread does the forward one. Each direction still sees the
+ * sentences in corpus order, so the models are the same as with two separate trainings.
+ */
+public class HMMJointTrainer {
+
+    public static void train(IndexedCorpus corpus, final HMMForwardAligner fwd, final HMMBackwardAligner bwd, int numIterations,
+                             int numThreads, int blockSize) {
+        blockSize = Math.max(1, blockSize);
+        ExecutorService pool = numThreads < 2 ? null : Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hmm-backward");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        final int[][] enBlock = new int[blockSize][];
+        final int[][] frBlock = new int[blockSize][];
+        try {
+            for (int iter = 0; iter < numIterations; iter++) {
+                fwd.beginIteration(iter);
+                bwd.beginIteration(iter);
+                for (int start = 0; start < corpus.size(); start += blockSize) {
+                    final int n = Math.min(blockSize, corpus.size() - start);
+                    for (int b = 0; b < n; b++) {
+                        if ((start + b) % 1000 == 0)
+                            System.out.println((start + b) + " pairs processed");
+                        enBlock[b] = corpus.englishSentence(start + b);
+                        frBlock[b] = corpus.frenchSentence(start + b);
+                    }
+
+                    if (pool == null) {
+                        for (int b = 0; b < n; b++) {
+                            fwd.accumulate(enBlock[b], frBlock[b]);
+                            bwd.accumulate(enBlock[b], frBlock[b]);
+                        }
+                        continue;
+                    }
+                    Future<?> backward = pool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            for (int b = 0; b < n; b++)
+                                bwd.accumulate(enBlock[b], frBlock[b]);
+                            return null;
+                        }
+                    });
+                    for (int b = 0; b < n; b++)
+                        fwd.accumulate(enBlock[b], frBlock[b]);
+                    waitFor(backward);
+                }
+                fwd.endIteration();
+                bwd.endIteration();
+            }
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import edu.berkeley.nlp.assignments.align.student.util.SparseLogTranslationTable;
+
+/**
+ * Viterbi decoding for the HMM aligners.
+ * The chart keeps the best log score and an int backpointer per (time step, state), and the best path is
+ * read back by traceback from the best final state. Nothing is allocated per cell.
+ * Charts live in a per-thread workspace that only grows, so decoding from several threads is safe.
+ */
+class HMMViterbi {
+    private static final ThreadLocal<HMMViterbi> WORKSPACE = new ThreadLocal<HMMViterbi>() {
+        @Override
+        protected HMMViterbi initialValue() {
+            return new HMMViterbi();
+        }
+    };
+
+    private double[][] score = new double[0][0]; // [t][i] best log score of a path ending in state i at t
+    private int[][] back = new int[0][0]; // [t][i] previous state on that path
+
+    /**
+     * @param emissions log t(observation | state), looked up as emissions.get(obsIdx[t], stateIdx[i])
+     * @return for every observation t, the position of its state on the best path
+     */
+    static int[] decode(SparseLogTranslationTable emissions, JumpTransitionModel jumpModel, int[] stateIdx, int[] obsIdx) {
+        return WORKSPACE.get().run(emissions, jumpModel, stateIdx, obsIdx);
+    }
+
+    private int[] run(SparseLogTranslationTable emissions, JumpTransitionModel jumpModel, int[] stateIdx, int[] obsIdx) {
+        int N = stateIdx.length;
+        int T = obsIdx.length;
+        int[] path = new int[T];
+        if (T == 0 || N == 0) return path;
+        ensureCapacity(T, N);
+
+        double[] prior = jumpModel.logPrior(N);
+        double[][] transition = jumpModel.logMatrix(N); // [next][prev]
+
+        // base case
+        for (int i = 0; i < N; i++) {
+            score[0][i] = prior[i] + emissions.get(obsIdx[0], stateIdx[i]);
+        }
+
+        for (int t = 1; t < T; t++) {
+            double[] prev = score[t - 1];
+            for (int i = 0; i < N; i++) {
+                double[] into = transition[i];
+                int first = jumpModel.firstPrev(i);
+                int maxIdx = first;
+                double maxVal = Double.NEGATIVE_INFINITY;
+                for (int k = first; k <= jumpModel.lastPrev(i, N); k++) {
+                    double current = prev[k] + into[k];
+                    if (maxVal < current) {
+                        maxVal = current;
+                        maxIdx = k;
+                    }
+                }
+                score[t][i] = maxVal + emissions.get(obsIdx[t], stateIdx[i]);
+                back[t][i] = maxIdx;
+            }
+        }
+
+        // traceback
+        int best = 0;
+        for (int i = 1; i < N; i++) {
+            if (score[T - 1][best] < score[T - 1][i]) best = i;
+        }
+        for (int t = T - 1; t >= 0; t--) {
+            path[t] = best;
+            best = back[t][best];
+        }
+        return path;
+    }
+
+    private void ensureCapacity(int T, int N) {
+        if (score.length >= T && score[0].length >= N) return;
+        int rows = Math.max(T, score.length);
+        int cols = Math.max(N, score.length == 0 ? 0 : score[0].length);
+        score = new double[rows][cols];
+        back = new int[rows][cols];
+    }
+}
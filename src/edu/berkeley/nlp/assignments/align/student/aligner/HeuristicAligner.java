@@ -1,55 +1,88 @@
 package edu.berkeley.nlp.assignments.align.student.aligner;
 
+import edu.berkeley.nlp.assignments.align.student.AlignerOptions;
 import edu.berkeley.nlp.assignments.align.student.util.BitPackingUtility;
+import edu.berkeley.nlp.assignments.align.student.util.ConcurrentOffHeapLongIntOpenHashMap;
 import edu.berkeley.nlp.assignments.align.student.util.IntIntOpenHashMap;
-import edu.berkeley.nlp.assignments.align.student.util.LongIntOpenHashMap;
+import edu.berkeley.nlp.assignments.align.student.util.OffHeapLongIntOpenHashMap;
+import edu.berkeley.nlp.assignments.align.student.util.ParallelEMDriver;
 import edu.berkeley.nlp.mt.Alignment;
+import edu.berkeley.nlp.mt.BitAlignment;
 import edu.berkeley.nlp.mt.SentencePair;
 import edu.berkeley.nlp.mt.WordAligner;
 import edu.berkeley.nlp.util.StringIndexer;
 
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.util.Iterator;
 import java.util.List;
 
 /**
  * Created by Gorilla on 12/3/2016.
  */
-public class HeuristicAligner implements WordAligner{
-    private static StringIndexer wordIndexer = new StringIndexer();
-    private static IntIntOpenHashMap enCounter = new IntIntOpenHashMap(3000000);
-    private static IntIntOpenHashMap frCounter = new IntIntOpenHashMap(3000000);
-    private static LongIntOpenHashMap frEnCounter = new LongIntOpenHashMap(50000000);
+public class HeuristicAligner implements WordAligner, Closeable {
+    private StringIndexer wordIndexer = new StringIndexer();
+    private IntIntOpenHashMap enCounter = new IntIntOpenHashMap(1 << 20);
+    private IntIntOpenHashMap frCounter = new IntIntOpenHashMap(1 << 20);
+    // off-heap so the pair counts, the biggest table by far, stay out of the GC's way; freed by close()
+    private ConcurrentOffHeapLongIntOpenHashMap frEnCounter = new ConcurrentOffHeapLongIntOpenHashMap(1 << 24, AlignerOptions.numThreads); // grows as needed
 
-    public HeuristicAligner(Iterable<SentencePair> trainingData){
+    public HeuristicAligner(final Iterable<SentencePair> trainingData){
         System.out.println("Training for heuristic");
-        int pairCount = 0;
-        for (SentencePair pair: trainingData) {
-            pairCount++;
-            if (pairCount % 100000 == 0)
-                System.out.println(pairCount + " sentences loaded");
-            List<String> englishWords = pair.getEnglishWords();
-            List<String> frenchWords = pair.getFrenchWords();
-
-            List<Integer> enIdxList = new ArrayList<>();
-            for (String en: englishWords) {
-                // count word 'en'
-                int enIdx = wordIndexer.addAndGetIndex(en);
-                enCounter.increment(enIdx, 1);
-                enIdxList.add(enIdx);
+        // indexing and unigram counts happen on this thread while the driver cuts blocks,
+        // the pair counts (the bulk of the work) are added to the striped map by the worker threads
+        Iterable<int[][]> indexedData = new Iterable<int[][]>() {
+            @Override
+            public Iterator<int[][]> iterator() {
+                final Iterator<SentencePair> it = trainingData.iterator();
+                return new Iterator<int[][]>() {
+                    private int loaded = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public int[][] next() {
+                        if (++loaded % 100000 == 0)
+                            System.out.println(loaded + " sentences loaded");
+                        return indexAndCount(it.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
             }
+        };
 
-            for (String fr: frenchWords) {
-                // count word 'fr'
-                int frIdx = wordIndexer.addAndGetIndex(fr);
-                frCounter.increment(frIdx, 1);
+        ParallelEMDriver<int[][], ConcurrentOffHeapLongIntOpenHashMap> driver =
+                new ParallelEMDriver<>(AlignerOptions.numThreads, AlignerOptions.emBlockSize);
+        int pairCount = driver.run(indexedData, new ParallelEMDriver.Worker<int[][], ConcurrentOffHeapLongIntOpenHashMap>() {
+            @Override
+            public ConcurrentOffHeapLongIntOpenHashMap newAccumulator() {
+                return frEnCounter; // every block counts straight into the shared map
+            }
 
+            @Override
+            public void accumulate(int[][] pair, ConcurrentOffHeapLongIntOpenHashMap counter) {
                 // count number of pair fr-en
-                for (int enIdx: enIdxList) {
-                    long bigramPack = BitPackingUtility.bitPackingBigram(frIdx, enIdx);
-                    frEnCounter.increment(bigramPack, 1);
+                for (int frIdx : pair[1]) {
+                    for (int enIdx : pair[0]) {
+                        counter.increment(BitPackingUtility.bitPackingBigram(frIdx, enIdx), 1);
+                    }
                 }
             }
-        }
+
+            @Override
+            public void merge(ConcurrentOffHeapLongIntOpenHashMap counter) {
+                // nothing to do, integer counts do not depend on the order they were added in
+            }
+        });
+        driver.shutdown();
+        // the workers are done, alignment threads read the counts without taking the segment locks
+        frEnCounter.freeze();
         System.out.format("Training done with %d pair of sentences\n", pairCount);
         System.out.format("Size of enCounter=%d, frCounter=%d, frEnCounter=%d\n", enCounter.size(), frCounter.size(), frEnCounter.size());
 
@@ -59,10 +92,34 @@ public class HeuristicAligner implements WordAligner{
 //        debugBigramPackingLongIntOpenHashMap(frEnCounter);
     }
 
+    /**
+     * Constructor helper, runs on the training thread. Index the words of a pair and count them.
+     * @return {english indices, french indices}
+     */
+    private int[][] indexAndCount(SentencePair pair) {
+        List<String> englishWords = pair.getEnglishWords();
+        List<String> frenchWords = pair.getFrenchWords();
+
+        int[] enIdx = new int[englishWords.size()];
+        for (int i = 0; i < enIdx.length; i++) {
+            // count word 'en'
+            enIdx[i] = wordIndexer.addAndGetIndex(englishWords.get(i));
+            enCounter.increment(enIdx[i], 1);
+        }
+
+        int[] frIdx = new int[frenchWords.size()];
+        for (int j = 0; j < frIdx.length; j++) {
+            // count word 'fr'
+            frIdx[j] = wordIndexer.addAndGetIndex(frenchWords.get(j));
+            frCounter.increment(frIdx[j], 1);
+        }
+        return new int[][]{enIdx, frIdx};
+    }
+
     // most important method - will be called by tester
     @Override
     public Alignment alignSentencePair(SentencePair sentencePair) {
-        Alignment alignment = new Alignment();
+        Alignment alignment = new BitAlignment(sentencePair.getEnglishWords().size(), sentencePair.getFrenchWords().size());
         List<String> englishWords = sentencePair.getEnglishWords();
         List<String> frenchWords = sentencePair.getFrenchWords();
 
@@ -104,17 +161,27 @@ public class HeuristicAligner implements WordAligner{
         return maxAlignedPosition;
     }
 
+    /**
+     * Free the off-heap pair counts, the aligner cannot align any more afterwards
+     */
+    @Override
+    public void close() {
+        frEnCounter.close();
+    }
+
     // ==================== DEBUG ===============================
     private void debugIntIntOpenHashMap(IntIntOpenHashMap map){
         for (IntIntOpenHashMap.Entry entry: map.entrySet()) {
             System.out.format("Key=%s Val=%d\n", wordIndexer.get(entry.getKey()), entry.getValue());
         }
     }
-    private void debugBigramPackingLongIntOpenHashMap(LongIntOpenHashMap map) {
-        for (LongIntOpenHashMap.Entry entry: map.entrySet()) {
-            long key = entry.getKey();
-            int[] decoded = BitPackingUtility.bigramBitPackingDecode(key);
-            System.out.format("KeyPair= %s + %s Val=%d\n",wordIndexer.get(decoded[0]), wordIndexer.get(decoded[1]), entry.getValue());
-        }
+    private void debugBigramPackingLongIntOpenHashMap(ConcurrentOffHeapLongIntOpenHashMap map) {
+        map.forEach(new OffHeapLongIntOpenHashMap.EntryProcedure() {
+            @Override
+            public void apply(long key, int value) {
+                int[] decoded = BitPackingUtility.bigramBitPackingDecode(key);
+                System.out.format("KeyPair= %s + %s Val=%d\n",wordIndexer.get(decoded[0]), wordIndexer.get(decoded[1]), value);
+            }
+        });
     }
 }
@@ -0,0 +1,173 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import java.util.Arrays;
+
+/**
+ * HMM transition model parameterised by the jump width d = next - prev, as in Vogel et al. (1996).
+ * Each jump in [-MAX_JUMP, MAX_JUMP] has its own bucket, and longer jumps share the outermost bucket.
+ * p(next | prev) = w(d) / sum of w(next' - prev) over next', so a matrix only depends on the sentence length.
+ * It is built once per length and reused by every sentence of that length.
+ *
+ * Jumps whose weight is more than LOG_NEGLIGIBLE below the largest one get probability 0. They are outside
+ * the band [minJump, maxJump], and the forward, backward and Viterbi loops skip them
+ * (see firstPrev/lastPrev and firstNext/lastNext). Only sentences longer than the band are affected.
+ */
+public class JumpTransitionModel {
+    public static final int MAX_JUMP = 128;
+    // same cutoff as SloppyMath.logAdd, a term this far below the sum does not change it
+    static final double LOG_NEGLIGIBLE = 20.;
+    // matrices of longer sentences are built per call instead of being kept
+    private static final int CACHE_LIMIT = 256;
+
+    private final double[] jumpWeights = new double[2 * MAX_JUMP + 1]; // unnormalized w(d), index d + MAX_JUMP
+    private final int minJump;
+    private final int maxJump;
+
+    private final double[][][] logMatrices = new double[CACHE_LIMIT + 1][][];
+    private final double[][][] matrices = new double[CACHE_LIMIT + 1][][];
+    private final double[][] logPriors = new double[CACHE_LIMIT + 1][];
+
+    /**
+     * Jump weights from a Laplace density centered on mu with scale b (mu = 1 favours monotone alignments)
+     */
+    public static JumpTransitionModel laplace(double mu, double b) {
+        double[] weights = new double[2 * MAX_JUMP + 1];
+        for (int d = -MAX_JUMP; d <= MAX_JUMP; d++) {
+            weights[d + MAX_JUMP] = (Math.exp(-Math.abs((double) d - mu) / b)) / (2.0 * b);
+        }
+        return new JumpTransitionModel(weights);
+    }
+
+    public JumpTransitionModel(double[] jumpWeights) {
+        if (jumpWeights.length != this.jumpWeights.length)
+            throw new IllegalArgumentException("Expected " + this.jumpWeights.length + " jump weights, got " + jumpWeights.length);
+        System.arraycopy(jumpWeights, 0, this.jumpWeights, 0, jumpWeights.length);
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (double w : jumpWeights)
+            maxLogWeight = Math.max(maxLogWeight, Math.log(w));
+        int lo = MAX_JUMP, hi = -MAX_JUMP;
+        for (int d = -MAX_JUMP; d <= MAX_JUMP; d++) {
+            if (Math.log(jumpWeights[d + MAX_JUMP]) >= maxLogWeight - LOG_NEGLIGIBLE) {
+                lo = Math.min(lo, d);
+                hi = Math.max(hi, d);
+            }
+        }
+        // the outermost buckets also stand for every longer jump, if they count the band is open on that side
+        minJump = lo == -MAX_JUMP ? Integer.MIN_VALUE / 2 : lo;
+        maxJump = hi == MAX_JUMP ? Integer.MAX_VALUE / 2 : hi;
+    }
+
+    /**
+     * @return a copy of the unnormalized jump weights w(d), index d + MAX_JUMP, to rebuild the model with
+     */
+    public double[] getJumpWeights() {
+        return jumpWeights.clone();
+    }
+
+    /**
+     * log p(next | prev) for a sentence of the given length, indexed [next][prev]. Shared, do not modify
+     */
+    public double[][] logMatrix(int size) {
+        if (size > CACHE_LIMIT) return buildLogMatrix(size);
+        synchronized (logMatrices) {
+            if (logMatrices[size] == null) logMatrices[size] = buildLogMatrix(size);
+            return logMatrices[size];
+        }
+    }
+
+    /**
+     * p(next | prev) in linear space, for ScaledForwardBackward. Shared, do not modify
+     */
+    public double[][] matrix(int size) {
+        if (size > CACHE_LIMIT) return exp(logMatrix(size));
+        synchronized (matrices) {
+            if (matrices[size] == null) matrices[size] = exp(logMatrix(size));
+            return matrices[size];
+        }
+    }
+
+    /**
+     * Uniform log prior over the first state of a sentence of the given length. Shared, do not modify
+     */
+    public double[] logPrior(int size) {
+        if (size > CACHE_LIMIT) return buildLogPrior(size);
+        synchronized (logPriors) {
+            if (logPriors[size] == null) logPriors[size] = buildLogPrior(size);
+            return logPriors[size];
+        }
+    }
+
+    /**
+     * Range of previous states with a non-zero transition into next, inclusive
+     */
+    public int firstPrev(int next) {
+        return Math.max(0, next - maxJump);
+    }
+
+    public int lastPrev(int next, int size) {
+        return Math.min(size - 1, next - minJump);
+    }
+
+    /**
+     * Range of next states with a non-zero transition out of prev, inclusive
+     */
+    public int firstNext(int prev) {
+        return Math.max(0, prev + minJump);
+    }
+
+    public int lastNext(int prev, int size) {
+        return Math.min(size - 1, prev + maxJump);
+    }
+
+    private boolean inBand(int d) {
+        return d >= minJump && d <= maxJump;
+    }
+
+    private double jumpWeight(int d) {
+        return jumpWeights[Math.max(-MAX_JUMP, Math.min(MAX_JUMP, d)) + MAX_JUMP];
+    }
+
+    private double[][] buildLogMatrix(int size) {
+        double[][] T = new double[size][size];
+        for (int next = 0; next < size; next++) {
+            for (int prev = 0; prev < size; prev++) {
+                int d = next - prev;
+                T[next][prev] = inBand(d) ? jumpWeight(d) : 0.;
+            }
+        }
+
+        // normalize over the next state
+        for (int prev = 0; prev < size; prev++) {
+            double colSum = 0;
+            for (int next = 0; next < size; next++) {
+                colSum += T[next][prev];
+            }
+            for (int next = 0; next < size; next++) {
+                T[next][prev] /= colSum;
+            }
+        }
+
+        for (int i = 0; i < size; i++)
+            for (int j = 0; j < size; j++)
+                T[i][j] = Math.log(T[i][j]);
+
+        return T;
+    }
+
+    private static double[][] exp(double[][] logMatrix) {
+        double[][] T = new double[logMatrix.length][];
+        for (int i = 0; i < logMatrix.length; i++) {
+            T[i] = new double[logMatrix[i].length];
+            for (int j = 0; j < logMatrix[i].length; j++)
+                T[i][j] = Math.exp(logMatrix[i][j]);
+        }
+        return T;
+    }
+
+    private double[] buildLogPrior(int size) {
+        double[] P = new double[size];
+        Arrays.fill(P, Math.log(1 / (double) size));
+        return P;
+    }
+}
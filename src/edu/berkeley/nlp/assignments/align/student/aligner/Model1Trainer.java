@@ -0,0 +1,207 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpus;
+import edu.berkeley.nlp.assignments.align.student.util.PairCountAccumulator;
+import edu.berkeley.nlp.assignments.align.student.util.ParallelEMDriver;
+import edu.berkeley.nlp.assignments.align.student.util.SparseTranslationTable;
+
+import java.util.Iterator;
+
+/**
+ * EM training of one direction of IBM Model 1, t(word | given), on an integer corpus that reserves the NULL word.
+ * The E-step runs through ParallelEMDriver: every block of sentences collects its expected counts in its own shard,
+ * and the shards are added into the SparseTranslationTable in corpus order, so the table is the same for any
+ * number of threads. The corpus and the sentence scratch belong to the trainer, not to the trained table.
+ */
+public class Model1Trainer {
+
+    private final IndexedCorpus corpus;
+    // forward t(f|e) if false: the words are french and the given side is english plus NULL
+    private final boolean englishGivenFrench;
+    private final SparseTranslationTable table;
+
+    private Model1Trainer(IndexedCorpus corpus, boolean englishGivenFrench) {
+        if (!corpus.reservesNullWord()) throw new IllegalArgumentException("Model 1 needs the NULL word at index 0");
+        this.corpus = corpus;
+        this.englishGivenFrench = englishGivenFrench;
+        table = new SparseTranslationTable(givenIndexerSize());
+    }
+
+    /**
+     * @param englishGivenFrench true for t(e|f), false for t(f|e)
+     * @return t(word | given) after numIterations EM iterations, or fewer once the change of t() drops below delta
+     */
+    public static SparseTranslationTable train(IndexedCorpus corpus, boolean englishGivenFrench, int numIterations, double delta,
+                                               int numThreads, int blockSize) {
+        Model1Trainer trainer = new Model1Trainer(corpus, englishGivenFrench);
+        trainer.run(numIterations, delta, numThreads, blockSize);
+        return trainer.table;
+    }
+
+    private void run(int numIterations, double delta, int numThreads, int blockSize) {
+        String direction = englishGivenFrench ? "BACKWARD" : "FORWARD";
+        initialize();
+        ParallelEMDriver<Integer, Shard> driver = new ParallelEMDriver<>(numThreads, blockSize);
+        try {
+            int iter = 0;
+            double loss = 1.0;
+            while ((iter < numIterations) && (loss > delta)) {
+                System.out.println("\n-----------------\n" + direction + " Iteration " + iter + "\n-----------------\n");
+                int count = driver.run(sentenceIndices(), new ParallelEMDriver.Worker<Integer, Shard>() {
+                    @Override
+                    public Shard newAccumulator() {
+                        return new Shard();
+                    }
+
+                    @Override
+                    public void accumulate(Integer s, Shard shard) {
+                        accumulateSentence(s, shard);
+                    }
+
+                    @Override
+                    public void merge(Shard shard) {
+                        shard.counts.mergeInto(table);
+                    }
+                });
+                System.out.println(count + " pairs processed");
+
+                System.out.println("Reupdating t() over " + table.size() + " co-occurring pairs");
+                // normalizing loss, still over the full vocab^2 so the convergence criterion is unchanged
+                loss = table.maximize() / ((double) corpus.getEnIndexer().size() * corpus.getFrIndexer().size());
+                iter++;
+            }
+        } finally {
+            driver.shutdown();
+        }
+    }
+
+    /**
+     * Uniform t() for every co-occurring pair, set before the first E-step so the workers only read the table
+     */
+    private void initialize() {
+        float uniform = (float) (1. / wordIndexerSize());
+        for (int s = 0; s < corpus.size(); s++) {
+            int numWords = wordLength(s);
+            int numGiven = givenLength(s) + 1;
+            for (int j = 0; j < numWords; j++) {
+                int word = word(s, j);
+                for (int i = 0; i < numGiven; i++)
+                    table.set(word, given(s, i), uniform);
+            }
+        }
+    }
+
+    /**
+     * E-step of sentence s: expected count of every (word, NULL + given side) pair into the shard
+     */
+    private void accumulateSentence(int s, Shard shard) {
+        int numWords = wordLength(s);
+        int numGiven = givenLength(s) + 1; // position 0 is the NULL token
+        shard.ensureCapacity(numWords, numGiven);
+        float[] probs = shard.sentenceProbs;
+        double[] totals = shard.sentenceTotals;
+        int[] firstOccurrence = shard.firstOccurrence;
+        for (int j = 0; j < numWords; j++) {
+            int word = word(s, j);
+            int first = firstOccurrenceOf(word, j, s);
+            firstOccurrence[j] = first;
+            if (first == j) totals[j] = 0;
+            for (int i = 0; i < numGiven; i++) {
+                float t = (float) table.get(word, given(s, i));
+                probs[j * numGiven + i] = t;
+                totals[first] += t; // repeated words share the normalizer
+            }
+        }
+        for (int j = 0; j < numWords; j++) {
+            int word = word(s, j);
+            double total = totals[firstOccurrence[j]];
+            for (int i = 0; i < numGiven; i++)
+                shard.counts.increment(word, given(s, i), probs[j * numGiven + i] / total);
+        }
+    }
+
+    /**
+     * First position (< pos) of the same word in sentence s, or pos itself
+     */
+    private int firstOccurrenceOf(int word, int pos, int s) {
+        for (int k = 0; k < pos; k++) {
+            if (word(s, k) == word) return k;
+        }
+        return pos;
+    }
+
+    // the two sides of a sentence, seen from the trained direction
+
+    private int word(int s, int j) {
+        return englishGivenFrench ? corpus.englishWord(s, j) : corpus.frenchWord(s, j);
+    }
+
+    /**
+     * @param i 0 for NULL, else 1 + position on the given side
+     */
+    private int given(int s, int i) {
+        if (i == 0) return IndexedCorpus.NULL_INDEX;
+        return englishGivenFrench ? corpus.frenchWord(s, i - 1) : corpus.englishWord(s, i - 1);
+    }
+
+    private int wordLength(int s) {
+        return englishGivenFrench ? corpus.englishLength(s) : corpus.frenchLength(s);
+    }
+
+    private int givenLength(int s) {
+        return englishGivenFrench ? corpus.frenchLength(s) : corpus.englishLength(s);
+    }
+
+    private int wordIndexerSize() {
+        return englishGivenFrench ? corpus.getEnIndexer().size() : corpus.getFrIndexer().size();
+    }
+
+    private int givenIndexerSize() {
+        return englishGivenFrench ? corpus.getFrIndexer().size() : corpus.getEnIndexer().size();
+    }
+
+    private Iterable<Integer> sentenceIndices() {
+        return new Iterable<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < corpus.size();
+                    }
+
+                    @Override
+                    public Integer next() {
+                        return next++;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Counts of one block, with the sentence scratch of the thread that fills it
+     */
+    private static class Shard {
+        final PairCountAccumulator counts = new PairCountAccumulator();
+        // t() of every (word, NULL + given side) pair of the sentence and the per-word normalizers
+        float[] sentenceProbs = new float[0];
+        double[] sentenceTotals = new double[0];
+        int[] firstOccurrence = new int[0];
+
+        void ensureCapacity(int numWords, int numGiven) {
+            if (sentenceProbs.length < numWords * numGiven) sentenceProbs = new float[numWords * numGiven];
+            if (sentenceTotals.length < numWords) {
+                sentenceTotals = new double[numWords];
+                firstOccurrence = new int[numWords];
+            }
+        }
+    }
+}
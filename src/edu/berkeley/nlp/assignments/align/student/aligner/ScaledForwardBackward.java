@@ -0,0 +1,126 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+/**
+ * Forward-backward in linear space with one scaling factor per time step (Rabiner 1989, section V.A).
+ * alpha[t] is normalized to sum to 1 and beta[t] is divided by the same factor, so gamma = alpha * beta
+ * needs no further normalization and the log-likelihood is the sum of the log factors.
+ * This needs one multiply-add per inner-loop cell instead of the exp/log of SloppyMath.logAdd.
+ *
+ * The alpha/beta/gamma/emission buffers are allocated once for the longest sentence and reused.
+ * An instance is not thread safe, each aligner direction keeps its own.
+ */
+public class ScaledForwardBackward {
+    private final JumpTransitionModel jumpModel;
+    private final int maxStates;
+    private final int maxSteps;
+
+    private final double[][] emission; // [t][i] = p(observation t | state i)
+    private final double[][] alpha;
+    private final double[][] beta;
+    private final double[][] gamma;
+    private final double[] scale;
+    private double logLikelihood;
+
+    public ScaledForwardBackward(JumpTransitionModel jumpModel, int maxStates, int maxSteps) {
+        this.jumpModel = jumpModel;
+        this.maxStates = maxStates;
+        this.maxSteps = maxSteps;
+        emission = new double[maxSteps][maxStates];
+        alpha = new double[maxSteps][maxStates];
+        beta = new double[maxSteps][maxStates];
+        gamma = new double[maxSteps][maxStates];
+        scale = new double[maxSteps];
+    }
+
+    /**
+     * Buffer for the emissions of the next run(), in linear space. Only [0, T) x [0, N) is read
+     */
+    public double[][] emission() {
+        return emission;
+    }
+
+    /**
+     * Run forward-backward over T observations and N states, emission() must be filled first.
+     *
+     * @return false if every path underflowed at some step (all scaled alphas are 0). The posteriors are
+     * meaningless then and the caller should fall back to the log space kernel for this sentence
+     */
+    public boolean run(int T, int N) {
+        if (T > maxSteps || N > maxStates)
+            throw new IllegalArgumentException("Sentence of " + T + " x " + N + " exceeds workspace " + maxSteps + " x " + maxStates);
+        if (T == 0 || N == 0) {
+            logLikelihood = 0.;
+            return true;
+        }
+        double[][] transition = jumpModel.matrix(N); // [next][prev]
+        double prior = 1 / (double) N;
+
+        // forward
+        double sum = 0.;
+        for (int i = 0; i < N; i++) {
+            alpha[0][i] = prior * emission[0][i];
+            sum += alpha[0][i];
+        }
+        if (!rescale(alpha[0], N, sum, 0)) return false;
+        for (int t = 1; t < T; t++) {
+            double[] prev = alpha[t - 1];
+            sum = 0.;
+            for (int i = 0; i < N; i++) {
+                double[] into = transition[i];
+                double s = 0.;
+                for (int k = jumpModel.firstPrev(i); k <= jumpModel.lastPrev(i, N); k++) {
+                    s += prev[k] * into[k];
+                }
+                alpha[t][i] = emission[t][i] * s;
+                sum += alpha[t][i];
+            }
+            if (!rescale(alpha[t], N, sum, t)) return false;
+        }
+
+        // backward, scaled by the forward factors
+        for (int i = 0; i < N; i++) {
+            beta[T - 1][i] = 1.;
+        }
+        for (int t = T - 2; t >= 0; t--) {
+            double[] next = beta[t + 1];
+            double[] em = emission[t + 1];
+            double c = scale[t + 1];
+            for (int i = 0; i < N; i++) {
+                double s = 0.;
+                for (int k = jumpModel.firstNext(i); k <= jumpModel.lastNext(i, N); k++) {
+                    s += transition[k][i] * em[k] * next[k];
+                }
+                beta[t][i] = s / c;
+            }
+        }
+
+        logLikelihood = 0.;
+        for (int t = 0; t < T; t++) {
+            logLikelihood += Math.log(scale[t]);
+            for (int i = 0; i < N; i++) {
+                gamma[t][i] = alpha[t][i] * beta[t][i];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * gamma[t][i] = p(state i at t | observations) of the last run(), valid for [0, T) x [0, N)
+     */
+    public double[][] posteriors() {
+        return gamma;
+    }
+
+    public double logLikelihood() {
+        return logLikelihood;
+    }
+
+    private boolean rescale(double[] row, int N, double sum, int t) {
+        if (!(sum > 0.)) return false;
+        scale[t] = sum;
+        for (int i = 0; i < N; i++) {
+            row[i] /= sum;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+package edu.berkeley.nlp.assignments.align.student.aligner;
+
+import edu.berkeley.nlp.mt.Alignment;
+import edu.berkeley.nlp.mt.BitAlignment;
+
+import java.util.Arrays;
+
+/**
+ * Combines the two directional Viterbi alignments of a sentence pair into one alignment, as in Koehn et al. (2003).
+ * The directional alignments are plain arrays, so a link of the union is tested in O(1) without building it:
+ * (e, f) is in the union iff enOfFr[f] == e or frOfEn[e] == f. The grow step keeps a worklist of the links it has
+ * added and only looks at their 8 neighbours; every link it adds aligns a new word, so there are at most
+ * numEn + numFr of them and the whole step is linear.
+ * The per-sentence scratch lives in a per-thread workspace, only the returned BitAlignment is allocated.
+ */
+public class Symmetrizer {
+
+    public enum Heuristic {
+        /** links of both directions, high precision */
+        INTERSECTION,
+        /** links of either direction, high recall */
+        UNION,
+        /** intersection, grown with neighbouring (diagonals included) union links that align a new word */
+        GROW_DIAG,
+        /** GROW_DIAG, then every union link that aligns a still unaligned english or french word */
+        GROW_DIAG_FINAL,
+        /** GROW_DIAG, then every union link whose english and french words are both unaligned */
+        GROW_DIAG_FINAL_AND
+    }
+
+    private static final ThreadLocal<Symmetrizer> WORKSPACE = new ThreadLocal<Symmetrizer>() {
+        @Override
+        protected Symmetrizer initialValue() {
+            return new Symmetrizer();
+        }
+    };
+
+    private boolean[] enAligned = new boolean[0];
+    private boolean[] frAligned = new boolean[0];
+    // grow-diag worklist, links (queueEn[i], queueFr[i]) whose neighbours are still to be looked at
+    private int[] queueEn = new int[0];
+    private int[] queueFr = new int[0];
+    private int queueEnd;
+
+    /**
+     * @param enOfFr forward (french given english) alignment: english position of every french position, -1 for NULL
+     * @param frOfEn backward (english given french) alignment: french position of every english position, -1 for NULL
+     */
+    public static Alignment symmetrize(int[] enOfFr, int[] frOfEn, Heuristic heuristic) {
+        return WORKSPACE.get().run(enOfFr, frOfEn, heuristic);
+    }
+
+    private Alignment run(int[] enOfFr, int[] frOfEn, Heuristic heuristic) {
+        int numFr = enOfFr.length;
+        int numEn = frOfEn.length;
+        BitAlignment alignment = new BitAlignment(numEn, numFr);
+
+        if (heuristic == Heuristic.UNION) {
+            for (int f = 0; f < numFr; f++)
+                alignment.addAlignment(enOfFr[f], f, true);
+            for (int e = 0; e < numEn; e++)
+                alignment.addAlignment(e, frOfEn[e], true);
+            return alignment;
+        }
+
+        if (enAligned.length < numEn) enAligned = new boolean[numEn];
+        if (frAligned.length < numFr) frAligned = new boolean[numFr];
+        Arrays.fill(enAligned, 0, numEn, false);
+        Arrays.fill(frAligned, 0, numFr, false);
+        if (queueEn.length < numEn + numFr) {
+            queueEn = new int[numEn + numFr];
+            queueFr = new int[numEn + numFr];
+        }
+        queueEnd = 0;
+
+        // intersection
+        for (int f = 0; f < numFr; f++) {
+            int e = enOfFr[f];
+            if (e >= 0 && e < numEn && frOfEn[e] == f) add(alignment, e, f);
+        }
+        if (heuristic == Heuristic.INTERSECTION) return alignment;
+
+        // grow-diag: add the union links next to an aligned link, the ones added are looked at in turn
+        for (int i = 0; i < queueEnd; i++)
+            growAround(alignment, enOfFr, frOfEn, queueEn[i], queueFr[i]);
+        if (heuristic == Heuristic.GROW_DIAG) return alignment;
+
+        // final: forward links first, then backward links
+        boolean and = heuristic == Heuristic.GROW_DIAG_FINAL_AND;
+        for (int f = 0; f < numFr; f++)
+            addIfUnaligned(alignment, enOfFr[f], f, numEn, numFr, and);
+        for (int e = 0; e < numEn; e++)
+            addIfUnaligned(alignment, e, frOfEn[e], numEn, numFr, and);
+        return alignment;
+    }
+
+    /**
+     * Add the link (e, f) and queue it for the grow step. Every caller only adds links that align a new word.
+     */
+    private void add(BitAlignment alignment, int e, int f) {
+        alignment.addAlignment(e, f, true);
+        enAligned[e] = true;
+        frAligned[f] = true;
+        queueEn[queueEnd] = e;
+        queueFr[queueEnd] = f;
+        queueEnd++;
+    }
+
+    /**
+     * Add each of the 8 neighbours of the aligned link (e, f) which is a union link and aligns a new word
+     */
+    private void growAround(BitAlignment alignment, int[] enOfFr, int[] frOfEn, int e, int f) {
+        for (int de = -1; de <= 1; de++) {
+            for (int df = -1; df <= 1; df++) {
+                int ne = e + de, nf = f + df;
+                if (ne < 0 || nf < 0 || ne >= frOfEn.length || nf >= enOfFr.length) continue;
+                if (enAligned[ne] && frAligned[nf]) continue; // also skips the links already added
+                if (enOfFr[nf] == ne || frOfEn[ne] == nf) add(alignment, ne, nf);
+            }
+        }
+    }
+
+    private void addIfUnaligned(BitAlignment alignment, int e, int f, int numEn, int numFr, boolean both) {
+        if (e < 0 || f < 0 || e >= numEn || f >= numFr) return; // NULL
+        boolean unaligned = both ? !enAligned[e] && !frAligned[f] : !enAligned[e] || !frAligned[f];
+        if (unaligned) add(alignment, e, f);
+    }
+}
@@ -0,0 +1,193 @@
+package edu.berkeley.nlp.assignments.align.student.corpus;
+
+import edu.berkeley.nlp.mt.SentencePair;
+import edu.berkeley.nlp.util.StringIndexer;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Integer version of a parallel corpus, built by one indexing pass over the SentencePairs.
+ * Each side is a flat int[] of (lowercased) word indices plus an offset array, so sentence s of the
+ * English side is enTokens[enOffsets[s] .. enOffsets[s+1]).
+ * EM iterations walk this instead of the Strings: no toLowerCase(), no hashing, no boxing per token.
+ * The int data sits in IntBuffers, either on the heap or memory-mapped from a corpus file (see IndexedCorpusIO).
+ */
+public class IndexedCorpus {
+    public static final String NULL_WORD = "null";
+    public static final int NULL_INDEX = 0; // index of NULL_WORD when it is reserved
+
+    private final StringIndexer enIndexer;
+    private final StringIndexer frIndexer;
+
+    private final boolean reserveNullWord;
+    private IntBuffer enTokens;
+    private IntBuffer frTokens;
+    private IntBuffer enOffsets;
+    private IntBuffer frOffsets;
+    private int numSentences = 0;
+    private int maxEnglishLen = 0;
+    private int maxFrenchLen = 0;
+
+    public IndexedCorpus(Iterable<SentencePair> data) {
+        this(data, false);
+    }
+
+    /**
+     * @param reserveNullWord if true, NULL_WORD gets index 0 on both sides before the corpus is indexed
+     */
+    public IndexedCorpus(Iterable<SentencePair> data, boolean reserveNullWord) {
+        this.reserveNullWord = reserveNullWord;
+        enIndexer = new StringIndexer();
+        frIndexer = new StringIndexer();
+        if (reserveNullWord) {
+            enIndexer.add(NULL_WORD);
+            frIndexer.add(NULL_WORD);
+        }
+
+        int[] enTokens = new int[1024];
+        int[] frTokens = new int[1024];
+        int[] enOffsets = new int[1024];
+        int[] frOffsets = new int[1024];
+        int enSize = 0;
+        int frSize = 0;
+        for (SentencePair pair : data) {
+            if (numSentences % 1000 == 0) System.out.println(numSentences + " sentences loaded");
+            List<String> englishWords = pair.getEnglishWords();
+            List<String> frenchWords = pair.getFrenchWords();
+            if (maxEnglishLen < englishWords.size()) maxEnglishLen = englishWords.size();
+            if (maxFrenchLen < frenchWords.size()) maxFrenchLen = frenchWords.size();
+
+            if (numSentences + 2 > enOffsets.length) {
+                enOffsets = Arrays.copyOf(enOffsets, enOffsets.length * 2);
+                frOffsets = Arrays.copyOf(frOffsets, frOffsets.length * 2);
+            }
+            if (enSize + englishWords.size() > enTokens.length)
+                enTokens = Arrays.copyOf(enTokens, Math.max(enTokens.length * 2, enSize + englishWords.size()));
+            if (frSize + frenchWords.size() > frTokens.length)
+                frTokens = Arrays.copyOf(frTokens, Math.max(frTokens.length * 2, frSize + frenchWords.size()));
+
+            for (String en : englishWords) enTokens[enSize++] = enIndexer.addAndGetIndex(en.toLowerCase());
+            for (String fr : frenchWords) frTokens[frSize++] = frIndexer.addAndGetIndex(fr.toLowerCase());
+            numSentences++;
+            enOffsets[numSentences] = enSize;
+            frOffsets[numSentences] = frSize;
+        }
+        this.enTokens = IntBuffer.wrap(enTokens, 0, enSize).slice();
+        this.frTokens = IntBuffer.wrap(frTokens, 0, frSize).slice();
+        this.enOffsets = IntBuffer.wrap(enOffsets, 0, numSentences + 1).slice();
+        this.frOffsets = IntBuffer.wrap(frOffsets, 0, numSentences + 1).slice();
+
+        System.out.println("Size of FR vocab is " + frIndexer.size() + " size of EN vocab is " + enIndexer.size());
+        System.out.println("Max ENG sentence length is " + maxEnglishLen + " and for FR is " + maxFrenchLen);
+        System.out.println("Indexed " + numSentences + " sentence pairs, " + enSize + " EN and " + frSize + " FR tokens");
+    }
+
+    /**
+     * Wraps already indexed data, used when reading a corpus file
+     */
+    IndexedCorpus(StringIndexer enIndexer, StringIndexer frIndexer, boolean reserveNullWord, IntBuffer enTokens, IntBuffer frTokens,
+                  IntBuffer enOffsets, IntBuffer frOffsets, int maxEnglishLen, int maxFrenchLen) {
+        this.enIndexer = enIndexer;
+        this.frIndexer = frIndexer;
+        this.reserveNullWord = reserveNullWord;
+        this.enTokens = enTokens;
+        this.frTokens = frTokens;
+        this.enOffsets = enOffsets;
+        this.frOffsets = frOffsets;
+        this.numSentences = enOffsets.limit() - 1;
+        this.maxEnglishLen = maxEnglishLen;
+        this.maxFrenchLen = maxFrenchLen;
+    }
+
+    public int size() {
+        return numSentences;
+    }
+
+    public int englishLength(int s) {
+        return enOffsets.get(s + 1) - enOffsets.get(s);
+    }
+
+    public int frenchLength(int s) {
+        return frOffsets.get(s + 1) - frOffsets.get(s);
+    }
+
+    public int englishWord(int s, int i) {
+        return enTokens.get(enOffsets.get(s) + i);
+    }
+
+    public int frenchWord(int s, int i) {
+        return frTokens.get(frOffsets.get(s) + i);
+    }
+
+    /**
+     * @return a copy of the word indices of English sentence s
+     */
+    public int[] englishSentence(int s) {
+        return copySentence(enTokens, enOffsets, s);
+    }
+
+    /**
+     * @return a copy of the word indices of French sentence s
+     */
+    public int[] frenchSentence(int s) {
+        return copySentence(frTokens, frOffsets, s);
+    }
+
+    private static int[] copySentence(IntBuffer tokens, IntBuffer offsets, int s) {
+        int start = offsets.get(s);
+        int[] sentence = new int[offsets.get(s + 1) - start];
+        for (int i = 0; i < sentence.length; i++)
+            sentence[i] = tokens.get(start + i);
+        return sentence;
+    }
+
+    /**
+     * @return index of an English word as the aligners see it (lowercased), -1 if unseen
+     */
+    public int indexEnglish(String word) {
+        return enIndexer.indexOf(word.toLowerCase());
+    }
+
+    public int indexFrench(String word) {
+        return frIndexer.indexOf(word.toLowerCase());
+    }
+
+    public StringIndexer getEnIndexer() {
+        return enIndexer;
+    }
+
+    public StringIndexer getFrIndexer() {
+        return frIndexer;
+    }
+
+    public int getMaxEnglishLen() {
+        return maxEnglishLen;
+    }
+
+    public int getMaxFrenchLen() {
+        return maxFrenchLen;
+    }
+
+    public boolean reservesNullWord() {
+        return reserveNullWord;
+    }
+
+    // raw sections, for IndexedCorpusIO
+    IntBuffer englishTokenBuffer() {
+        return enTokens.duplicate();
+    }
+
+    IntBuffer frenchTokenBuffer() {
+        return frTokens.duplicate();
+    }
+
+    IntBuffer englishOffsetBuffer() {
+        return enOffsets.duplicate();
+    }
+
+    IntBuffer frenchOffsetBuffer() {
+        return frOffsets.duplicate();
+    }
+}
@@ -0,0 +1,218 @@
+package edu.berkeley.nlp.assignments.align.student.corpus;
+
+import edu.berkeley.nlp.mt.SentencePair;
+import edu.berkeley.nlp.util.StringIndexer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Binary file format for an IndexedCorpus, read back through FileChannel.map so the token data is
+ * never copied onto the heap: a run over a cached corpus only keeps the two vocabularies in memory
+ * and pages the ints in from the page cache.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header    magic, version, reserveNull (0/1), numSentences, dataHash (long), numEnTokens, numFrTokens, maxEnLen, maxFrLen, vocabBytes
+ * vocab     EN size + words, FR size + words (DataOutput.writeUTF), vocabBytes long
+ * ints      enOffsets[numSentences+1], frOffsets[numSentences+1], enTokens[numEnTokens], frTokens[numFrTokens]
+ * </pre>
+ * Every int section is mapped on its own, so one side may hold up to 2^29 tokens.
+ * numSentences and dataHash fingerprint the training data the file was built from, see fingerprint().
+ */
+public class IndexedCorpusIO {
+    private static final int MAGIC = 0x414c4743; // "ALGC"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 9 * 4 + 8;
+
+    /**
+     * Loads the corpus from cacheFile if it is there and was built from the same data with the same NULL setting,
+     * otherwise indexes the data and writes the cache for the next run.
+     * Checking the cache costs one pass over the data that only hashes the words, see fingerprint().
+     * @param cacheFile may be null, then the corpus is just indexed in memory
+     */
+    public static IndexedCorpus loadOrBuild(String cacheFile, Iterable<SentencePair> data, boolean reserveNullWord) {
+        if (cacheFile == null) return new IndexedCorpus(data, reserveNullWord);
+        // IBM Model 1 and the HMM index differently, keep one file for each
+        File file = new File(reserveNullWord ? cacheFile + ".null" : cacheFile);
+        try {
+            long[] fingerprint = fingerprint(data);
+            if (file.exists()) {
+                if (matches(file, reserveNullWord, fingerprint)) {
+                    System.out.println("Reading indexed corpus from " + file);
+                    return read(file);
+                }
+                System.out.println(file + " was built from other training data, indexing again");
+            }
+            IndexedCorpus corpus = new IndexedCorpus(data, reserveNullWord);
+            System.out.println("Writing indexed corpus to " + file);
+            write(corpus, fingerprint[1], file);
+            return corpus;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return {number of sentence pairs, 64 bit FNV-1a hash of the words as they are in the data, before lowercasing}
+     */
+    public static long[] fingerprint(Iterable<SentencePair> data) {
+        long numSentences = 0;
+        long hash = 0xcbf29ce484222325L;
+        for (SentencePair pair : data) {
+            hash = hashWords(pair.getEnglishWords(), hash);
+            hash = hashWords(pair.getFrenchWords(), hash);
+            numSentences++;
+        }
+        return new long[]{numSentences, hash};
+    }
+
+    private static long hashWords(List<String> words, long hash) {
+        // the length goes first so that moving a word to the other side or the next sentence changes the hash
+        hash = (hash ^ words.size()) * 0x100000001b3L;
+        for (String word : words) {
+            for (int i = 0; i < word.length(); i++)
+                hash = (hash ^ word.charAt(i)) * 0x100000001b3L;
+            hash = (hash ^ 0xffff) * 0x100000001b3L; // not a char value, ends the word
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if file is a corpus file of the current version built from data with this fingerprint
+     */
+    private static boolean matches(File file, boolean reserveNullWord, long[] fingerprint) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return file.length() >= HEADER_BYTES
+                    && in.readInt() == MAGIC
+                    && in.readInt() == VERSION
+                    && in.readInt() == (reserveNullWord ? 1 : 0)
+                    && in.readInt() == fingerprint[0]
+                    && in.readLong() == fingerprint[1];
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes to a temporary file next to file and renames it into place, so an interrupted run never leaves
+     * a truncated corpus file behind
+     * @param dataHash second element of the fingerprint() of the data the corpus was indexed from
+     */
+    public static void write(IndexedCorpus corpus, long dataHash, File file) throws IOException {
+        // vocab goes first into memory so that its length can go into the header
+        ByteArrayOutputStream vocabBytes = new ByteArrayOutputStream();
+        DataOutputStream vocabOut = new DataOutputStream(vocabBytes);
+        writeVocab(corpus.getEnIndexer(), vocabOut);
+        writeVocab(corpus.getFrIndexer(), vocabOut);
+        vocabOut.flush();
+
+        IntBuffer enTokens = corpus.englishTokenBuffer();
+        IntBuffer frTokens = corpus.frenchTokenBuffer();
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        boolean done = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(corpus.reservesNullWord() ? 1 : 0);
+            out.writeInt(corpus.size());
+            out.writeLong(dataHash);
+            out.writeInt(enTokens.remaining());
+            out.writeInt(frTokens.remaining());
+            out.writeInt(corpus.getMaxEnglishLen());
+            out.writeInt(corpus.getMaxFrenchLen());
+            out.writeInt(vocabBytes.size());
+            vocabBytes.writeTo(out);
+            writeInts(corpus.englishOffsetBuffer(), out);
+            writeInts(corpus.frenchOffsetBuffer(), out);
+            writeInts(enTokens, out);
+            writeInts(frTokens, out);
+            out.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            out.close();
+            if (!done) tmp.delete();
+        }
+    }
+
+    public static IndexedCorpus read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        int reserveNull, numSentences, numEnTokens, numFrTokens, maxEnLen, maxFrLen, vocabBytes;
+        StringIndexer enIndexer, frIndexer;
+        try {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not an indexed corpus file");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported corpus file version " + version + " in " + file);
+            reserveNull = in.readInt();
+            numSentences = in.readInt();
+            in.readLong(); // dataHash, checked by loadOrBuild
+            numEnTokens = in.readInt();
+            numFrTokens = in.readInt();
+            maxEnLen = in.readInt();
+            maxFrLen = in.readInt();
+            vocabBytes = in.readInt();
+            enIndexer = readVocab(in);
+            frIndexer = readVocab(in);
+        } finally {
+            in.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long pos = HEADER_BYTES + (long) vocabBytes;
+            IntBuffer enOffsets = map(channel, pos, numSentences + 1);
+            pos += 4L * (numSentences + 1);
+            IntBuffer frOffsets = map(channel, pos, numSentences + 1);
+            pos += 4L * (numSentences + 1);
+            IntBuffer enTokens = map(channel, pos, numEnTokens);
+            pos += 4L * numEnTokens;
+            IntBuffer frTokens = map(channel, pos, numFrTokens);
+            System.out.println("Mapped " + numSentences + " sentence pairs, " + numEnTokens + " EN and " + numFrTokens + " FR tokens");
+            return new IndexedCorpus(enIndexer, frIndexer, reserveNull == 1, enTokens, frTokens, enOffsets, frOffsets, maxEnLen, maxFrLen);
+        } finally {
+            raf.close(); // the mappings stay valid after the channel is closed
+        }
+    }
+
+    private static IntBuffer map(FileChannel channel, long pos, int numInts) throws IOException {
+        long bytes = 4L * numInts;
+        if (bytes > Integer.MAX_VALUE) throw new IOException("Corpus section of " + numInts + " ints is too large to map");
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, bytes);
+        return buffer.asIntBuffer();
+    }
+
+    private static void writeVocab(StringIndexer indexer, DataOutputStream out) throws IOException {
+        out.writeInt(indexer.size());
+        for (int i = 0; i < indexer.size(); i++)
+            out.writeUTF(indexer.get(i));
+    }
+
+    private static StringIndexer readVocab(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        StringIndexer indexer = new StringIndexer();
+        for (int i = 0; i < size; i++)
+            indexer.add(in.readUTF());
+        return indexer;
+    }
+
+    private static void writeInts(IntBuffer ints, DataOutputStream out) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+        while (ints.hasRemaining()) {
+            chunk.clear();
+            while (ints.hasRemaining() && chunk.remaining() >= 4)
+                chunk.putInt(ints.get());
+            out.write(chunk.array(), 0, chunk.position());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package edu.berkeley.nlp.assignments.align.student.test;
+
+import edu.berkeley.nlp.assignments.align.student.aligner.Model1Trainer;
+import edu.berkeley.nlp.assignments.align.student.corpus.IndexedCorpus;
+import edu.berkeley.nlp.assignments.align.student.util.SparseTranslationTable;
+import edu.berkeley.nlp.mt.SentencePair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that Model 1 training gives exactly the same t(f|e) and t(e|f) tables with 1 thread and with several.
+ */
+public class Model1ThreadsTest {
+    public static void main(String[] args) {
+        IndexedCorpus corpus = new IndexedCorpus(randomCorpus(2000, 42), true);
+        int blockSize = 37; // many blocks, and a last one that is not full
+        for (boolean englishGivenFrench : new boolean[]{false, true}) {
+            SparseTranslationTable serial = Model1Trainer.train(corpus, englishGivenFrench, 10, 1e-7, 1, blockSize);
+            SparseTranslationTable parallel = Model1Trainer.train(corpus, englishGivenFrench, 10, 1e-7, 4, blockSize);
+            int diffs = countDifferences(corpus, englishGivenFrench, serial, parallel);
+            String direction = englishGivenFrench ? "t(e|f)" : "t(f|e)";
+            if (serial.size() != parallel.size() || diffs > 0)
+                throw new AssertionError(direction + ": " + diffs + " pairs differ, sizes " + serial.size() + " and " + parallel.size());
+            System.out.println(direction + ": " + serial.size() + " pairs, identical with 1 and 4 threads");
+        }
+    }
+
+    /**
+     * @return number of co-occurring pairs whose probability is not exactly the same in both tables
+     */
+    private static int countDifferences(IndexedCorpus corpus, boolean englishGivenFrench, SparseTranslationTable a, SparseTranslationTable b) {
+        int diffs = 0;
+        for (int s = 0; s < corpus.size(); s++) {
+            int[] words = englishGivenFrench ? corpus.englishSentence(s) : corpus.frenchSentence(s);
+            int[] given = englishGivenFrench ? corpus.frenchSentence(s) : corpus.englishSentence(s);
+            for (int w : words) {
+                if (a.get(w, IndexedCorpus.NULL_INDEX) != b.get(w, IndexedCorpus.NULL_INDEX)) diffs++;
+                for (int g : given) {
+                    if (a.get(w, g) != b.get(w, g)) diffs++;
+                }
+            }
+        }
+        return diffs;
+    }
+
+    private static List<SentencePair> randomCorpus(int numSentences, long seed) {
+        Random random = new Random(seed);
+        List<SentencePair> pairs = new ArrayList<>();
+        for (int s = 0; s < numSentences; s++) {
+            List<String> english = new ArrayList<>();
+            List<String> french = new ArrayList<>();
+            int length = 3 + random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                int word = random.nextInt(300);
+                english.add("e" + word);
+                // mostly a fixed translation, sometimes dropped or replaced
+                if (random.nextInt(10) > 0) french.add("f" + (random.nextInt(5) > 0 ? word : random.nextInt(300)));
+            }
+            if (french.isEmpty()) french.add("f0");
+            pairs.add(new SentencePair(s, "random", english, french));
+        }
+        return pairs;
+    }
+}
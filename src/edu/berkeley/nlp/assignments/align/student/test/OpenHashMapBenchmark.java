@@ -0,0 +1,84 @@
+package edu.berkeley.nlp.assignments.align.student.test;
+
+import edu.berkeley.nlp.assignments.align.student.util.BitPackingUtility;
+import edu.berkeley.nlp.assignments.align.student.util.LongDoubleOpenHashMap;
+import edu.berkeley.nlp.assignments.align.student.util.OffHeapLongDoubleOpenHashMap;
+import edu.berkeley.nlp.assignments.align.student.util.OpenHashMapProbing;
+
+import java.util.Random;
+
+/**
+ * Compares linear and Robin Hood probing of the generated maps on bit-packed (word, given) keys, the key shape of
+ * the translation tables, and the on-heap map with its off-heap version. Usage: OpenHashMapBenchmark [numKeys]
+ */
+public class OpenHashMapBenchmark {
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        long[] keys = new long[numKeys];
+        long[] missing = new long[numKeys];
+        Random random = new Random(0);
+        for (int i = 0; i < numKeys; i++) {
+            // Zipf-ish word ids, like a real vocabulary
+            keys[i] = BitPackingUtility.bitPackingBigram(skewed(random), skewed(random));
+            missing[i] = BitPackingUtility.bitPackingBigram(skewed(random), -2 - random.nextInt(1000));
+        }
+
+        for (int round = 0; round < 3; round++) { // the first round warms up the JIT
+            for (double loadFactor : new double[]{0.5, 0.7, 0.9}) {
+                for (OpenHashMapProbing probing : OpenHashMapProbing.values()) {
+                    run(keys, missing, loadFactor, probing, round > 0);
+                }
+                runOffHeap(keys, missing, loadFactor, round > 0);
+            }
+        }
+    }
+
+    private static int skewed(Random random) {
+        return (int) Math.exp(random.nextDouble() * Math.log(200000));
+    }
+
+    private static void run(long[] keys, long[] missing, double loadFactor, OpenHashMapProbing probing, boolean print) {
+        LongDoubleOpenHashMap map = new LongDoubleOpenHashMap(10, loadFactor, probing);
+        long start = System.nanoTime();
+        for (long key : keys)
+            map.addTo(key, 1.);
+        long inserted = System.nanoTime();
+        double sum = 0;
+        for (long key : keys)
+            sum += map.get(key);
+        long hits = System.nanoTime();
+        for (long key : missing)
+            sum += map.get(key);
+        long misses = System.nanoTime();
+
+        if (print)
+            System.out.format("%-10s load %.1f: %d keys, addTo %.0f ns, hit %.0f ns, miss %.0f ns (checksum %.0f)\n",
+                    probing, loadFactor, map.size(),
+                    (inserted - start) / (double) keys.length,
+                    (hits - inserted) / (double) keys.length,
+                    (misses - hits) / (double) missing.length, sum);
+    }
+
+    private static void runOffHeap(long[] keys, long[] missing, double loadFactor, boolean print) {
+        OffHeapLongDoubleOpenHashMap map = new OffHeapLongDoubleOpenHashMap(10, loadFactor);
+        long start = System.nanoTime();
+        for (long key : keys)
+            map.addTo(key, 1.);
+        long inserted = System.nanoTime();
+        double sum = 0;
+        for (long key : keys)
+            sum += map.get(key);
+        long hits = System.nanoTime();
+        for (long key : missing)
+            sum += map.get(key);
+        long misses = System.nanoTime();
+
+        if (print)
+            System.out.format("%-10s load %.1f: %d keys, addTo %.0f ns, hit %.0f ns, miss %.0f ns (checksum %.0f)\n",
+                    "OFF_HEAP", loadFactor, map.size(),
+                    (inserted - start) / (double) keys.length,
+                    (hits - inserted) / (double) keys.length,
+                    (misses - hits) / (double) missing.length, sum);
+        map.close();
+    }
+}
@@ -0,0 +1,136 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
+
+/**
+ * Thread-safe map from long keys to int values, for accumulating counts from many threads at once.
+ * Keys are spread over a power-of-two number of segments by the high bits of their hash. Each segment is a
+ * LongIntOpenHashMap guarded by its own lock, so threads only contend when they hit the same segment, and a segment
+ * that fills up grows by itself while the others keep serving updates. Missing keys read as 0.
+ * Once every update is done, freeze() makes the map read-only and lets reads skip the locks.
+ *
+ * GENERATED by PrimitiveMapGenerator from StripedOpenHashMap.template, do not edit this file.
+ */
+public class ConcurrentLongIntOpenHashMap {
+
+    private final LongIntOpenHashMap[] segments;
+    private final int segmentShift;
+    // set once by freeze(), reads that see it also see every update made before it
+    private volatile boolean frozen = false;
+
+    public ConcurrentLongIntOpenHashMap(int initialCapacity) {
+        this(initialCapacity, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param initialCapacity  number of keys that fit without growing any segment
+     * @param concurrencyLevel expected number of updating threads, there are about 4 segments per thread
+     */
+    public ConcurrentLongIntOpenHashMap(int initialCapacity, int concurrencyLevel) {
+        int numSegments = 1;
+        while (numSegments < 4 * concurrencyLevel && numSegments < (1 << 16))
+            numSegments <<= 1;
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+        segments = new LongIntOpenHashMap[numSegments];
+        int segmentCapacity = Math.max(1, initialCapacity / numSegments);
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = new LongIntOpenHashMap(segmentCapacity);
+    }
+
+    private LongIntOpenHashMap segmentFor(long k) {
+        // the segment maps index slots with the low bits of the same hash, so use the high ones here
+        return segmentShift == 32 ? segments[0] : segments[((int) MurmurHash.fmix64(k)) >>> segmentShift];
+    }
+
+    /**
+     * Add delta to the value of k, a missing key starts from 0.
+     *
+     * @return the new value
+     */
+    public int addTo(long k, int delta) {
+        checkNotFrozen();
+        LongIntOpenHashMap segment = segmentFor(k);
+        synchronized (segment) {
+            return segment.addTo(k, delta);
+        }
+    }
+
+    public void increment(long k, int delta) {
+        addTo(k, delta);
+    }
+
+    public boolean put(long k, int v) {
+        checkNotFrozen();
+        LongIntOpenHashMap segment = segmentFor(k);
+        synchronized (segment) {
+            return segment.put(k, v);
+        }
+    }
+
+    public int get(long k) {
+        LongIntOpenHashMap segment = segmentFor(k);
+        if (frozen) return segment.get(k);
+        synchronized (segment) {
+            return segment.get(k);
+        }
+    }
+
+    public boolean containsKey(long k) {
+        LongIntOpenHashMap segment = segmentFor(k);
+        if (frozen) return segment.containsKey(k);
+        synchronized (segment) {
+            return segment.containsKey(k);
+        }
+    }
+
+    /**
+     * Call procedure on every entry, one segment at a time. Only that segment is locked meanwhile.
+     */
+    public void forEach(LongIntOpenHashMap.EntryProcedure procedure) {
+        for (LongIntOpenHashMap segment : segments) {
+            synchronized (segment) {
+                segment.forEach(procedure);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (LongIntOpenHashMap segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        checkNotFrozen();
+        for (LongIntOpenHashMap segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Make the map read-only, once no thread updates it any more: the updating threads must be done (joined, or
+     * their futures waited for) before this call. get() and containsKey() then read without locking, and can be
+     * called from any number of threads.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException("Map is frozen");
+    }
+
+    public int numSegments() {
+        return segments.length;
+    }
+}
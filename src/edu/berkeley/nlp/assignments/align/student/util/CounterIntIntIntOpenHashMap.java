@@ -1,253 +1,273 @@
 package edu.berkeley.nlp.assignments.align.student.util;
 
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
 import edu.berkeley.nlp.util.CollectionUtils;
 
 import java.util.Arrays;
 import java.util.Iterator;
 
 /**
- * key = index(e)
- * value1 = t(f|e)
- * value2 = count(f|e)
+ * Open addressing map from int keys to a pair of values (int value1, int value2).
+ * The table size is a power of two, keys are hashed with the MurmurHash3 finalizer and collisions are resolved by
+ * linear or Robin Hood probing (see OpenHashMapProbing). The table doubles when it gets fuller than the load factor.
+ * Key -1 is reserved for empty slots. Missing keys read as 0.
+ *
+ * GENERATED by PrimitiveMapGenerator from PrimitiveOpenHashMap.template, do not edit this file. Change the
+ * template and run PrimitiveMapGenerator instead so that every key/value specialisation gets the change.
  */
 public class CounterIntIntIntOpenHashMap {
-    private int[] keys;
 
-    private int[] values1;
+    private static final int EMPTY_KEY = -1;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private int[] keys;
+    private int[] values;
     private int[] values2;
 
     private int size = 0;
-    private int sizeInTheory = 0;
-    private int actualSize = 0;
-
+    private int maxSize; // grow when size reaches this
+    private final double loadFactor;
+    private final boolean robinHood;
 
-    private final int EMPTY_KEY = -1;
-
-    private final double MAX_LOAD_FACTOR;
-
-    // order: value -> end -> start -> between
-    public boolean put(int k, int v, int end) {
-        if (size / (double) keys.length > MAX_LOAD_FACTOR) {
-            rehash();
-        }
-        return putHelp(k, v, end, keys, values1, values2);
+    public CounterIntIntIntOpenHashMap() {
+        this(10);
     }
 
-    public boolean putValue(int k, int v) {
-        if (size / (double) keys.length > MAX_LOAD_FACTOR) {
-            rehash();
-        }
-        return putHelpValue(k, v, keys, values1);
+    public CounterIntIntIntOpenHashMap(int initialCapacity) {
+        this(initialCapacity, 0.7);
     }
-    public boolean putEnd(int k, int e) {
-        if (size / (double) keys.length > MAX_LOAD_FACTOR) {
-            rehash();
-        }
-        return putHelpEnd(k, e, keys, values2);
+
+    public CounterIntIntIntOpenHashMap(int initialCapacity, double loadFactor) {
+        this(initialCapacity, loadFactor, OpenHashMapProbing.LINEAR);
     }
 
-    public CounterIntIntIntOpenHashMap() {
-        this(10);
+    /**
+     * @param initialCapacity number of keys that fit without growing the table
+     */
+    public CounterIntIntIntOpenHashMap(int initialCapacity, double loadFactor, OpenHashMapProbing probing) {
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("Load factor must be in (0, 1): " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.robinHood = probing == OpenHashMapProbing.ROBIN_HOOD;
+        allocate(tableSizeFor((long) Math.ceil(Math.max(1, initialCapacity) / loadFactor)));
     }
 
-    public CounterIntIntIntOpenHashMap(int initialCapacity_) {
-        this(initialCapacity_, 0.7);
+    private static int tableSizeFor(long n) {
+        int cap = 8;
+        while (cap < n && cap < MAX_CAPACITY)
+            cap <<= 1;
+        return cap;
     }
 
-    public CounterIntIntIntOpenHashMap(int initialCapacity_, double loadFactor) {
-        int cap = Math.max(5, (int) (initialCapacity_ / loadFactor));
-        MAX_LOAD_FACTOR = loadFactor;
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[capacity];
+        values2 = new int[capacity];
+        maxSize = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * loadFactor);
+        size = 0;
+    }
 
-        values1 = new int[cap];
-        values2 = new int[cap];
-        Arrays.fill(values1, 0);
-        Arrays.fill(values2, 0);
+    private static int hash(int k) {
+        return MurmurHash.fmix32(k);
+    }
 
-        keys = new int[cap];
-        Arrays.fill(keys, -1); // added to avoid collision with k = 0
+    /**
+     * @return slot of k, or -1 if k is not in the map
+     */
+    private int find(int k) {
+        if (k == EMPTY_KEY) return -1;
+        final int[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == k) return pos;
+            if (curr == EMPTY_KEY) return -1;
+            // Robin Hood keeps every run sorted by distance from home, k would have been placed before this one
+            if (robinHood && ((pos - (hash(curr) & mask)) & mask) < dist) return -1;
+            pos = (pos + 1) & mask;
+        }
+    }
 
-        sizeInTheory = initialCapacity_;
+    /**
+     * @return slot of k, adding it with zero values if it is not in the map
+     */
+    private int insert(int k) {
+        int pos = find(k);
+        if (pos >= 0) return pos;
+        if (k == EMPTY_KEY) throw new IllegalArgumentException("Key " + EMPTY_KEY + " is reserved");
+        if (size >= maxSize) grow();
+        return insertNew(k, 0, 0);
     }
 
-    private void rehash() {
-        int[] newKeys = new int[keys.length * 3 / 2];
-        int[] newValues = new int[values1.length * 3 / 2];
-        int[] newBigramEndsWithThis = new int[values1.length * 3 / 2];
+    /**
+     * Add a key known to be absent, the table must have room. Returns its slot
+     */
+    private int insertNew(int k, int v, int v2) {
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        size++;
+        if (!robinHood) {
+            while (keys[pos] != EMPTY_KEY)
+                pos = (pos + 1) & mask;
+            keys[pos] = k;
+            values[pos] = v;
+            values2[pos] = v2;
+            return pos;
+        }
 
-        Arrays.fill(newValues, 0);
-        Arrays.fill(newBigramEndsWithThis, 0);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                int val = values1[i];
-                int end = values2[i];
-                // TODO: fix this
-                putHelp(curr, val, end, newKeys, newValues, newBigramEndsWithThis);
+        int slotOfK = -1;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == EMPTY_KEY) {
+                keys[pos] = k;
+                values[pos] = v;
+                values2[pos] = v2;
+                return slotOfK < 0 ? pos : slotOfK;
             }
-        }
-        // overwrite
-        keys = newKeys;
-        values1 = newValues;
-        values2 = newBigramEndsWithThis;
-    }
-    public void rehash(double expandedRatio) {
-        int[] newKeys = new int[(int) (keys.length * expandedRatio)];
-        int[] newValues = new int[(int) (values1.length * expandedRatio)];
-        int[] newBigramEndsWithThis = new int[(int) (values1.length * expandedRatio)];
-
-        Arrays.fill(newValues, 0);
-        Arrays.fill(newBigramEndsWithThis, 0);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                int val = values1[i];
-                int end = values2[i];
-                // TODO: fix this
-                putHelp(curr, val, end, newKeys, newValues, newBigramEndsWithThis);
+            int currDist = (pos - (hash(curr) & mask)) & mask;
+            if (currDist < dist) {
+                // the resident is closer to home, it gives up the slot and moves on instead
+                int currValue = values[pos];
+                keys[pos] = k;
+                values[pos] = v;
+                k = curr;
+                v = currValue;
+                int currValue2 = values2[pos];
+                values2[pos] = v2;
+                v2 = currValue2;
+                if (slotOfK < 0) slotOfK = pos;
+                dist = currDist;
             }
+            pos = (pos + 1) & mask;
         }
-        // overwrite
-        keys = newKeys;
-        values1 = newValues;
-        values2 = newBigramEndsWithThis;
-    }
-
-    // order: value -> end -> start -> between
-    private boolean putHelp(int k, int v, int end,
-                            int[] keyArray, int[] valueArray, int[] ends) {
-        int pos = getInitialPos(k, keyArray);
-        int curr = keyArray[pos];
-        // find proper key first
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keyArray.length) pos = 0;
-            curr = keyArray[pos];
+    }
+
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) throw new IllegalStateException("Map is full: " + size + " keys");
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldValues2 = values2;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY)
+                insertNew(oldKeys[i], oldValues[i], oldValues2[i]);
         }
+    }
 
-        valueArray[pos] = v;
-        ends[pos] = end;
+    /**
+     * @return true if k was not in the map before
+     */
+    public boolean put(int k, int v) {
+        int oldSize = size;
+        int pos = insert(k); // may grow the table, so not values[insert(k)]
+        values[pos] = v;
+        return size != oldSize;
+    }
 
-        // found a key, let's insert into it
-        if (curr == EMPTY_KEY) {
-            size++;
-            keyArray[pos] = k;
-            return true;
-        }
-        return false;
-    }
-    private boolean putHelpValue(int k, int v, int[] keyArray, int[] valueArray) {
-        int pos = getInitialPos(k, keyArray);
-        int curr = keyArray[pos];
-        // find proper key first
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keyArray.length) pos = 0;
-            curr = keyArray[pos];
-        }
+    public int get(int k) {
+        int pos = find(k);
+        return pos < 0 ? 0 : values[pos];
+    }
 
-        valueArray[pos] = v;
-        // found a key, let's insert into it
-        if (curr == EMPTY_KEY) {
-            size++;
-            keyArray[pos] = k;
-            return true;
-        }
-        return false;
-    }
-    private boolean putHelpEnd(int k, int e, int[] keyArray, int[] endArray) {
-        int pos = getInitialPos(k, keyArray);
-        int curr = keyArray[pos];
-        // find proper key first
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keyArray.length) pos = 0;
-            curr = keyArray[pos];
-        }
+    /**
+     * @return the value of k, or defaultValue if k is not in the map
+     */
+    public int get(int k, int defaultValue) {
+        int pos = find(k);
+        return pos < 0 ? defaultValue : values[pos];
+    }
 
-        endArray[pos] = e;
-        // found a key, let's insert into it
-        if (curr == EMPTY_KEY) {
-            size++;
-            keyArray[pos] = k;
-            return true;
-        }
-        return false;
+    public boolean containsKey(int k) {
+        return find(k) >= 0;
     }
 
-    private int getInitialPos(int k, int[] keyArray) {
-        int hash = getHashCode(k);
-        int pos = hash % keyArray.length;
-        if (pos < 0) pos += keyArray.length;
-        // N.B. Doing it this old way causes Integer.MIN_VALUE to be
-        // handled incorrect since -Integer.MIN_VALUE is still
-        // Integer.MIN_VALUE
-//		if (hash < 0) hash = -hash;
-//		int pos = hash % keyArray.length;
-        return pos;
+    /**
+     * Add delta to the value of k, a missing key starts from 0.
+     *
+     * @return the new value
+     */
+    public int addTo(int k, int delta) {
+        int pos = insert(k);
+        values[pos] += delta;
+        return values[pos];
     }
-    // helper for hash code
-    private int getHashCode(int n) {
-        return (int) ((131111L*n)^n^(1973*n)%sizeInTheory);
-//        int hash = ((int) (n ^ (n >>> 32)) * 3875239);
-//        return hash;
+
+    public void increment(int k, int c) {
+        addTo(k, c);
     }
 
-    // 4 getters
-    public int getValue1(int k) {
-        int pos = find(k);
+    public void incrementByOne(int k) {
+        addTo(k, 1);
+    }
+
+    public boolean put(int k, int v1, int v2) {
+        int oldSize = size;
+        int pos = insert(k);
+        values[pos] = v1;
+        values2[pos] = v2;
+        return size != oldSize;
+    }
+
+    public boolean putValue1(int k, int v1) {
+        return put(k, v1);
+    }
 
-        return values1[pos];
+    public boolean putValue2(int k, int v2) {
+        int oldSize = size;
+        int pos = insert(k);
+        values2[pos] = v2;
+        return size != oldSize;
     }
+
+    public int getValue1(int k) {
+        return get(k);
+    }
+
     public int getValue2(int k) {
         int pos = find(k);
+        return pos < 0 ? 0 : values2[pos];
+    }
+
+    public void incrementValue1(int k, int c) {
+        addTo(k, c);
+    }
 
+    /**
+     * Same as addTo, for value2
+     */
+    public int addToValue2(int k, int delta) {
+        int pos = insert(k);
+        values2[pos] += delta;
         return values2[pos];
     }
 
-    private int find(int k) {
-        int pos = getInitialPos(k, keys);
-        int curr = keys[pos];
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keys.length) pos = 0;
-            curr = keys[pos];
-        }
-        return pos;
+    public void incrementValue2(int k, int c) {
+        addToValue2(k, c);
     }
 
-    public void incrementValue1(int k, int v) {
-        int pos = find(k);
-        int currKey = keys[pos];
-        // key is new
-        if (currKey == EMPTY_KEY) {
-            putValue(k, v);
-        } else
-            values1[pos]+=v;
-    }
-    public void incrementValue2(int k, int e) {
-        int pos = find(k);
-        int currKey = keys[pos];
-        // key is new
-        if (currKey == EMPTY_KEY) {
-            putEnd(k, e);
-        } else {
-            values2[pos]+=e;
-        }
+    /**
+     * Callback of forEach, avoids allocating an Entry per key
+     */
+    public interface EntryProcedure {
+        void apply(int key, int value1, int value2);
     }
 
+    /**
+     * Call procedure on every entry, in table order
+     */
+    public void forEach(EntryProcedure procedure) {
+        final int[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
+                procedure.apply(keys[i], values[i], values2[i]);
+        }
+    }
 
-    public static class Entry {
-        /**
-         * @param key
-         * @param value1
-         * @param value2
-         */
+    public static class Entry
+    {
         public Entry(int key, int value1, int value2) {
-            super();
             this.key = key;
             this.value1 = value1;
             this.value2 = value2;
@@ -260,97 +280,92 @@ public class CounterIntIntIntOpenHashMap {
         public int getKey() {
             return key;
         }
+
         public int getValue1() {
             return value1;
         }
+
         public int getValue2() {
             return value2;
         }
     }
 
-    private class EntryIterator extends CounterIntIntIntOpenHashMap.MapIterator<CounterIntIntIntOpenHashMap.Entry>
+    private class EntryIterator implements Iterator<Entry>
     {
-        public CounterIntIntIntOpenHashMap.Entry next() {
-            final int nextIndex = nextIndex();
-            //access arrays of values1 from mother class
-            return new CounterIntIntIntOpenHashMap.Entry(keys[nextIndex], values1[nextIndex], values2[nextIndex]);
+        private int next = -1;
+
+        EntryIterator() {
+            advance();
         }
-    }
 
-    private abstract class MapIterator<E> implements Iterator<E>
-    {
-        public MapIterator() {
-            end = keys.length;
-            next = -1;
-            nextIndex();
+        private void advance() {
+            do {
+                next++;
+            } while (next < keys.length && keys[next] == EMPTY_KEY);
         }
 
         public boolean hasNext() {
-            return next < end;
+            return next < keys.length;
         }
 
-        int nextIndex() {
-            int curr = next;
-            do {
-                next++;
-            } while (next < end && keys[next] == EMPTY_KEY);
-            return curr;
+        public Entry next() {
+            Entry entry = new Entry(keys[next], values[next], values2[next]);
+            advance();
+            return entry;
         }
 
         public void remove() {
             throw new UnsupportedOperationException();
         }
-
-        private int next, end;
     }
 
-    public Iterable<CounterIntIntIntOpenHashMap.Entry> entrySet() {
-        return CollectionUtils.iterable(new CounterIntIntIntOpenHashMap.EntryIterator());
+    public Iterable<Entry> entrySet() {
+        return CollectionUtils.iterable(new EntryIterator());
     }
+
     public int[] getKeys() {
         int[] k = new int[size];
         int j = 0;
-        for (int i = 0; i<keys.length; i++) {
-            if (keys[i] != -1)
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
                 k[j++] = keys[i];
         }
         return k;
     }
+
     public int size() {
         return size;
     }
 
+    /**
+     * Number of slots of the table
+     */
     public int actualSize() {
         return keys.length;
     }
 
-
     /**
-     * Optimization method to free up unused entries in this map
-     * TODO: add values2 to this optimization before activating it
+     * Remove every key, the table keeps its size
      */
-//    public void optimizeStorage(double expandedRatio){
-//        System.out.println("This map has the utilization of " + 100 * size() / (double) actualSize() + "%. Now optimizing...");
-//
-//        int[] newKeys = new int[size];
-//        int[] newValues = new int[size];
-//        int j = 0;
-//
-//        for (int i = 0; i< values1.length; i++) {
-//            if (keys[i] != -1) {
-//                newKeys[j] = keys[i];
-//                newValues[j] = values1[i];
-//                j++;
-//            }
-//        }
-//        // free up
-//        keys = newKeys;
-//        values1 = newValues;
-//
-//        rehash(expandedRatio);
-//    }
-    public void autoOptimizeStorage() {
-        double utilization = size / (double) actualSize();
-        rehash(utilization + 0.2);
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
+
+    // slot-level access, lets callers in this package walk the table without allocating Entry objects
+    boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY_KEY;
+    }
+
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    void setValueAt(int slot, int v) {
+        values[slot] = v;
     }
 }
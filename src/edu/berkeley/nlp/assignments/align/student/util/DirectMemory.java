@@ -0,0 +1,63 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation and explicit release of direct (off-heap) buffers for the off-heap maps.
+ * A direct buffer is normally released only when the GC collects it, which for a multi-GB table can be much
+ * later than the table stops being used, so free() releases it right away when the JVM lets us.
+ */
+public class DirectMemory {
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            // Java 9+: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // Java 8 has no invokeCleaner, free() falls back to the buffer's own cleaner
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    private DirectMemory() {
+    }
+
+    /**
+     * @return a zeroed direct buffer of the given size in native byte order
+     */
+    public static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Release the memory of a buffer returned by allocate(). The buffer, and every view of it, must not be
+     * used afterwards. If the JVM does not allow it, the memory is left to the GC.
+     */
+    public static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // leave it to the GC
+        }
+    }
+}
@@ -1,237 +1,312 @@
 package edu.berkeley.nlp.assignments.align.student.util;
 
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
 import edu.berkeley.nlp.util.CollectionUtils;
 
 import java.util.Arrays;
 import java.util.Iterator;
 
+/**
+ * Open addressing map from int keys to double values.
+ * The table size is a power of two, keys are hashed with the MurmurHash3 finalizer and collisions are resolved by
+ * linear or Robin Hood probing (see OpenHashMapProbing). The table doubles when it gets fuller than the load factor.
+ * Key -1 is reserved for empty slots. Missing keys read as 0.
+ *
+ * GENERATED by PrimitiveMapGenerator from PrimitiveOpenHashMap.template, do not edit this file. Change the
+ * template and run PrimitiveMapGenerator instead so that every key/value specialisation gets the change.
+ */
 public class IntDoubleOpenHashMap {
 
+    private static final int EMPTY_KEY = -1;
+    private static final int MAX_CAPACITY = 1 << 30;
+
     private int[] keys;
     private double[] values;
 
     private int size = 0;
-    private int sizeInTheory = 0;
-    private int actualSize = 0;
+    private int maxSize; // grow when size reaches this
+    private final double loadFactor;
+    private final boolean robinHood;
 
-    private final long EMPTY_KEY = -1;
-    private final double MAX_LOAD_FACTOR;
+    public IntDoubleOpenHashMap() {
+        this(10);
+    }
 
-    public boolean put(int k, double v) {
-        if (size / (double) keys.length > MAX_LOAD_FACTOR) {
-            rehash();
-        }
-        return putHelp(k, v, keys, values);
+    public IntDoubleOpenHashMap(int initialCapacity) {
+        this(initialCapacity, 0.7);
+    }
 
+    public IntDoubleOpenHashMap(int initialCapacity, double loadFactor) {
+        this(initialCapacity, loadFactor, OpenHashMapProbing.LINEAR);
     }
 
-    public IntDoubleOpenHashMap() {
-        this(10);
+    /**
+     * @param initialCapacity number of keys that fit without growing the table
+     */
+    public IntDoubleOpenHashMap(int initialCapacity, double loadFactor, OpenHashMapProbing probing) {
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("Load factor must be in (0, 1): " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.robinHood = probing == OpenHashMapProbing.ROBIN_HOOD;
+        allocate(tableSizeFor((long) Math.ceil(Math.max(1, initialCapacity) / loadFactor)));
     }
 
-    public IntDoubleOpenHashMap(int initialCapacity_) {
-        this(initialCapacity_, 0.7);
+    private static int tableSizeFor(long n) {
+        int cap = 8;
+        while (cap < n && cap < MAX_CAPACITY)
+            cap <<= 1;
+        return cap;
     }
 
-    public IntDoubleOpenHashMap(int initialCapacity_, double loadFactor) {
-        int cap = Math.max(5, (int) (initialCapacity_ / loadFactor));
-        MAX_LOAD_FACTOR = loadFactor;
-        values = new double[cap];
-        Arrays.fill(values, 0);
-        keys = new int[cap];
-        Arrays.fill(keys, -1); // added to avoid collision with k = 0
-        sizeInTheory = initialCapacity_;
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new double[capacity];
+        maxSize = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * loadFactor);
+        size = 0;
     }
 
+    private static int hash(int k) {
+        return MurmurHash.fmix32(k);
+    }
 
-    private void rehash() {
-        int[] newKeys = new int[keys.length * 3 / 2];
-        double[] newValues = new double[values.length * 3 / 2];
-        Arrays.fill(newValues, 0);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                double val = values[i];
-                putHelp(curr, val, newKeys, newValues);
-            }
-        }
-        keys = newKeys;
-        values = newValues;
-    }
-    public void rehash(double expandedRatio) {
-        int[] newKeys = new int[(int)(keys.length * expandedRatio)];
-        double[] newValues = new double[(int)(values.length * expandedRatio)];
-        Arrays.fill(newValues, 0);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                double val = values[i];
-                putHelp(curr, val, newKeys, newValues);
-            }
+    /**
+     * @return slot of k, or -1 if k is not in the map
+     */
+    private int find(int k) {
+        if (k == EMPTY_KEY) return -1;
+        final int[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == k) return pos;
+            if (curr == EMPTY_KEY) return -1;
+            // Robin Hood keeps every run sorted by distance from home, k would have been placed before this one
+            if (robinHood && ((pos - (hash(curr) & mask)) & mask) < dist) return -1;
+            pos = (pos + 1) & mask;
         }
-        keys = newKeys;
-        values = newValues;
-    }
-    private boolean putHelp(int k, double v, int[] keyArray, double[] valueArray) {
-        int pos = getInitialPos(k, keyArray);
-        int curr = keyArray[pos];
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keyArray.length) pos = 0;
-            curr = keyArray[pos];
+    }
+
+    /**
+     * @return slot of k, adding it with zero values if it is not in the map
+     */
+    private int insert(int k) {
+        int pos = find(k);
+        if (pos >= 0) return pos;
+        if (k == EMPTY_KEY) throw new IllegalArgumentException("Key " + EMPTY_KEY + " is reserved");
+        if (size >= maxSize) grow();
+        return insertNew(k, 0, 0);
+    }
+
+    /**
+     * Add a key known to be absent, the table must have room. Returns its slot
+     */
+    private int insertNew(int k, double v, int v2) {
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        size++;
+        if (!robinHood) {
+            while (keys[pos] != EMPTY_KEY)
+                pos = (pos + 1) & mask;
+            keys[pos] = k;
+            values[pos] = v;
+            return pos;
         }
 
-        valueArray[pos] = v;
-        if (curr == EMPTY_KEY) {
-            size++;
-            keyArray[pos] = k;
-            return true;
+        int slotOfK = -1;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == EMPTY_KEY) {
+                keys[pos] = k;
+                values[pos] = v;
+                return slotOfK < 0 ? pos : slotOfK;
+            }
+            int currDist = (pos - (hash(curr) & mask)) & mask;
+            if (currDist < dist) {
+                // the resident is closer to home, it gives up the slot and moves on instead
+                double currValue = values[pos];
+                keys[pos] = k;
+                values[pos] = v;
+                k = curr;
+                v = currValue;
+                if (slotOfK < 0) slotOfK = pos;
+                dist = currDist;
+            }
+            pos = (pos + 1) & mask;
         }
-        return false;
     }
 
-    private int getInitialPos(int k, int[] keyArray) {
-//        int hash = getHashCode(k);
-        Integer kk = (Integer) k;
-        int hash = kk.hashCode();
-        int pos = (int) (hash % keyArray.length);
-        if (pos < 0) pos += keyArray.length;
-        // N.B. Doing it this old way causes Integer.MIN_VALUE to be
-        // handled incorrect since -Integer.MIN_VALUE is still
-        // Integer.MIN_VALUE
-//		if (hash < 0) hash = -hash;
-//		int pos = hash % keyArray.length;
-        return pos;
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) throw new IllegalStateException("Map is full: " + size + " keys");
+        int[] oldKeys = keys;
+        double[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY)
+                insertNew(oldKeys[i], oldValues[i], 0);
+        }
     }
-    // helper for hash code
-    private int getHashCode(long n) {
-        return (int)((131111L*n)^n^(1973*n)%sizeInTheory);
-//        int hash = ((int) (n ^ (n >>> 32)) * 3875239);
-//        return hash%sizeInTheory;
+
+    /**
+     * @return true if k was not in the map before
+     */
+    public boolean put(int k, double v) {
+        int oldSize = size;
+        int pos = insert(k); // may grow the table, so not values[insert(k)]
+        values[pos] = v;
+        return size != oldSize;
     }
 
     public double get(int k) {
         int pos = find(k);
-        return values[pos];
+        return pos < 0 ? 0 : values[pos];
     }
 
-    private int find(int k) {
-        int pos = getInitialPos(k, keys);
-        long curr = keys[pos];
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keys.length) pos = 0;
-            curr = keys[pos];
-        }
-        return pos;
+    /**
+     * @return the value of k, or defaultValue if k is not in the map
+     */
+    public double get(int k, double defaultValue) {
+        int pos = find(k);
+        return pos < 0 ? defaultValue : values[pos];
+    }
+
+    public boolean containsKey(int k) {
+        return find(k) >= 0;
+    }
+
+    /**
+     * Add delta to the value of k, a missing key starts from 0.
+     *
+     * @return the new value
+     */
+    public double addTo(int k, double delta) {
+        int pos = insert(k);
+        values[pos] += delta;
+        return values[pos];
     }
 
     public void increment(int k, double c) {
-        int pos = find(k);
-        long currKey = keys[pos];
-        if (currKey == EMPTY_KEY) {
-            put(k, c);
-        } else
-            values[pos]+=c;
+        addTo(k, c);
     }
+
     public void incrementByOne(int k) {
-        int pos = find(k);
-        long currKey = keys[pos];
-        if (currKey == EMPTY_KEY) {
-            put(k, 1);
-        } else
-            values[pos]++;
+        addTo(k, 1);
     }
+
+    /**
+     * Callback of forEach, avoids allocating an Entry per key
+     */
+    public interface EntryProcedure {
+        void apply(int key, double value);
+    }
+
+    /**
+     * Call procedure on every entry, in table order
+     */
+    public void forEach(EntryProcedure procedure) {
+        final int[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
+                procedure.apply(keys[i], values[i]);
+        }
+    }
+
     public static class Entry
     {
         public Entry(int key, double value) {
-            super();
             this.key = key;
             this.value = value;
         }
 
         public int key;
         public double value;
+
         public int getKey() {
             return key;
         }
+
         public double getValue() {
             return value;
         }
     }
 
-    private class EntryIterator extends MapIterator<IntDoubleOpenHashMap.Entry> {
-        public IntDoubleOpenHashMap.Entry next() {
-            final int nextIndex = nextIndex();
-            return new IntDoubleOpenHashMap.Entry(keys[nextIndex], values[nextIndex]);
+    private class EntryIterator implements Iterator<Entry>
+    {
+        private int next = -1;
+
+        EntryIterator() {
+            advance();
         }
-    }
 
-    private abstract class MapIterator<E> implements Iterator<E>
-    {
-        public MapIterator() {
-            end = keys.length;
-            next = -1;
-            nextIndex();
+        private void advance() {
+            do {
+                next++;
+            } while (next < keys.length && keys[next] == EMPTY_KEY);
         }
 
         public boolean hasNext() {
-            return next < end;
+            return next < keys.length;
         }
 
-        int nextIndex() {
-            int curr = next;
-            do {
-                next++;
-            } while (next < end && keys[next] == EMPTY_KEY);
-            return curr;
+        public Entry next() {
+            Entry entry = new Entry(keys[next], values[next]);
+            advance();
+            return entry;
         }
 
         public void remove() {
             throw new UnsupportedOperationException();
         }
+    }
 
-        private int next, end;
+    public Iterable<Entry> entrySet() {
+        return CollectionUtils.iterable(new EntryIterator());
     }
 
-    public Iterable<IntDoubleOpenHashMap.Entry> entrySet() {
-        return CollectionUtils.iterable(new IntDoubleOpenHashMap.EntryIterator());
+    public int[] getKeys() {
+        int[] k = new int[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
+                k[j++] = keys[i];
+        }
+        return k;
     }
 
     public int size() {
         return size;
     }
 
+    /**
+     * Number of slots of the table
+     */
     public int actualSize() {
         return keys.length;
     }
 
-//    /**
-//     * Optimization method to free up unused entries in this map
-//     *
-//     */
-//    public void optimizeStorage(double expandedRatio){
-//        System.out.println("This map has the utilization of " + 100 * size / (float) keys.length + "%. Now optimizing...");
-//
-//        long[] newKeys = new long[size];
-//        int[] newValues = new int[size];
-//        int j = 0;
-//
-//        for (int i=0; i<values.length; i++) {
-//            if (values[i] != 0) {
-//                newKeys[j] = keys[i];
-//                newValues[j] = values[i];
-//                j++;
-//            }
-//        }
-//        // free up
-//        keys = newKeys;
-//        values = newValues;
-//
-//        rehash(expandedRatio);
-//    }
-}
\ No newline at end of file
+    /**
+     * Remove every key, the table keeps its size
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
+
+    // slot-level access, lets callers in this package walk the table without allocating Entry objects
+    boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY_KEY;
+    }
+
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    double valueAt(int slot) {
+        return values[slot];
+    }
+
+    void setValueAt(int slot, double v) {
+        values[slot] = v;
+    }
+}
@@ -1,168 +1,225 @@
 package edu.berkeley.nlp.assignments.align.student.util;
 
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
 import edu.berkeley.nlp.util.CollectionUtils;
 
 import java.util.Arrays;
 import java.util.Iterator;
 
-
+/**
+ * Open addressing map from int keys to int values.
+ * The table size is a power of two, keys are hashed with the MurmurHash3 finalizer and collisions are resolved by
+ * linear or Robin Hood probing (see OpenHashMapProbing). The table doubles when it gets fuller than the load factor.
+ * Key -1 is reserved for empty slots. Missing keys read as -1.
+ *
+ * GENERATED by PrimitiveMapGenerator from PrimitiveOpenHashMap.template, do not edit this file. Change the
+ * template and run PrimitiveMapGenerator instead so that every key/value specialisation gets the change.
+ */
 public class IntIntOpenHashMap {
 
-    private int[] keys;
+    private static final int EMPTY_KEY = -1;
+    private static final int MAX_CAPACITY = 1 << 30;
 
+    private int[] keys;
     private int[] values;
 
     private int size = 0;
-    private int sizeInTheory = 0;
-    private int actualSize = 0;
+    private int maxSize; // grow when size reaches this
+    private final double loadFactor;
+    private final boolean robinHood;
 
-    private final int EMPTY_KEY = -1;
+    public IntIntOpenHashMap() {
+        this(10);
+    }
 
-    private final double MAX_LOAD_FACTOR;
+    public IntIntOpenHashMap(int initialCapacity) {
+        this(initialCapacity, 0.7);
+    }
 
-    public boolean put(int k, int v) {
-        if (size / (double) keys.length > MAX_LOAD_FACTOR) {
-            rehash();
-        }
-        return putHelp(k, v, keys, values);
+    public IntIntOpenHashMap(int initialCapacity, double loadFactor) {
+        this(initialCapacity, loadFactor, OpenHashMapProbing.LINEAR);
+    }
 
+    /**
+     * @param initialCapacity number of keys that fit without growing the table
+     */
+    public IntIntOpenHashMap(int initialCapacity, double loadFactor, OpenHashMapProbing probing) {
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("Load factor must be in (0, 1): " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.robinHood = probing == OpenHashMapProbing.ROBIN_HOOD;
+        allocate(tableSizeFor((long) Math.ceil(Math.max(1, initialCapacity) / loadFactor)));
     }
 
-    public IntIntOpenHashMap() {
-        this(10);
+    private static int tableSizeFor(long n) {
+        int cap = 8;
+        while (cap < n && cap < MAX_CAPACITY)
+            cap <<= 1;
+        return cap;
     }
 
-    public IntIntOpenHashMap(int initialCapacity_) {
-        this(initialCapacity_, 0.7);
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY_KEY);
+        values = new int[capacity];
+        maxSize = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * loadFactor);
+        size = 0;
     }
 
-    public IntIntOpenHashMap(int initialCapacity_, double loadFactor) {
-        int cap = Math.max(5, (int) (initialCapacity_ / loadFactor));
-        MAX_LOAD_FACTOR = loadFactor;
-        values = new int[cap];
-        Arrays.fill(values, -1);
-        keys = new int[cap];
-        Arrays.fill(keys, -1); // added to avoid collision with k = 0
-        sizeInTheory = initialCapacity_;
+    private static int hash(int k) {
+        return MurmurHash.fmix32(k);
     }
 
-    private void rehash() {
-        int[] newKeys = new int[keys.length * 3 / 2];
-        int[] newValues = new int[values.length * 3 / 2];
-        Arrays.fill(newValues, -1);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                int val = values[i];
-                putHelp(curr, val, newKeys, newValues);
-            }
+    /**
+     * @return slot of k, or -1 if k is not in the map
+     */
+    private int find(int k) {
+        if (k == EMPTY_KEY) return -1;
+        final int[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == k) return pos;
+            if (curr == EMPTY_KEY) return -1;
+            // Robin Hood keeps every run sorted by distance from home, k would have been placed before this one
+            if (robinHood && ((pos - (hash(curr) & mask)) & mask) < dist) return -1;
+            pos = (pos + 1) & mask;
         }
-        keys = newKeys;
-        values = newValues;
     }
 
-    public void rehash(double expandedRatio) {
-        int[] newKeys = new int[ (int)(keys.length * expandedRatio)];
-        int[] newValues = new int[(int) (values.length * expandedRatio)];
-        Arrays.fill(newValues, -1);
-        Arrays.fill(newKeys, -1);
-        size = 0;
-        for (int i = 0; i < keys.length; ++i) {
-            int curr = keys[i];
-            if (curr != EMPTY_KEY) {
-                int val = values[i];
-                putHelp(curr, val, newKeys, newValues);
-            }
-        }
-        keys = newKeys;
-        values = newValues;
+    /**
+     * @return slot of k, adding it with zero values if it is not in the map
+     */
+    private int insert(int k) {
+        int pos = find(k);
+        if (pos >= 0) return pos;
+        if (k == EMPTY_KEY) throw new IllegalArgumentException("Key " + EMPTY_KEY + " is reserved");
+        if (size >= maxSize) grow();
+        return insertNew(k, 0, 0);
     }
 
-    private boolean putHelp(int k, int v, int[] keyArray, int[] valueArray) {
-        int pos = getInitialPos(k, keyArray);
-        int curr = keyArray[pos];
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keyArray.length) pos = 0;
-            curr = keyArray[pos];
+    /**
+     * Add a key known to be absent, the table must have room. Returns its slot
+     */
+    private int insertNew(int k, int v, int v2) {
+        final int mask = keys.length - 1;
+        int pos = hash(k) & mask;
+        size++;
+        if (!robinHood) {
+            while (keys[pos] != EMPTY_KEY)
+                pos = (pos + 1) & mask;
+            keys[pos] = k;
+            values[pos] = v;
+            return pos;
         }
 
-        valueArray[pos] = v;
-        if (curr == EMPTY_KEY) {
-            size++;
-            keyArray[pos] = k;
-            return true;
+        int slotOfK = -1;
+        for (int dist = 0; ; dist++) {
+            int curr = keys[pos];
+            if (curr == EMPTY_KEY) {
+                keys[pos] = k;
+                values[pos] = v;
+                return slotOfK < 0 ? pos : slotOfK;
+            }
+            int currDist = (pos - (hash(curr) & mask)) & mask;
+            if (currDist < dist) {
+                // the resident is closer to home, it gives up the slot and moves on instead
+                int currValue = values[pos];
+                keys[pos] = k;
+                values[pos] = v;
+                k = curr;
+                v = currValue;
+                if (slotOfK < 0) slotOfK = pos;
+                dist = currDist;
+            }
+            pos = (pos + 1) & mask;
         }
-        return false;
     }
 
-    private int getInitialPos(int k, int[] keyArray) {
-        int hash = getHashCode(k);
-        int pos = hash % keyArray.length;
-        if (pos < 0) pos += keyArray.length;
-        // N.B. Doing it this old way causes Integer.MIN_VALUE to be
-        // handled incorrect since -Integer.MIN_VALUE is still
-        // Integer.MIN_VALUE
-//		if (hash < 0) hash = -hash;
-//		int pos = hash % keyArray.length;
-        return pos;
+    private void grow() {
+        if (keys.length == MAX_CAPACITY) throw new IllegalStateException("Map is full: " + size + " keys");
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY)
+                insertNew(oldKeys[i], oldValues[i], 0);
+        }
     }
-    // helper for hash code
-    private int getHashCode(int n) {
-        return (int) ((131111L*n)^n^(1973*n)%sizeInTheory);
+
+    /**
+     * @return true if k was not in the map before
+     */
+    public boolean put(int k, int v) {
+        int oldSize = size;
+        int pos = insert(k); // may grow the table, so not values[insert(k)]
+        values[pos] = v;
+        return size != oldSize;
     }
 
     public int get(int k) {
         int pos = find(k);
+        return pos < 0 ? -1 : values[pos];
+    }
 
-        return values[pos];
+    /**
+     * @return the value of k, or defaultValue if k is not in the map
+     */
+    public int get(int k, int defaultValue) {
+        int pos = find(k);
+        return pos < 0 ? defaultValue : values[pos];
     }
 
-    private int find(int k) {
-        int pos = getInitialPos(k, keys);
-        int curr = keys[pos];
-        while (curr != EMPTY_KEY && curr != k) {
-            pos++;
-            if (pos == keys.length) pos = 0;
-            curr = keys[pos];
-        }
-        return pos;
+    public boolean containsKey(int k) {
+        return find(k) >= 0;
+    }
+
+    /**
+     * Add delta to the value of k, a missing key starts from 0.
+     *
+     * @return the new value
+     */
+    public int addTo(int k, int delta) {
+        int pos = insert(k);
+        values[pos] += delta;
+        return values[pos];
     }
 
     public void increment(int k, int c) {
-        int pos = find(k);
-        int currKey = keys[pos];
-        if (currKey == EMPTY_KEY) {
-            put(k, c);
-        } else
-            values[pos]+=c;
+        addTo(k, c);
     }
 
     public void incrementByOne(int k) {
-        int pos = find(k);
-        int currKey = keys[pos];
-        if (currKey == EMPTY_KEY) {
-            put(k, 1);
-        } else
-            values[pos]++;
+        addTo(k, 1);
+    }
+
+    /**
+     * Callback of forEach, avoids allocating an Entry per key
+     */
+    public interface EntryProcedure {
+        void apply(int key, int value);
+    }
+
+    /**
+     * Call procedure on every entry, in table order
+     */
+    public void forEach(EntryProcedure procedure) {
+        final int[] keys = this.keys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
+                procedure.apply(keys[i], values[i]);
+        }
     }
 
     public static class Entry
     {
-        /**
-         * @param key
-         * @param value
-         */
         public Entry(int key, int value) {
-            super();
             this.key = key;
             this.value = value;
         }
 
         public int key;
-
         public int value;
 
         public int getKey() {
@@ -174,74 +231,82 @@ public class IntIntOpenHashMap {
         }
     }
 
-    private class EntryIterator extends MapIterator<Entry>
+    private class EntryIterator implements Iterator<Entry>
     {
-        public Entry next() {
-            final int nextIndex = nextIndex();
+        private int next = -1;
 
-            return new Entry(keys[nextIndex], values[nextIndex]);
+        EntryIterator() {
+            advance();
         }
-    }
 
-    private abstract class MapIterator<E> implements Iterator<E>
-    {
-        public MapIterator() {
-            end = keys.length;
-            next = -1;
-            nextIndex();
+        private void advance() {
+            do {
+                next++;
+            } while (next < keys.length && keys[next] == EMPTY_KEY);
         }
 
         public boolean hasNext() {
-            return next < end;
+            return next < keys.length;
         }
 
-        int nextIndex() {
-            int curr = next;
-            do {
-                next++;
-            } while (next < end && keys[next] == EMPTY_KEY);
-            return curr;
+        public Entry next() {
+            Entry entry = new Entry(keys[next], values[next]);
+            advance();
+            return entry;
         }
 
         public void remove() {
             throw new UnsupportedOperationException();
         }
-
-        private int next, end;
     }
 
     public Iterable<Entry> entrySet() {
         return CollectionUtils.iterable(new EntryIterator());
     }
 
+    public int[] getKeys() {
+        int[] k = new int[size];
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY_KEY)
+                k[j++] = keys[i];
+        }
+        return k;
+    }
+
     public int size() {
         return size;
     }
 
+    /**
+     * Number of slots of the table
+     */
     public int actualSize() {
         return keys.length;
     }
+
     /**
-     * Optimization method to free up unused entries in this map
-     *
+     * Remove every key, the table keeps its size
      */
-    public void optimizeStorage(double expandedRatio){
-        System.out.println("This map has the utilization of " + 100 * size() / (double) actualSize() + "%. Now optimizing...");
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
 
-        int[] newKeys = new int[size];
-        int[] newValues = new int[size];
-        int j = 0;
+    // slot-level access, lets callers in this package walk the table without allocating Entry objects
+    boolean isOccupied(int slot) {
+        return keys[slot] != EMPTY_KEY;
+    }
 
-        for (int i=0; i<values.length; i++) {
-            if (keys[i] != -1) {
-                newKeys[j] = keys[i];
-                newValues[j] = values[i];
-                j++;
-            }
-        }
-        // free up
-        keys = newKeys;
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueAt(int slot) {
+        return values[slot];
+    }
 
-        rehash(expandedRatio);
+    void setValueAt(int slot, int v) {
+        values[slot] = v;
     }
 }
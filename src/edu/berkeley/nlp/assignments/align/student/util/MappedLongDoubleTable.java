@@ -0,0 +1,95 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only LongDoubleOpenHashMap memory-mapped from a model file (see ModelFile).
+ * The slot arrays of the map are written as they are, so a lookup probes the mapped file exactly like the map
+ * probes its arrays and nothing has to be rebuilt on load. Lookups are thread-safe.
+ */
+public class MappedLongDoubleTable {
+    private static final long EMPTY_KEY = -1;
+    private static final int PAGE_BITS = 27; // slots per mapping, 1 GB of keys or values
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private final LongBuffer[] keys;
+    private final DoubleBuffer[] values;
+    private final int capacity;
+    private final int size;
+
+    private MappedLongDoubleTable(LongBuffer[] keys, DoubleBuffer[] values, int capacity, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.capacity = capacity;
+        this.size = size;
+    }
+
+    /**
+     * Write the slots of map: keys[actualSize] then values[actualSize]
+     */
+    static void write(LongDoubleOpenHashMap map, DataOutputStream out) throws IOException {
+        for (int slot = 0; slot < map.actualSize(); slot++)
+            out.writeLong(map.isOccupied(slot) ? map.keyAt(slot) : EMPTY_KEY);
+        for (int slot = 0; slot < map.actualSize(); slot++)
+            out.writeDouble(map.isOccupied(slot) ? map.valueAt(slot) : 0);
+    }
+
+    /**
+     * @return bytes taken by a table of the given capacity in the file
+     */
+    static long bytes(int capacity) {
+        return 16L * capacity;
+    }
+
+    /**
+     * Map a table written by write() at position pos of the channel
+     */
+    static MappedLongDoubleTable map(FileChannel channel, long pos, int capacity, int size) throws IOException {
+        if (Integer.bitCount(capacity) != 1) throw new IOException("Bad table capacity " + capacity);
+        int pageSize = Math.min(capacity, 1 << PAGE_BITS);
+        int numPages = capacity / pageSize;
+        LongBuffer[] keys = new LongBuffer[numPages];
+        DoubleBuffer[] values = new DoubleBuffer[numPages];
+        long valuesPos = pos + 8L * capacity;
+        for (int p = 0; p < numPages; p++) {
+            long offset = 8L * p * pageSize;
+            keys[p] = channel.map(FileChannel.MapMode.READ_ONLY, pos + offset, 8L * pageSize).asLongBuffer();
+            values[p] = channel.map(FileChannel.MapMode.READ_ONLY, valuesPos + offset, 8L * pageSize).asDoubleBuffer();
+        }
+        return new MappedLongDoubleTable(keys, values, capacity, size);
+    }
+
+    /**
+     * Same probing as LongDoubleOpenHashMap, the key and value of a slot are at the same page and offset
+     */
+    private int find(long k) {
+        if (k == EMPTY_KEY) return -1;
+        final int mask = capacity - 1;
+        int pos = (int) MurmurHash.fmix64(k) & mask;
+        while (true) {
+            long curr = keys[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+            if (curr == k) return pos;
+            if (curr == EMPTY_KEY) return -1;
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    public double get(long k, double defaultValue) {
+        int pos = find(k);
+        return pos < 0 ? defaultValue : values[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+    }
+
+    public boolean containsKey(long k) {
+        return find(k) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,170 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import edu.berkeley.nlp.util.StringIndexer;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary file of a trained model. The small parameters (vocabularies, jump weights, ...) are read into memory,
+ * the translation tables are memory-mapped with MappedLongDoubleTable, so loading a model only costs reading
+ * the vocabularies and several processes share one page-cached copy of the tables.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header    magic, version, paramBytes, numTables
+ * params    kind (DataOutput.writeUTF), then whatever the model writes, with capacity and size of each of its
+ *           tables in the order they were added; zero padded to paramBytes, a multiple of 8
+ * tables    for each table keys[capacity] then values[capacity], see MappedLongDoubleTable
+ * </pre>
+ * The model writes and reads its params and tables in the same order, the format does not describe them.
+ */
+public class ModelFile {
+    private static final int MAGIC = 0x414c474d; // "ALGM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * 4;
+
+    private ModelFile() {
+    }
+
+    public static class Writer {
+        private final ByteArrayOutputStream paramBytes = new ByteArrayOutputStream();
+        private final DataOutputStream params = new DataOutputStream(paramBytes);
+        private final List<LongDoubleOpenHashMap> tables = new ArrayList<>();
+
+        /**
+         * @param kind what model this is, checked on load
+         */
+        public Writer(String kind) throws IOException {
+            params.writeUTF(kind);
+        }
+
+        public DataOutputStream params() {
+            return params;
+        }
+
+        public void writeVocab(StringIndexer indexer) throws IOException {
+            params.writeInt(indexer.size());
+            for (int i = 0; i < indexer.size(); i++)
+                params.writeUTF(indexer.get(i));
+        }
+
+        public void writeDoubles(double[] array) throws IOException {
+            params.writeInt(array.length);
+            for (double d : array)
+                params.writeDouble(d);
+        }
+
+        /**
+         * The table is only written by writeTo(), it must not change before
+         */
+        public void addTable(LongDoubleOpenHashMap table) throws IOException {
+            // tables are presized for training, do not write megabytes of empty slots
+            if (table.actualSize() > 8 && table.size() < table.actualSize() / 4) {
+                final LongDoubleOpenHashMap compact = new LongDoubleOpenHashMap(table.size());
+                table.forEach(new LongDoubleOpenHashMap.EntryProcedure() {
+                    @Override
+                    public void apply(long key, double value) {
+                        compact.put(key, value);
+                    }
+                });
+                table = compact;
+            }
+            params.writeInt(table.actualSize());
+            params.writeInt(table.size());
+            tables.add(table);
+        }
+
+        public void writeTo(File file) throws IOException {
+            while (params.size() % 8 != 0) params.writeByte(0); // tables start 8-byte aligned
+            params.flush();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(paramBytes.size());
+                out.writeInt(tables.size());
+                paramBytes.writeTo(out);
+                for (LongDoubleOpenHashMap table : tables)
+                    MappedLongDoubleTable.write(table, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final File file;
+        private final String kind;
+        private final DataInputStream params;
+        private final RandomAccessFile raf;
+        private final int numTables;
+        private int tablesRead = 0;
+        private long nextTablePos;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            byte[] paramBytes;
+            try {
+                if (in.readInt() != MAGIC) throw new IOException(file + " is not a model file");
+                int version = in.readInt();
+                if (version != VERSION) throw new IOException("Unsupported model file version " + version + " in " + file);
+                paramBytes = new byte[in.readInt()];
+                numTables = in.readInt();
+                in.readFully(paramBytes);
+            } finally {
+                in.close();
+            }
+            params = new DataInputStream(new ByteArrayInputStream(paramBytes));
+            kind = params.readUTF();
+            nextTablePos = HEADER_BYTES + (long) paramBytes.length;
+            raf = new RandomAccessFile(file, "r");
+        }
+
+        public String getKind() {
+            return kind;
+        }
+
+        public DataInputStream params() {
+            return params;
+        }
+
+        public StringIndexer readVocab() throws IOException {
+            int size = params.readInt();
+            StringIndexer indexer = new StringIndexer();
+            for (int i = 0; i < size; i++)
+                indexer.add(params.readUTF());
+            return indexer;
+        }
+
+        public double[] readDoubles() throws IOException {
+            double[] array = new double[params.readInt()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = params.readDouble();
+            return array;
+        }
+
+        /**
+         * Map the next table, in the order of Writer.addTable
+         */
+        public MappedLongDoubleTable readTable() throws IOException {
+            if (tablesRead == numTables) throw new IOException("No more tables in " + file);
+            int capacity = params.readInt();
+            int size = params.readInt();
+            MappedLongDoubleTable table = MappedLongDoubleTable.map(raf.getChannel(), nextTablePos, capacity, size);
+            nextTablePos += MappedLongDoubleTable.bytes(capacity);
+            tablesRead++;
+            return table;
+        }
+
+        /**
+         * The mapped tables stay valid after the file is closed
+         */
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
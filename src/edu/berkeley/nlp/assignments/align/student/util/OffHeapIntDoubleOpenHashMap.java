@@ -0,0 +1,373 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
+import edu.berkeley.nlp.util.CollectionUtils;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Iterator;
+
+/**
+ * Off-heap version of IntDoubleOpenHashMap, with the same API and behaviour.
+ * Keys and values live in direct buffers outside the Java heap, cut into pages of at most 2^PAGE_BITS slots,
+ * so a table of several GB is never scanned or copied by the GC. The memory is released by close(), or by
+ * the GC once the map is unreachable if close() is never called. After close(), every method but close() throws
+ * IllegalStateException.
+ *
+ * GENERATED by PrimitiveMapGenerator from OffHeapOpenHashMap.template, do not edit this file.
+ */
+public class OffHeapIntDoubleOpenHashMap implements Closeable {
+
+    private static final int EMPTY_KEY = -1;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private ByteBuffer[] keyMemory;
+    private ByteBuffer[] valueMemory;
+    private IntBuffer[] keys;
+    private DoubleBuffer[] values;
+    private int capacity;
+
+    private int size = 0;
+    private int maxSize; // grow when size reaches this
+    private final double loadFactor;
+    private final boolean robinHood;
+
+    public OffHeapIntDoubleOpenHashMap() {
+        this(10);
+    }
+
+    public OffHeapIntDoubleOpenHashMap(int initialCapacity) {
+        this(initialCapacity, 0.7);
+    }
+
+    public OffHeapIntDoubleOpenHashMap(int initialCapacity, double loadFactor) {
+        this(initialCapacity, loadFactor, OpenHashMapProbing.LINEAR);
+    }
+
+    /**
+     * @param initialCapacity number of keys that fit without growing the table
+     */
+    public OffHeapIntDoubleOpenHashMap(int initialCapacity, double loadFactor, OpenHashMapProbing probing) {
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException("Load factor must be in (0, 1): " + loadFactor);
+        this.loadFactor = loadFactor;
+        this.robinHood = probing == OpenHashMapProbing.ROBIN_HOOD;
+        allocate(tableSizeFor((long) Math.ceil(Math.max(1, initialCapacity) / loadFactor)));
+    }
+
+    private static int tableSizeFor(long n) {
+        int cap = 8;
+        while (cap < n && cap < MAX_CAPACITY)
+            cap <<= 1;
+        return cap;
+    }
+
+    private void allocate(int capacity) {
+        int pageSize = Math.min(capacity, 1 << PAGE_BITS);
+        int numPages = capacity / pageSize;
+        keyMemory = new ByteBuffer[numPages];
+        valueMemory = new ByteBuffer[numPages];
+        keys = new IntBuffer[numPages];
+        values = new DoubleBuffer[numPages];
+        for (int p = 0; p < numPages; p++) {
+            keyMemory[p] = DirectMemory.allocate(pageSize * 4);
+            valueMemory[p] = DirectMemory.allocate(pageSize * 8);
+            keys[p] = keyMemory[p].asIntBuffer();
+            values[p] = valueMemory[p].asDoubleBuffer();
+            for (int i = 0; i < pageSize; i++)
+                keys[p].put(i, EMPTY_KEY);
+        }
+        this.capacity = capacity;
+        maxSize = capacity == MAX_CAPACITY ? capacity - 1 : (int) (capacity * loadFactor);
+        size = 0;
+    }
+
+    private static void free(ByteBuffer[] memory) {
+        for (ByteBuffer page : memory)
+            DirectMemory.free(page);
+    }
+
+    private int keyAt(int pos) {
+        return keys[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+    }
+
+    private void setKeyAt(int pos, int k) {
+        keys[pos >>> PAGE_BITS].put(pos & PAGE_MASK, k);
+    }
+
+    private double valueAt(int pos) {
+        return values[pos >>> PAGE_BITS].get(pos & PAGE_MASK);
+    }
+
+    private void setValueAt(int pos, double v) {
+        values[pos >>> PAGE_BITS].put(pos & PAGE_MASK, v);
+    }
+
+    private void checkOpen() {
+        if (keys == null) throw new IllegalStateException("Map is closed");
+    }
+
+    private static int hash(int k) {
+        return MurmurHash.fmix32(k);
+    }
+
+    /**
+     * @return slot of k, or -1 if k is not in the map
+     */
+    private int find(int k) {
+        checkOpen();
+        if (k == EMPTY_KEY) return -1;
+        final int mask = capacity - 1;
+        int pos = hash(k) & mask;
+        for (int dist = 0; ; dist++) {
+            int curr = keyAt(pos);
+            if (curr == k) return pos;
+            if (curr == EMPTY_KEY) return -1;
+            // Robin Hood keeps every run sorted by distance from home, k would have been placed before this one
+            if (robinHood && ((pos - (hash(curr) & mask)) & mask) < dist) return -1;
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    /**
+     * @return slot of k, adding it with a zero value if it is not in the map
+     */
+    private int insert(int k) {
+        int pos = find(k);
+        if (pos >= 0) return pos;
+        if (k == EMPTY_KEY) throw new IllegalArgumentException("Key " + EMPTY_KEY + " is reserved");
+        if (size >= maxSize) grow();
+        return insertNew(k, 0);
+    }
+
+    /**
+     * Add a key known to be absent, the table must have room. Returns its slot
+     */
+    private int insertNew(int k, double v) {
+        final int mask = capacity - 1;
+        int pos = hash(k) & mask;
+        size++;
+        if (!robinHood) {
+            while (keyAt(pos) != EMPTY_KEY)
+                pos = (pos + 1) & mask;
+            setKeyAt(pos, k);
+            setValueAt(pos, v);
+            return pos;
+        }
+
+        int slotOfK = -1;
+        for (int dist = 0; ; dist++) {
+            int curr = keyAt(pos);
+            if (curr == EMPTY_KEY) {
+                setKeyAt(pos, k);
+                setValueAt(pos, v);
+                return slotOfK < 0 ? pos : slotOfK;
+            }
+            int currDist = (pos - (hash(curr) & mask)) & mask;
+            if (currDist < dist) {
+                // the resident is closer to home, it gives up the slot and moves on instead
+                double currValue = valueAt(pos);
+                setKeyAt(pos, k);
+                setValueAt(pos, v);
+                k = curr;
+                v = currValue;
+                if (slotOfK < 0) slotOfK = pos;
+                dist = currDist;
+            }
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    private void grow() {
+        if (capacity == MAX_CAPACITY) throw new IllegalStateException("Map is full: " + size + " keys");
+        ByteBuffer[] oldKeyMemory = keyMemory;
+        ByteBuffer[] oldValueMemory = valueMemory;
+        IntBuffer[] oldKeys = keys;
+        DoubleBuffer[] oldValues = values;
+        allocate(capacity * 2);
+        for (int p = 0; p < oldKeys.length; p++) {
+            IntBuffer pageKeys = oldKeys[p];
+            DoubleBuffer pageValues = oldValues[p];
+            for (int i = 0; i < pageKeys.capacity(); i++) {
+                int k = pageKeys.get(i);
+                if (k != EMPTY_KEY)
+                    insertNew(k, pageValues.get(i));
+            }
+        }
+        free(oldKeyMemory);
+        free(oldValueMemory);
+    }
+
+    /**
+     * @return true if k was not in the map before
+     */
+    public boolean put(int k, double v) {
+        int oldSize = size;
+        setValueAt(insert(k), v);
+        return size != oldSize;
+    }
+
+    public double get(int k) {
+        int pos = find(k);
+        return pos < 0 ? 0 : valueAt(pos);
+    }
+
+    /**
+     * @return the value of k, or defaultValue if k is not in the map
+     */
+    public double get(int k, double defaultValue) {
+        int pos = find(k);
+        return pos < 0 ? defaultValue : valueAt(pos);
+    }
+
+    public boolean containsKey(int k) {
+        return find(k) >= 0;
+    }
+
+    /**
+     * Add delta to the value of k, a missing key starts from 0.
+     *
+     * @return the new value
+     */
+    public double addTo(int k, double delta) {
+        int pos = insert(k);
+        double v = valueAt(pos) + delta;
+        setValueAt(pos, v);
+        return v;
+    }
+
+    public void increment(int k, double c) {
+        addTo(k, c);
+    }
+
+    public void incrementByOne(int k) {
+        addTo(k, 1);
+    }
+
+    /**
+     * Callback of forEach, avoids allocating an Entry per key
+     */
+    public interface EntryProcedure {
+        void apply(int key, double value);
+    }
+
+    /**
+     * Call procedure on every entry, in table order
+     */
+    public void forEach(EntryProcedure procedure) {
+        checkOpen();
+        for (int i = 0; i < capacity; i++) {
+            int k = keyAt(i);
+            if (k != EMPTY_KEY)
+                procedure.apply(k, valueAt(i));
+        }
+    }
+
+    public static class Entry
+    {
+        public Entry(int key, double value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public int key;
+        public double value;
+
+        public int getKey() {
+            return key;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    private class EntryIterator implements Iterator<Entry>
+    {
+        private int next = -1;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < capacity && keyAt(next) == EMPTY_KEY);
+        }
+
+        public boolean hasNext() {
+            return next < capacity;
+        }
+
+        public Entry next() {
+            Entry entry = new Entry(keyAt(next), valueAt(next));
+            advance();
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public Iterable<Entry> entrySet() {
+        checkOpen();
+        return CollectionUtils.iterable(new EntryIterator());
+    }
+
+    public int[] getKeys() {
+        checkOpen();
+        int[] k = new int[size];
+        int j = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (keyAt(i) != EMPTY_KEY)
+                k[j++] = keyAt(i);
+        }
+        return k;
+    }
+
+    public int size() {
+        checkOpen();
+        return size;
+    }
+
+    /**
+     * Number of slots of the table
+     */
+    public int actualSize() {
+        checkOpen();
+        return capacity;
+    }
+
+    /**
+     * Remove every key, the table keeps its size
+     */
+    public void clear() {
+        checkOpen();
+        for (IntBuffer page : keys) {
+            for (int i = 0; i < page.capacity(); i++)
+                page.put(i, EMPTY_KEY);
+        }
+        size = 0;
+    }
+
+    /**
+     * Release the off-heap memory now. Calling it again does nothing.
+     */
+    @Override
+    public void close() {
+        if (keys == null) return;
+        free(keyMemory);
+        free(valueMemory);
+        keyMemory = valueMemory = null;
+        keys = null;
+        values = null;
+        capacity = 0;
+        size = 0;
+    }
+}
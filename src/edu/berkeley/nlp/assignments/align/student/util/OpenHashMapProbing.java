@@ -0,0 +1,16 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+/**
+ * Collision resolution of the generated primitive open hash maps (see PrimitiveMapGenerator).
+ */
+public enum OpenHashMapProbing {
+    /**
+     * Classic linear probing: a key goes to the first free slot after its home slot
+     */
+    LINEAR,
+    /**
+     * Linear probing where an inserted key takes the slot of any resident that is closer to its own home slot.
+     * Probe lengths stay short and even, and a miss stops as soon as it passes where the key would be
+     */
+    ROBIN_HOOD
+}
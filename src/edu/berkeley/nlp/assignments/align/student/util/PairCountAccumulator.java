@@ -0,0 +1,37 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+/**
+ * Sparse expected counts count(word, given) of one block of sentences, keyed by bitPackingBigram(word, given).
+ * Used as the per-thread shard of the parallel E-step, see ParallelEMDriver.
+ */
+public class PairCountAccumulator {
+    private final LongDoubleOpenHashMap counts;
+
+    public PairCountAccumulator() {
+        this(100000);
+    }
+
+    public PairCountAccumulator(int initialCapacity) {
+        counts = new LongDoubleOpenHashMap(initialCapacity);
+    }
+
+    public void increment(int word, int given, double c) {
+        counts.increment(BitPackingUtility.bitPackingBigram(word, given), c);
+    }
+
+    /**
+     * Adds the counts into the expected counts of a sparse table, then empties this accumulator
+     */
+    public void mergeInto(SparseTranslationTable table) {
+        for (int slot = 0; slot < counts.actualSize(); slot++) {
+            if (!counts.isOccupied(slot)) continue;
+            long key = counts.keyAt(slot);
+            table.addCount((int) key, (int) (key >> 32), counts.valueAt(slot));
+        }
+        counts.clear();
+    }
+
+    public int size() {
+        return counts.size();
+    }
+}
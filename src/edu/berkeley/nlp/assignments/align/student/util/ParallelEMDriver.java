@@ -0,0 +1,137 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the E-step of an EM algorithm on several threads.
+ * The corpus is cut into blocks of a fixed number of items, every block is accumulated into its own
+ * accumulator by a worker thread, and the accumulators are merged on the calling thread in corpus order.
+ * Since the blocks and the merge order do not depend on the number of threads, the counts (and so the
+ * whole EM run) are exactly the same for 1 thread and for 32 threads.
+ */
+public class ParallelEMDriver<T, A> {
+
+    public interface Worker<T, A> {
+        /**
+         * @return a fresh, empty accumulator for one block
+         */
+        A newAccumulator();
+
+        /**
+         * Called on a worker thread: add the expected counts of one item. Must only read the shared model.
+         */
+        void accumulate(T item, A accumulator);
+
+        /**
+         * Called on the driving thread, one block at a time in corpus order: fold the accumulator into the
+         * global counts and leave it empty so it can be reused for the next block.
+         */
+        void merge(A accumulator);
+    }
+
+    private final int numThreads;
+    private final int blockSize;
+    private final ExecutorService pool;
+
+    // blocks (and their accumulators) in flight, reused across windows and iterations
+    private final List<List<T>> blocks = new ArrayList<>();
+    private final List<A> accumulators = new ArrayList<>();
+
+    public ParallelEMDriver(int numThreads, int blockSize) {
+        this.numThreads = Math.max(1, numThreads);
+        this.blockSize = Math.max(1, blockSize);
+        this.pool = this.numThreads == 1 ? null : Executors.newFixedThreadPool(this.numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "em-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * One E-step over the data
+     * @return number of items processed
+     */
+    public int run(Iterable<T> data, final Worker<T, A> worker) {
+        int windowSize = 2 * numThreads; // keep the pool busy while the oldest block is being merged
+        while (blocks.size() < windowSize) {
+            blocks.add(new ArrayList<T>(blockSize));
+            accumulators.add(worker.newAccumulator());
+        }
+
+        int count = 0;
+        Iterator<T> it = data.iterator();
+        List<Future<?>> futures = new ArrayList<>(windowSize);
+        while (it.hasNext()) {
+            // cut the next window of blocks
+            int numBlocks = 0;
+            while (numBlocks < windowSize && it.hasNext()) {
+                List<T> block = blocks.get(numBlocks);
+                block.clear();
+                while (block.size() < blockSize && it.hasNext()) block.add(it.next());
+                count += block.size();
+                numBlocks++;
+            }
+
+            if (pool == null) {
+                for (int b = 0; b < numBlocks; b++) {
+                    accumulateBlock(worker, blocks.get(b), accumulators.get(b));
+                    worker.merge(accumulators.get(b));
+                }
+                continue;
+            }
+
+            futures.clear();
+            for (int b = 0; b < numBlocks; b++) {
+                final List<T> block = blocks.get(b);
+                final A accumulator = accumulators.get(b);
+                futures.add(pool.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        accumulateBlock(worker, block, accumulator);
+                        return null;
+                    }
+                }));
+            }
+            for (int b = 0; b < numBlocks; b++) {
+                waitFor(futures.get(b));
+                worker.merge(accumulators.get(b));
+            }
+        }
+        return count;
+    }
+
+    private void accumulateBlock(Worker<T, A> worker, List<T> block, A accumulator) {
+        for (T item : block)
+            worker.accumulate(item, accumulator);
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+}
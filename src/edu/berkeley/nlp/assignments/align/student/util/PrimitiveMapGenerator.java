@@ -0,0 +1,138 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the primitive open hash maps of this package from PrimitiveOpenHashMap.template, their thread-safe
+ * striped wrappers from StripedOpenHashMap.template and their off-heap versions from OffHeapOpenHashMap.template,
+ * so that a fix or a speedup reaches every key/value combination. Run it from the repository root after changing
+ * a template:
+ *
+ * java edu.berkeley.nlp.assignments.align.student.util.PrimitiveMapGenerator [src/edu/berkeley/nlp/assignments/align/student/util]
+ *
+ * Template syntax: the tokens CLASS_NAME, BASE_NAME, KTYPE, VTYPE, V2TYPE, HASH_EXPR, MISSING_VALUE and, for the
+ * buffers of the off-heap maps, KBUFFER, VBUFFER, KBYTES and VBYTES are substituted, and lines between
+ * "//#if FLAG", "//#else" and "//#endif" are kept depending on FLAG: V2 if the map has a second value, NARROW if
+ * the value type is narrower than int (so arithmetic on it needs a cast back), OFF_HEAP if the wrapped map is one of
+ * the off-heap ones.
+ */
+public class PrimitiveMapGenerator {
+    private static final String DEFAULT_DIR = "src/edu/berkeley/nlp/assignments/align/student/util";
+    private static final String TEMPLATE = "PrimitiveOpenHashMap.template";
+    private static final String STRIPED_TEMPLATE = "StripedOpenHashMap.template";
+    private static final String OFF_HEAP_TEMPLATE = "OffHeapOpenHashMap.template";
+
+    private static final String INT_HASH = "MurmurHash.fmix32(k)";
+    private static final String LONG_HASH = "(int) MurmurHash.fmix64(k)";
+
+    // class name, key type, value type, second value type (null if none), missing value
+    private static final String[][] SPECS = {
+            {"IntIntOpenHashMap", "int", "int", null, "-1"},
+            {"IntDoubleOpenHashMap", "int", "double", null, "0"},
+            {"LongIntOpenHashMap", "long", "int", null, "0"},
+            {"LongDoubleOpenHashMap", "long", "double", null, "0"},
+            {"CounterIntIntIntOpenHashMap", "int", "int", "int", "0"},
+            {"CounterIntDoubleIntOpenHashMap", "int", "double", "int", "0"},
+    };
+
+    // class name, wrapped map (one of SPECS), key type, value type, missing value
+    private static final String[][] STRIPED_SPECS = {
+            {"ConcurrentLongIntOpenHashMap", "LongIntOpenHashMap", "long", "int", "0"},
+            {"ConcurrentLongDoubleOpenHashMap", "LongDoubleOpenHashMap", "long", "double", "0"},
+            {"ConcurrentOffHeapLongIntOpenHashMap", "OffHeapLongIntOpenHashMap", "long", "int", "0"},
+    };
+
+    // class name, on-heap counterpart (one of SPECS), key type, value type, missing value
+    private static final String[][] OFF_HEAP_SPECS = {
+            {"OffHeapLongIntOpenHashMap", "LongIntOpenHashMap", "long", "int", "0"},
+            {"OffHeapLongDoubleOpenHashMap", "LongDoubleOpenHashMap", "long", "double", "0"},
+            {"OffHeapIntDoubleOpenHashMap", "IntDoubleOpenHashMap", "int", "double", "0"},
+    };
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : DEFAULT_DIR);
+        List<String> template = Files.readAllLines(new File(dir, TEMPLATE).toPath(), StandardCharsets.UTF_8);
+        for (String[] spec : SPECS)
+            write(dir, spec[0], generate(template, spec[0], null, spec[1], spec[2], spec[3], spec[4]));
+
+        List<String> striped = Files.readAllLines(new File(dir, STRIPED_TEMPLATE).toPath(), StandardCharsets.UTF_8);
+        for (String[] spec : STRIPED_SPECS)
+            write(dir, spec[0], generate(striped, spec[0], spec[1], spec[2], spec[3], null, spec[4]));
+
+        List<String> offHeap = Files.readAllLines(new File(dir, OFF_HEAP_TEMPLATE).toPath(), StandardCharsets.UTF_8);
+        for (String[] spec : OFF_HEAP_SPECS)
+            write(dir, spec[0], generate(offHeap, spec[0], spec[1], spec[2], spec[3], null, spec[4]));
+    }
+
+    private static void write(File dir, String className, String source) throws IOException {
+        File out = new File(dir, className + ".java");
+        Files.write(out.toPath(), source.getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + out);
+    }
+
+    static String generate(List<String> template, String className, String baseName, String keyType, String valueType,
+                           String value2Type, String missingValue) {
+        boolean hasValue2 = value2Type != null;
+        Set<String> flags = new HashSet<>();
+        if (hasValue2) flags.add("V2");
+        if (Arrays.asList("byte", "short", "char").contains(valueType)) flags.add("NARROW");
+        if (isOffHeap(baseName)) flags.add("OFF_HEAP");
+        StringBuilder sb = new StringBuilder();
+        boolean inIf = false, keep = true, condition = false;
+        for (String line : template) {
+            String directive = line.trim();
+            if (directive.startsWith("//#if ")) {
+                if (inIf) throw new IllegalStateException("Nested //#if in " + TEMPLATE);
+                inIf = true;
+                condition = flags.contains(directive.substring("//#if ".length()).trim());
+                keep = condition;
+            } else if (directive.equals("//#else")) {
+                if (!inIf) throw new IllegalStateException("//#else without //#if in " + TEMPLATE);
+                keep = !condition;
+            } else if (directive.equals("//#endif")) {
+                if (!inIf) throw new IllegalStateException("//#endif without //#if in " + TEMPLATE);
+                inIf = false;
+                keep = true;
+            } else if (keep) {
+                sb.append(line
+                        .replace("CLASS_NAME", className)
+                        .replace("BASE_NAME", baseName == null ? "" : baseName)
+                        .replace("V2TYPE", hasValue2 ? value2Type : "int")
+                        .replace("KTYPE", keyType)
+                        .replace("VTYPE", valueType)
+                        .replace("HASH_EXPR", keyType.equals("long") ? LONG_HASH : INT_HASH)
+                        .replace("KBUFFER", bufferClass(keyType))
+                        .replace("VBUFFER", bufferClass(valueType))
+                        .replace("KBYTES", String.valueOf(bytes(keyType)))
+                        .replace("VBYTES", String.valueOf(bytes(valueType)))
+                        .replace("MISSING_VALUE", missingValue))
+                        .append('\n');
+            }
+        }
+        if (inIf) throw new IllegalStateException("Missing //#endif in " + TEMPLATE);
+        return sb.toString();
+    }
+
+    private static boolean isOffHeap(String mapName) {
+        for (String[] spec : OFF_HEAP_SPECS) {
+            if (spec[0].equals(mapName)) return true;
+        }
+        return false;
+    }
+
+    // java.nio view buffer of a primitive type, e.g. LongBuffer
+    private static String bufferClass(String type) {
+        return Character.toUpperCase(type.charAt(0)) + type.substring(1) + "Buffer";
+    }
+
+    private static int bytes(String type) {
+        return type.equals("long") || type.equals("double") ? 8 : 4;
+    }
+}
@@ -0,0 +1,103 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import edu.berkeley.nlp.math.SloppyMath;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Log-space sparse translation table log t(word | given), used for the HMM emissions.
+ * Expected counts are only collected for observed (word, given) pairs, keyed by bitPackingBigram(word, given),
+ * and combined with SloppyMath.logAdd; the M-step only visits those pairs.
+ * Pairs that are not stored read as the uniform initial value until the first M-step and as -inf afterwards,
+ * which is what a dense table re-estimated over all vocab^2 cells would hold.
+ * A table read back from a model file (see load) is memory-mapped and read-only.
+ */
+public class SparseLogTranslationTable {
+    private final LongDoubleOpenHashMap logProbs;
+    private final LongDoubleOpenHashMap logCounts; // expected counts of the current EM iteration
+    private final double[] logTotals; // log total(given)
+    private final MappedLongDoubleTable mappedLogProbs; // instead of the three above for a loaded table
+    private double unseenLogProb;
+
+    public SparseLogTranslationTable(int givenVocabSize, double initialLogProb) {
+        this(givenVocabSize, initialLogProb, 1000000);
+    }
+
+    public SparseLogTranslationTable(int givenVocabSize, double initialLogProb, int initialCapacity) {
+        logProbs = new LongDoubleOpenHashMap(initialCapacity);
+        logCounts = new LongDoubleOpenHashMap(initialCapacity);
+        logTotals = new double[givenVocabSize];
+        Arrays.fill(logTotals, Double.NEGATIVE_INFINITY);
+        unseenLogProb = initialLogProb;
+        mappedLogProbs = null;
+    }
+
+    private SparseLogTranslationTable(MappedLongDoubleTable mappedLogProbs, double unseenLogProb) {
+        logProbs = logCounts = null;
+        logTotals = null;
+        this.mappedLogProbs = mappedLogProbs;
+        this.unseenLogProb = unseenLogProb;
+    }
+
+    /**
+     * Write log t() into a model file
+     */
+    public void save(ModelFile.Writer out) throws IOException {
+        checkTrainable();
+        out.params().writeDouble(unseenLogProb);
+        out.addTable(logProbs);
+    }
+
+    /**
+     * Map a table written by save(), the result can only be read
+     */
+    public static SparseLogTranslationTable load(ModelFile.Reader in) throws IOException {
+        double unseenLogProb = in.params().readDouble();
+        return new SparseLogTranslationTable(in.readTable(), unseenLogProb);
+    }
+
+    private void checkTrainable() {
+        if (mappedLogProbs != null) throw new IllegalStateException("Translation table loaded from a model file is read-only");
+    }
+
+    public double get(int word, int given) {
+        long key = BitPackingUtility.bitPackingBigram(word, given);
+        return mappedLogProbs != null ? mappedLogProbs.get(key, unseenLogProb) : logProbs.get(key, unseenLogProb);
+    }
+
+    /**
+     * E-step: add a posterior (in log space) to count(word, given) and total(given)
+     */
+    public void addLogCount(int word, int given, double logCount) {
+        checkTrainable();
+        long key = BitPackingUtility.bitPackingBigram(word, given);
+        logCounts.put(key, SloppyMath.logAdd(logCounts.get(key, Double.NEGATIVE_INFINITY), logCount));
+        logTotals[given] = SloppyMath.logAdd(logTotals[given], logCount);
+    }
+
+    /**
+     * M-step: log t(word | given) = log count(word, given) - log total(given) for every observed pair,
+     * every other pair gets -inf. Resets the counts for the next iteration.
+     */
+    public void maximize() {
+        checkTrainable();
+        logProbs.clear();
+        for (int slot = 0; slot < logCounts.actualSize(); slot++) {
+            if (!logCounts.isOccupied(slot)) continue;
+            long key = logCounts.keyAt(slot);
+            int given = (int) (key >> 32);
+            logProbs.put(key, logCounts.valueAt(slot) - logTotals[given]);
+        }
+        unseenLogProb = Double.NEGATIVE_INFINITY;
+        logCounts.clear();
+        Arrays.fill(logTotals, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * @return number of stored (word, given) pairs
+     */
+    public int size() {
+        return mappedLogProbs != null ? mappedLogProbs.size() : logProbs.size();
+    }
+}
@@ -0,0 +1,106 @@
+package edu.berkeley.nlp.assignments.align.student.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Sparse translation table t(word | given) for the IBM models.
+ * Only pairs that co-occur in some sentence are stored, keyed by bitPackingBigram(word, given),
+ * so memory grows with the number of co-occurrences instead of vocab^2.
+ * Absent pairs have probability 0, exactly like the untouched cells of the old dense float[][] tables.
+ * A table read back from a model file (see load) is memory-mapped and read-only.
+ */
+public class SparseTranslationTable {
+    private final LongDoubleOpenHashMap probs;
+    private final LongDoubleOpenHashMap counts; // expected counts of the current EM iteration
+    private final double[] totals; // total(given), indexed by the conditioning word
+    private final MappedLongDoubleTable mappedProbs; // instead of the three above for a loaded table
+
+    public SparseTranslationTable(int givenVocabSize) {
+        this(givenVocabSize, 1000000);
+    }
+
+    public SparseTranslationTable(int givenVocabSize, int initialCapacity) {
+        probs = new LongDoubleOpenHashMap(initialCapacity);
+        counts = new LongDoubleOpenHashMap(initialCapacity);
+        totals = new double[givenVocabSize];
+        mappedProbs = null;
+    }
+
+    private SparseTranslationTable(MappedLongDoubleTable mappedProbs) {
+        probs = counts = null;
+        totals = null;
+        this.mappedProbs = mappedProbs;
+    }
+
+    /**
+     * Write t() into a model file
+     */
+    public void save(ModelFile.Writer out) throws IOException {
+        checkTrainable();
+        out.addTable(probs);
+    }
+
+    /**
+     * Map a table written by save(), the result can only be read
+     */
+    public static SparseTranslationTable load(ModelFile.Reader in) throws IOException {
+        return new SparseTranslationTable(in.readTable());
+    }
+
+    private void checkTrainable() {
+        if (mappedProbs != null) throw new IllegalStateException("Translation table loaded from a model file is read-only");
+    }
+
+    public double get(int word, int given) {
+        long key = BitPackingUtility.bitPackingBigram(word, given);
+        return mappedProbs != null ? mappedProbs.get(key, 0) : probs.get(key);
+    }
+
+    public void set(int word, int given, double prob) {
+        checkTrainable();
+        probs.put(BitPackingUtility.bitPackingBigram(word, given), prob);
+    }
+
+    public boolean contains(int word, int given) {
+        long key = BitPackingUtility.bitPackingBigram(word, given);
+        return mappedProbs != null ? mappedProbs.containsKey(key) : probs.containsKey(key);
+    }
+
+    /**
+     * E-step: collect a fractional count for (word, given)
+     */
+    public void addCount(int word, int given, double c) {
+        checkTrainable();
+        counts.increment(BitPackingUtility.bitPackingBigram(word, given), c);
+        totals[given] += c;
+    }
+
+    /**
+     * M-step: t(word | given) = count(word, given) / total(given) over the stored pairs only,
+     * then reset the counts for the next iteration.
+     * @return sum of absolute changes of the probabilities (pairs that are not stored do not change)
+     */
+    public double maximize() {
+        checkTrainable();
+        double change = 0;
+        for (int slot = 0; slot < probs.actualSize(); slot++) {
+            if (!probs.isOccupied(slot)) continue;
+            long key = probs.keyAt(slot);
+            int given = (int) (key >> 32);
+            double newVal = totals[given] == 0 ? 0 : counts.get(key) / totals[given];
+            change += Math.abs(probs.valueAt(slot) - newVal);
+            probs.setValueAt(slot, newVal);
+        }
+        counts.clear();
+        Arrays.fill(totals, 0);
+        return change;
+    }
+
+    /**
+     * @return number of stored (word, given) pairs
+     */
+    public int size() {
+        return mappedProbs != null ? mappedProbs.size() : probs.size();
+    }
+}
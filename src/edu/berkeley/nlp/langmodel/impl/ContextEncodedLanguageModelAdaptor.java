@@ -0,0 +1,61 @@
+package edu.berkeley.nlp.langmodel.impl;
+
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Wraps a plain NgramLanguageModel as a ContextEncodedNgramLanguageModel, so
+ * that decoders can keep a single (context, order) state whatever the language
+ * model. There is no context table here: the context offset holds the word ids
+ * of the last (at most two) context words themselves, and every query scores
+ * the explicit n-gram with the wrapped model. Only models of order at most 3
+ * can be wrapped.
+ * 
+ * Use getContextEncodedLm to get a context-encoded view of any model, which
+ * unwraps a NgramLanguageModelAdaptor instead of wrapping it.
+ * 
+ */
+public class ContextEncodedLanguageModelAdaptor extends AbstractContextEncodedNgramLanguageModel
+{
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private final NgramLanguageModel lm;
+
+	public static ContextEncodedNgramLanguageModel getContextEncodedLm(NgramLanguageModel lm, StringIndexer wordIndexer) {
+		if (lm instanceof NgramLanguageModelAdaptor) return ((NgramLanguageModelAdaptor) lm).getContextEncodedLm();
+		return new ContextEncodedLanguageModelAdaptor(lm, wordIndexer);
+	}
+
+	public ContextEncodedLanguageModelAdaptor(NgramLanguageModel lm, StringIndexer wordIndexer) {
+		super(lm.getOrder(), wordIndexer);
+		if (lm.getOrder() > 3) throw new IllegalArgumentException("Cannot encode the contexts of a language model of order " + lm.getOrder());
+		this.lm = lm;
+	}
+
+	public float getLogProb(long context, int contextOrder, int word, LmContextInfo outputContext) {
+		int[] ngram = new int[contextOrder + 2];
+		for (int i = 0; i <= contextOrder; ++i) {
+			ngram[i] = (int) (context >>> (32 * (contextOrder - i)));
+		}
+		ngram[contextOrder + 1] = word;
+		return getLogProb(ngram, 0, ngram.length, outputContext);
+	}
+
+	public float getLogProb(int[] ngram, int startPos, int endPos, LmContextInfo outputContext) {
+		if (outputContext != null) {
+			final int contextStart = Math.max(startPos, endPos - lmOrder + 1);
+			long context = 0L;
+			for (int i = contextStart; i < endPos; ++i) {
+				context = (context << 32) | (ngram[i] & 0xffffffffL);
+			}
+			outputContext.context = context;
+			outputContext.order = endPos - contextStart - 1;
+		}
+		return (float) lm.getNgramLogProbability(ngram, startPos, endPos);
+	}
+
+}
@@ -129,10 +129,16 @@ public class KneserNeyLm extends AbstractContextEncodedNgramLanguageModel implem
 		if (index >= 0) {
 			final int ngramOrder = prefixNgramOrder + 1;
 			final float prob = values.getProb(ngramOrder, index);
-			long prefixIndexHere = values.getContextOffset(index, ngramOrder);
 			if (outputPrefixIndex != null) {
-				outputPrefixIndex.context = prefixIndexHere;
-				outputPrefixIndex.order = ngramOrder;
+				// the longest suffix in the model of at most lmOrder - 1 words: the n-gram itself if it is shorter than
+				// that, since the longer suffixes were not found, otherwise the n-gram without its first word
+				if (ngramOrder < lmOrder - 1) {
+					outputPrefixIndex.context = index;
+					outputPrefixIndex.order = ngramOrder;
+				} else {
+					outputPrefixIndex.context = values.getContextOffset(index, ngramOrder);
+					outputPrefixIndex.order = ngramOrder - 1;
+				}
 			}
 			return prob;
 		} else if (prefixNgramOrder >= 0) {
@@ -143,6 +149,10 @@ public class KneserNeyLm extends AbstractContextEncodedNgramLanguageModel implem
 			float backOff = backoffIndex < 0 ? 0.0f : values.getBackoff(prefixNgramOrder, backoffIndex);
 			return backOff + nextProb;
 		} else {
+			if (outputPrefixIndex != null) {
+				outputPrefixIndex.context = 0L;
+				outputPrefixIndex.order = -1;
+			}
 			return oovWordLogProb;
 		}
 
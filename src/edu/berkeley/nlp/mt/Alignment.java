@@ -47,8 +47,31 @@ public class Alignment
 	}
 
 	public Alignment() {
-		sureAlignments = new HashSet<Pair<Integer, Integer>>();
-		possibleAlignments = new HashSet<Pair<Integer, Integer>>();
+		this(new HashSet<Pair<Integer, Integer>>(), new HashSet<Pair<Integer, Integer>>());
+	}
+
+	/**
+	 * For subclasses with another storage, see BitAlignment
+	 */
+	Alignment(Set<Pair<Integer, Integer>> sureAlignments, Set<Pair<Integer, Integer>> possibleAlignments) {
+		this.sureAlignments = sureAlignments;
+		this.possibleAlignments = possibleAlignments;
+	}
+
+	/**
+	 * Keep only the sure alignments that are also sure in other (intersection of two directional alignments)
+	 */
+	public void retainSureAlignments(Alignment other) {
+		sureAlignments.retainAll(other.sureAlignments);
+	}
+
+	/**
+	 * Add the sure alignments of other as sure alignments (union of two directional alignments)
+	 */
+	public void addSureAlignments(Alignment other) {
+		for (Pair<Integer, Integer> a : other.sureAlignments) {
+			addAlignment(a.getFirst(), a.getSecond(), true);
+		}
 	}
 
 	public static String render(Alignment alignment, SentencePair sentencePair) {
@@ -126,7 +149,7 @@ public class Alignment
 				String type = words[3];
 				Alignment alignment = alignments.get(sentenceID);
 				if (alignment == null) {
-					alignment = new Alignment();
+					alignment = new BitAlignment();
 					alignments.put(sentenceID, alignment);
 				}
 				alignment.addAlignment(englishPosition, frenchPosition, type.equals("S"));
@@ -16,9 +16,9 @@ public class BaselineWordAligner implements WordAligner
 	}
 
 	public Alignment alignSentencePair(SentencePair sentencePair) {
-		Alignment alignment = new Alignment();
 		int numFrenchWords = sentencePair.getFrenchWords().size();
 		int numEnglishWords = sentencePair.getEnglishWords().size();
+		Alignment alignment = new BitAlignment(numEnglishWords, numFrenchWords);
 		for (int frenchPosition = 0; frenchPosition < numFrenchWords; frenchPosition++) {
 			int englishPosition = frenchPosition;
 			if (englishPosition < numEnglishWords) alignment.addAlignment(englishPosition, frenchPosition, true);
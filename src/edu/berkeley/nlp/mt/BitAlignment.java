@@ -0,0 +1,286 @@
+package edu.berkeley.nlp.mt;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import edu.berkeley.nlp.util.Pair;
+
+/**
+ * Alignment stored as two bit matrices (sure and possible) with one row of bits per english position, so
+ * adding and testing a link is a shift and a mask, nothing is allocated. The sets returned by
+ * getSureAlignments() are live views of the matrices and still work, but iterating them allocates a Pair
+ * per link: prefer containsSureAlignment, nextSureFrench and retainSureAlignments. The matrices grow when a
+ * link falls outside of them, so the sentence lengths given to the constructor are only a size hint.
+ */
+public class BitAlignment extends Alignment
+{
+	private final LinkBits sure;
+
+	private final LinkBits possible;
+
+	public BitAlignment() {
+		this(0, 0);
+	}
+
+	public BitAlignment(int numEnglish, int numFrench) {
+		this(new LinkBits(numEnglish, numFrench), new LinkBits(numEnglish, numFrench));
+	}
+
+	private BitAlignment(LinkBits sure, LinkBits possible) {
+		super(new LinkSet(sure), new LinkSet(possible));
+		this.sure = sure;
+		this.possible = possible;
+	}
+
+	@Override
+	public boolean containsSureAlignment(int englishPosition, int frenchPosition) {
+		return sure.get(englishPosition, frenchPosition);
+	}
+
+	@Override
+	public boolean containsPossibleAlignment(int englishPosition, int frenchPosition) {
+		return possible.get(englishPosition, frenchPosition);
+	}
+
+	@Override
+	public void addAlignment(int englishPosition, int frenchPosition, boolean sure) {
+		if (englishPosition < 0 || frenchPosition < 0) return;
+		if (sure) this.sure.set(englishPosition, frenchPosition);
+		possible.set(englishPosition, frenchPosition);
+	}
+
+	/**
+	 * @return the first french position at or after fromFrench that is surely aligned to englishPosition,
+	 *         or -1 if there is none
+	 */
+	public int nextSureFrench(int englishPosition, int fromFrench) {
+		return sure.nextSet(englishPosition, fromFrench);
+	}
+
+	public int numSureAlignments() {
+		return sure.size;
+	}
+
+	/**
+	 * Keep only the sure links that are also sure in other, word by word if other is a BitAlignment too
+	 */
+	@Override
+	public void retainSureAlignments(Alignment other) {
+		if (other instanceof BitAlignment) {
+			sure.retainAll(((BitAlignment) other).sure);
+		} else {
+			super.retainSureAlignments(other);
+		}
+	}
+
+	/**
+	 * Add the sure links of other as sure (and possible) links
+	 */
+	@Override
+	public void addSureAlignments(Alignment other) {
+		if (other instanceof BitAlignment) {
+			sure.addAll(((BitAlignment) other).sure);
+			possible.addAll(((BitAlignment) other).sure);
+		} else {
+			super.addSureAlignments(other);
+		}
+	}
+
+	@Override
+	public List<Link> getAlignmentsToEnglish(int englishPos) {
+		List<Link> englishAlignments = new ArrayList<Link>();
+		for (int fr = nextSureFrench(englishPos, 0); fr >= 0; fr = nextSureFrench(englishPos, fr + 1)) {
+			englishAlignments.add(new Link(englishPos, fr));
+		}
+		return englishAlignments;
+	}
+
+	@Override
+	public Alignment getReverseCopy() {
+		return new BitAlignment(sure.transpose(), possible.transpose());
+	}
+
+	/**
+	 * Bit matrix, row e holds the links of english position e, stride words of 64 french positions each
+	 */
+	static final class LinkBits
+	{
+		private long[] words;
+
+		private int rows;
+
+		private int stride;
+
+		int size = 0;
+
+		LinkBits(int rows, int columns) {
+			this.rows = Math.max(1, rows);
+			this.stride = Math.max(1, (columns + 63) >>> 6);
+			this.words = new long[this.rows * this.stride];
+		}
+
+		boolean get(int en, int fr) {
+			if (en < 0 || fr < 0 || en >= rows || fr >= (stride << 6)) return false;
+			return (words[en * stride + (fr >>> 6)] & (1L << fr)) != 0;
+		}
+
+		/**
+		 * @return true if the link was not there yet
+		 */
+		boolean set(int en, int fr) {
+			if (en >= rows || fr >= (stride << 6)) grow(en + 1, fr + 1);
+			int w = en * stride + (fr >>> 6);
+			long bit = 1L << fr;
+			if ((words[w] & bit) != 0) return false;
+			words[w] |= bit;
+			size++;
+			return true;
+		}
+
+		boolean clear(int en, int fr) {
+			if (!get(en, fr)) return false;
+			words[en * stride + (fr >>> 6)] &= ~(1L << fr);
+			size--;
+			return true;
+		}
+
+		int nextSet(int en, int fromFr) {
+			if (en < 0 || en >= rows) return -1;
+			int w = Math.max(0, fromFr) >>> 6;
+			if (w >= stride) return -1;
+			long word = words[en * stride + w] & (-1L << Math.max(0, fromFr));
+			while (true) {
+				if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+				if (++w == stride) return -1;
+				word = words[en * stride + w];
+			}
+		}
+
+		private void grow(int minRows, int minColumns) {
+			int newRows = Math.max(rows, minRows);
+			if (newRows > rows) newRows = Math.max(newRows, 2 * rows);
+			int newStride = Math.max(stride, (minColumns + 63) >>> 6);
+			long[] newWords = new long[newRows * newStride];
+			for (int e = 0; e < rows; e++)
+				System.arraycopy(words, e * stride, newWords, e * newStride, stride);
+			words = newWords;
+			rows = newRows;
+			stride = newStride;
+		}
+
+		void retainAll(LinkBits other) {
+			size = 0;
+			for (int e = 0; e < rows; e++) {
+				for (int w = 0; w < stride; w++) {
+					int i = e * stride + w;
+					words[i] &= (e < other.rows && w < other.stride) ? other.words[e * other.stride + w] : 0;
+					size += Long.bitCount(words[i]);
+				}
+			}
+		}
+
+		void addAll(LinkBits other) {
+			if (other.rows > rows || other.stride > stride) grow(other.rows, other.stride << 6);
+			size = 0;
+			for (int e = 0; e < rows; e++) {
+				for (int w = 0; w < stride; w++) {
+					int i = e * stride + w;
+					if (e < other.rows && w < other.stride) words[i] |= other.words[e * other.stride + w];
+					size += Long.bitCount(words[i]);
+				}
+			}
+		}
+
+		LinkBits transpose() {
+			LinkBits t = new LinkBits(stride << 6, rows);
+			for (int e = 0; e < rows; e++) {
+				for (int f = nextSet(e, 0); f >= 0; f = nextSet(e, f + 1))
+					t.set(f, e);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Set of (english, french) pairs backed by a bit matrix, for the Set based API of Alignment
+	 */
+	private static final class LinkSet extends AbstractSet<Pair<Integer, Integer>>
+	{
+		private final LinkBits bits;
+
+		LinkSet(LinkBits bits) {
+			this.bits = bits;
+		}
+
+		@Override
+		public int size() {
+			return bits.size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Pair)) return false;
+			Pair<?, ?> pair = (Pair<?, ?>) o;
+			if (!(pair.getFirst() instanceof Integer) || !(pair.getSecond() instanceof Integer)) return false;
+			return bits.get((Integer) pair.getFirst(), (Integer) pair.getSecond());
+		}
+
+		@Override
+		public boolean add(Pair<Integer, Integer> pair) {
+			if (pair.getFirst() < 0 || pair.getSecond() < 0) throw new IllegalArgumentException("Negative position in " + pair);
+			return bits.set(pair.getFirst(), pair.getSecond());
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!contains(o)) return false;
+			Pair<?, ?> pair = (Pair<?, ?>) o;
+			return bits.clear((Integer) pair.getFirst(), (Integer) pair.getSecond());
+		}
+
+		@Override
+		public Iterator<Pair<Integer, Integer>> iterator() {
+			return new Iterator<Pair<Integer, Integer>>()
+			{
+				private int en = 0;
+
+				private int fr = -1;
+
+				private int lastEn = -1;
+
+				private int lastFr = -1;
+
+				{
+					advance();
+				}
+
+				private void advance() {
+					fr = bits.nextSet(en, fr + 1);
+					while (fr < 0 && ++en < bits.rows)
+						fr = bits.nextSet(en, 0);
+				}
+
+				public boolean hasNext() {
+					return en < bits.rows;
+				}
+
+				public Pair<Integer, Integer> next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					lastEn = en;
+					lastFr = fr;
+					advance();
+					return new Pair<Integer, Integer>(lastEn, lastFr);
+				}
+
+				public void remove() {
+					if (lastEn < 0) throw new IllegalStateException();
+					bits.clear(lastEn, lastFr);
+					lastEn = -1;
+				}
+			};
+		}
+	}
+}
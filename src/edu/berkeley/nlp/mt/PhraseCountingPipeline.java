@@ -0,0 +1,243 @@
+package edu.berkeley.nlp.mt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.nlp.mt.decoder.Logger;
+import edu.berkeley.nlp.mt.phrasetable.PhrasePairCounts;
+import edu.berkeley.nlp.util.CollectionUtils;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Aligns a corpus, extracts its phrase pairs and counts them in one streaming pass, in stages:
+ * <ol>
+ * <li>align: WordAligner.alignAll on numThreads aligner threads, alignments come back in corpus order. The corpus
+ * is read once: every sentence pair the aligner reads is queued until its alignment comes back</li>
+ * <li>extract: blocks of aligned sentences go to numThreads extraction threads, each with its own
+ * PhraseExtractor, which lowercases the sentences and indexes their words lazily, only the words of extracted
+ * pairs reach the shared indexers. Each thread counts the pairs in its own PhrasePairCounts, without locking</li>
+ * <li>count: once the corpus is done, the counts of the threads are added up on the calling thread</li>
+ * </ol>
+ * At most 2 * numThreads blocks are in flight, so memory does not grow with the corpus. With several threads, the
+ * ids given to new words depend on the order blocks are extracted in, the counts are the same up to these ids. A
+ * PhraseTable read from the counts, and the files it writes, do not depend on the ids, see
+ * PhraseTable.sortTranslations. Time spent in every stage is reported at the end.
+ */
+public class PhraseCountingPipeline
+{
+	/**
+	 * Sentences extracted by one task
+	 */
+	public static final int BLOCK_SIZE = 256;
+
+	private final int numThreads;
+
+	private final int maxPhraseSize;
+
+	private final int maxNumUnaligned;
+
+	private PhrasePairCounts counts;
+
+	// thread nanoseconds spent extracting
+	private final AtomicLong extractNanos = new AtomicLong();
+
+	private final ThreadLocal<PhraseExtractor> extractors = new ThreadLocal<PhraseExtractor>()
+	{
+		@Override
+		protected PhraseExtractor initialValue() {
+			return new PhraseExtractor();
+		}
+	};
+
+	// counts of every thread that extracted a block, added up at the end of run()
+	private final List<PhrasePairCounts> allThreadCounts = new ArrayList<PhrasePairCounts>();
+
+	private final ThreadLocal<PhrasePairCounts> threadCounts = new ThreadLocal<PhrasePairCounts>()
+	{
+		@Override
+		protected PhrasePairCounts initialValue() {
+			PhrasePairCounts threadCounts = new PhrasePairCounts();
+			synchronized (allThreadCounts) {
+				allThreadCounts.add(threadCounts);
+			}
+			return threadCounts;
+		}
+	};
+
+	public PhraseCountingPipeline(int numThreads, int maxPhraseSize, int maxNumUnaligned) {
+		this.numThreads = Math.max(1, numThreads);
+		this.maxPhraseSize = maxPhraseSize;
+		this.maxNumUnaligned = maxNumUnaligned;
+	}
+
+	/**
+	 * Align, extract and count every pair of sentencePairs. Can be called once.
+	 */
+	public void run(final Iterable<SentencePair> sentencePairs, WordAligner wordAligner, StringIndexer eWordIndexer, StringIndexer fWordIndexer) {
+		ExecutorService pool = numThreads == 1 ? null : Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "phrase-extractor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final int maxPending = 2 * numThreads;
+		ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+		long alignNanos = 0;
+		long countNanos = 0;
+		long start = System.nanoTime();
+		int sent = 0;
+		try {
+			// pairs read by the aligner, in corpus order, whose alignment has not been taken yet
+			final Queue<SentencePair> inFlight = new ConcurrentLinkedQueue<SentencePair>();
+			Iterable<SentencePair> queued = new Iterable<SentencePair>()
+			{
+				public Iterator<SentencePair> iterator() {
+					return new CollectionUtils.Transform<SentencePair, SentencePair>(sentencePairs.iterator())
+					{
+						@Override
+						protected SentencePair transform(SentencePair next) {
+							inFlight.add(next);
+							return next;
+						}
+					};
+				}
+			};
+			Iterator<Alignment> alignments = wordAligner.alignAll(queued, numThreads).iterator();
+			List<AlignedPair> block = new ArrayList<AlignedPair>(BLOCK_SIZE);
+			while (true) {
+				// hasNext() is where the aligner threads are waited for
+				long t0 = System.nanoTime();
+				if (!alignments.hasNext()) break;
+				Alignment al = alignments.next();
+				alignNanos += System.nanoTime() - t0;
+				if (sent % 1000 == 0) System.out.println("Sentence " + sent);
+				sent++;
+				block.add(new AlignedPair(al, inFlight.poll()));
+				if (block.size() == BLOCK_SIZE) {
+					submit(newTask(block, eWordIndexer, fWordIndexer), pool, pending, maxPending);
+					block = new ArrayList<AlignedPair>(BLOCK_SIZE);
+				}
+			}
+			if (!block.isEmpty()) submit(newTask(block, eWordIndexer, fWordIndexer), pool, pending, maxPending);
+			while (!pending.isEmpty())
+				waitFor(pending.poll());
+			long t0 = System.nanoTime();
+			counts = sum(allThreadCounts);
+			countNanos = System.nanoTime() - t0;
+		} catch (Exception e) {
+			if (e instanceof RuntimeException) throw (RuntimeException) e;
+			throw new RuntimeException(e);
+		} finally {
+			if (pool != null) pool.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long numPairs = counts.totalCount();
+		Logger.logss(String.format("Extracted %d phrase pairs (%d distinct) from %d sentences in %.1fs: %.0f sentences/s, %.0f pairs/s", numPairs,
+			counts.size(), sent, seconds, sent / seconds, numPairs / seconds));
+		Logger.logss(String.format("Stage times: waiting for alignments %.1fs, extract %.1fs over %d threads and count %.1fs", alignNanos / 1e9,
+			extractNanos.get() / 1e9, numThreads, countNanos / 1e9));
+	}
+
+	/**
+	 * Joint and marginal counts of the extracted phrase pairs, once run() is done
+	 */
+	public PhrasePairCounts getCounts() {
+		return counts;
+	}
+
+	/**
+	 * Add the thread counts into the biggest of them, so the biggest table is never copied
+	 */
+	private static PhrasePairCounts sum(List<PhrasePairCounts> threadCounts) {
+		if (threadCounts.isEmpty()) return new PhrasePairCounts();
+		PhrasePairCounts total = threadCounts.get(0);
+		for (PhrasePairCounts c : threadCounts) {
+			if (c.size() > total.size()) total = c;
+		}
+		for (PhrasePairCounts c : threadCounts) {
+			if (c != total) total.addAll(c);
+		}
+		threadCounts.clear();
+		return total;
+	}
+
+	private static List<String> lowercase(List<String> words) {
+		List<String> lowercased = new ArrayList<String>(words.size());
+		for (String word : words)
+			lowercased.add(word.toLowerCase());
+		return lowercased;
+	}
+
+	private Callable<Object> newTask(final List<AlignedPair> block, final StringIndexer eWordIndexer, final StringIndexer fWordIndexer) {
+		return new Callable<Object>()
+		{
+			public Object call() {
+				long t0 = System.nanoTime();
+				final PhrasePairCounts localCounts = threadCounts.get();
+				PhraseExtractor.PhrasePairSink sink = new PhraseExtractor.PhrasePairSink()
+				{
+					public void phrasePair(int[] foreign, int frStart, int frEnd, int[] english, int enStart, int enEnd) {
+						localCounts.increment(foreign, frStart, frEnd, english, enStart, enEnd, 1);
+					}
+				};
+				PhraseExtractor extractor = extractors.get();
+				for (AlignedPair pair : block) {
+					SentencePair sentencePair = pair.sentencePair;
+					SentencePair lowercased = new SentencePair(sentencePair.getSentenceID(), sentencePair.getSourceFile(),
+						lowercase(sentencePair.getEnglishWords()), lowercase(sentencePair.getFrenchWords()));
+					extractor.extract(pair.alignment, lowercased, maxPhraseSize, eWordIndexer, fWordIndexer, maxNumUnaligned, sink);
+				}
+				extractNanos.addAndGet(System.nanoTime() - t0);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Run task on this thread if there is no pool, else queue it once fewer than maxPending tasks are in flight
+	 */
+	private static void submit(Callable<Object> task, ExecutorService pool, ArrayDeque<Future<?>> pending, int maxPending) throws Exception {
+		if (pool == null) {
+			task.call();
+			return;
+		}
+		if (pending.size() == maxPending) waitFor(pending.poll());
+		pending.add(pool.submit(task));
+	}
+
+	private static void waitFor(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static class AlignedPair
+	{
+		final Alignment alignment;
+
+		final SentencePair sentencePair;
+
+		AlignedPair(Alignment alignment, SentencePair sentencePair) {
+			this.alignment = alignment;
+			this.sentencePair = sentencePair;
+		}
+	}
+}
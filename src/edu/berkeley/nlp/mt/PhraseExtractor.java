@@ -5,159 +5,169 @@ import java.util.Arrays;
 import java.util.List;
 
 import edu.berkeley.nlp.assignments.align.AlignmentTester.IntPhrasePair;
-import edu.berkeley.nlp.mt.Alignment.Link;
-import edu.berkeley.nlp.util.CollectionUtils;
 import edu.berkeley.nlp.util.Pair;
-import edu.berkeley.nlp.util.StrUtils;
 import edu.berkeley.nlp.util.StringIndexer;
 
+/**
+ * Extracts the phrase pairs consistent with a word alignment. Once per sentence the alignment is turned into
+ * tables of the min and max aligned position of every english and french word, so an english span is checked in
+ * time linear in its length and only the french spans that can be consistent with it are visited. The sentence is
+ * indexed to ints once, word by word the first time a word is part of an extracted pair, so words that are in no
+ * pair never reach the indexers. An indexer is locked while a word is added to it, so extractors on several
+ * threads can share the indexers.
+ *
+ * All scratch arrays are reused from sentence to sentence: use one extractor per thread, and hand a
+ * PhrasePairSink to extract() instead of collecting the pairs in a list.
+ */
 public class PhraseExtractor
 {
+	/**
+	 * Receives the extracted phrase pairs as spans of the indexed sentence. The arrays belong to the extractor
+	 * and are overwritten by the next sentence: copy the span if it has to be kept.
+	 */
+	public interface PhrasePairSink
+	{
+		void phrasePair(int[] foreign, int frStart, int frEnd, int[] english, int enStart, int enEnd);
+	}
 
-	private int[][] getPruningMask(Alignment al, int srcLength, int trgLength) {
+	private static final int NOT_INDEXED = -1;
 
-		boolean[][] alignmentsScratch = new boolean[srcLength][trgLength];
-		CollectionUtils.fill(alignmentsScratch, false);
-		for (Pair<Integer, Integer> link : al.getSureAlignments()) {
-			alignmentsScratch[link.getSecond()][link.getFirst()] = true;
-		}
+	// indexed sentence, NOT_INDEXED until the word is part of an extracted pair
+	private int[] english = new int[0];
 
-		int[][] pruningMaskScratch = new int[srcLength + 1][trgLength + 1];
-		CollectionUtils.fill(pruningMaskScratch, 0);
+	private int[] foreign = new int[0];
 
-		for (int i = 1; i <= trgLength; ++i) {
-			for (int j = 1; j <= srcLength; ++j) {
-				if (i == 0 && j == 0) continue;
-				final int subSpan1 = j == 0 ? 0 : pruningMaskScratch[j - 1][i];
-				final int subSpan2 = i == 0 ? 0 : pruningMaskScratch[j][i - 1];
-				final int subSpan3 = pruningMaskScratch[j - 1][i - 1];
-				//				final AlignableObject tree = en(i);
-				//				int treeOrderI = treeToIntMap.get(((NodeAlignableObject) tree).getNode());
+	// aligned span of every word, MAX_VALUE / MIN_VALUE if the word is unaligned
+	private int[] enMinFr = new int[0];
 
-				pruningMaskScratch[j][i] = subSpan1 + subSpan2 - subSpan3 + (alignmentsScratch[j - 1][i - 1] ? 1 : 0);
-			}
-		}
-		return pruningMaskScratch;
-	}
+	private int[] enMaxFr = new int[0];
 
-	private static String[] toStringArray(int[] english, StringIndexer lexIndexer) {
-		String[] strings = new String[english.length];
-		int k = 0;
-		for (int i : english) {
-			strings[k++] = lexIndexer == null ? ("" + i) : lexIndexer.get(i).toString();
-		}
-		return strings;
-	}
+	private int[] frMinEn = new int[0];
 
-	private boolean pruned(int[][] pruningMask, int srcStart, int srcEnd, int trgStart, int trgEnd, int numWords, int J) {
-
-		int north = pruningMask[srcStart][trgEnd] - pruningMask[srcStart][trgStart];
-		if (north >= 1) return true;
-		int west = pruningMask[srcEnd][trgStart] - pruningMask[srcStart][trgStart];
-		if (west >= 1) return true;
-		int center = pruningMask[srcEnd][trgEnd] - pruningMask[srcStart][trgStart] - north - west;
-		assert center >= 0;
-		if (center < 1) return true;// check if there's actually an alignment
-
-		int northEastCorner = pruningMask[srcStart][numWords] - pruningMask[srcStart][trgEnd];
-		int east = pruningMask[srcEnd][numWords] - pruningMask[srcEnd][trgEnd] - northEastCorner;
-		if (east >= 1) return true;
-		int southWestCorner = pruningMask[J][trgStart] - pruningMask[srcEnd][trgStart];
-		int south = pruningMask[J][trgEnd] - pruningMask[srcEnd][trgEnd] - southWestCorner;
-		if (south >= 1) return true;
-
-		assert north >= 0;
-		assert south >= 0;
-		assert east >= 0;
-		assert west >= 0;
-		if (north + south + west + east >= 1) return true;
-
-		return false;
-	}
+	private int[] frMaxEn = new int[0];
 
 	public List<IntPhrasePair> extract(Alignment al, SentencePair sentencePair, int maxPhraseSize, StringIndexer eWordIndexer, StringIndexer fWordIndexer,
 		int maxNumUnaligned) {
+		final List<IntPhrasePair> ret = new ArrayList<IntPhrasePair>();
+		extract(al, sentencePair, maxPhraseSize, eWordIndexer, fWordIndexer, maxNumUnaligned, new PhrasePairSink()
+		{
+			public void phrasePair(int[] foreign, int frStart, int frEnd, int[] english, int enStart, int enEnd) {
+				ret.add(new IntPhrasePair(Arrays.copyOfRange(foreign, frStart, frEnd), Arrays.copyOfRange(english, enStart, enEnd)));
+			}
+		});
+		return ret;
+	}
 
-		List<String> englishSentence = sentencePair.getEnglishWords();
-		List<IntPhrasePair> ret = new ArrayList<IntPhrasePair>();
-		List<List<Link>> enLinks = new ArrayList<List<Link>>();
-		for (int i = 0; i < englishSentence.size(); ++i) {
-			enLinks.add(al.getAlignmentsToEnglish(i));
-		}
-		int x = 0;
+	/**
+	 * Emit every phrase pair of at most maxPhraseSize words per side that is consistent with the sure links of al,
+	 * has at least one link and at most maxNumUnaligned unaligned words at its four edges. Pairs are emitted
+	 * ordered by english start, english end, french start, french end.
+	 */
+	public void extract(Alignment al, SentencePair sentencePair, int maxPhraseSize, StringIndexer eWordIndexer, StringIndexer fWordIndexer,
+		int maxNumUnaligned, PhrasePairSink sink) {
+		final List<String> englishSentence = sentencePair.getEnglishWords();
 		final List<String> foreignSentence = sentencePair.getFrenchWords();
-		final int foreignLength = foreignSentence.size();
 		final int enLength = englishSentence.size();
-		int[][] mask = getPruningMask(al, foreignLength, enLength);
+		final int foreignLength = foreignSentence.size();
+		prepare(al, enLength, foreignLength);
+
 		for (int enStart = 0; enStart < enLength; ++enStart) {
+			int frMin = Integer.MAX_VALUE;
+			int frMax = Integer.MIN_VALUE;
+			int firstAlignedEn = -1;
+			int lastAlignedEn = -1;
 			for (int enEnd = enStart + 1; enEnd <= Math.min(enLength, enStart + maxPhraseSize); ++enEnd) {
-				for (int frStart = 0; frStart < foreignLength; ++frStart) {
-					for (int frEnd = frStart + 1; frEnd <= Math.min(foreignLength, frStart + maxPhraseSize); ++frEnd) {
-						if (pruned(mask, frStart, frEnd, enStart, enEnd, enLength, foreignLength)) {
-							continue;
-						}
-						String[] englishString = englishSentence.subList(enStart, enEnd).toArray(new String[enEnd - enStart]);
-						int[] english = toArray(englishString, eWordIndexer);
-						int[] foreign = toArray(foreignSentence.subList(frStart, frEnd).toArray(new String[frEnd - frStart]), fWordIndexer);
-						int[] enStarts = new int[english.length];
-						int[] enEnds = new int[english.length];
-						boolean[] englishIsAligned = new boolean[english.length];
-						Arrays.fill(englishIsAligned, false);
-						boolean[] foreignIsAligned = new boolean[foreign.length];
-						Arrays.fill(foreignIsAligned, false);
-						for (int i = 0; i < english.length; ++i) {
-							int min = Integer.MAX_VALUE;
-							int max = Integer.MIN_VALUE;
-							int en = enStart + i;
-
-							for (Link link : al.getAlignmentsToEnglish(en)) {
-								englishIsAligned[i] = true;
-								foreignIsAligned[link.fr - frStart] = true;
-								min = Math.min(min, link.fr);
-								max = Math.max(max, link.fr);
-							}
-							if (min == Integer.MAX_VALUE && max == Integer.MIN_VALUE) {
-								min = max = frStart;
-							} else {
-								max++;
-							}
-							enStarts[i] = min - frStart;
-							enEnds[i] = max - frStart;
-						}
-						int numEnUnalignedLeft = 0;
-						for (int i = 0; !englishIsAligned[i]; ++i) {
-							numEnUnalignedLeft++;
-						}
-						int numEnUnalignedRight = 0;
-						for (int i = englishIsAligned.length - 1; !englishIsAligned[i]; --i) {
-							numEnUnalignedRight++;
-						}
-						int numFrUnalignedLeft = 0;
-						for (int i = 0; !foreignIsAligned[i]; ++i) {
-							numFrUnalignedLeft++;
-						}
-						int numFrUnalignedRight = 0;
-						for (int i = foreignIsAligned.length - 1; !foreignIsAligned[i]; --i) {
-							numFrUnalignedRight++;
-						}
-						int numUnaligned = numEnUnalignedLeft + numEnUnalignedRight + numFrUnalignedLeft + numFrUnalignedRight;
-						if (numUnaligned > maxNumUnaligned) continue;
-						x++;
-						IntPhrasePair pair = new IntPhrasePair(foreign, english);
-						ret.add(pair);
+				final int en = enEnd - 1;
+				if (enMinFr[en] != Integer.MAX_VALUE) {
+					frMin = Math.min(frMin, enMinFr[en]);
+					frMax = Math.max(frMax, enMaxFr[en]);
+					if (firstAlignedEn < 0) firstAlignedEn = en;
+					lastAlignedEn = en;
+				}
+				if (firstAlignedEn < 0) continue; // no link in the english span
+				if (frMax - frMin + 1 > maxPhraseSize) break; // only grows with enEnd
+				if (!frenchSpanConsistent(frMin, frMax, enStart, enEnd)) continue;
+
+				final int enUnaligned = (firstAlignedEn - enStart) + (enEnd - 1 - lastAlignedEn);
+				if (enUnaligned > maxNumUnaligned) continue;
+				// the french span may only grow over unaligned words
+				int lowestFrStart = frMin;
+				while (lowestFrStart > 0 && frMinEn[lowestFrStart - 1] == Integer.MAX_VALUE)
+					lowestFrStart--;
+				int highestFrEnd = frMax + 1;
+				while (highestFrEnd < foreignLength && frMinEn[highestFrEnd] == Integer.MAX_VALUE)
+					highestFrEnd++;
+
+				for (int frStart = Math.max(lowestFrStart, frMin - (maxNumUnaligned - enUnaligned)); frStart <= frMin; ++frStart) {
+					final int frUnalignedLeft = frMin - frStart;
+					final int maxFrEnd = Math.min(highestFrEnd, Math.min(frStart + maxPhraseSize, frMax + 1 + maxNumUnaligned - enUnaligned - frUnalignedLeft));
+					for (int frEnd = frMax + 1; frEnd <= maxFrEnd; ++frEnd) {
+						index(englishSentence, english, enStart, enEnd, eWordIndexer);
+						index(foreignSentence, foreign, frStart, frEnd, fWordIndexer);
+						sink.phrasePair(foreign, frStart, frEnd, english, enStart, enEnd);
 					}
 				}
 			}
 		}
-		return ret;
+	}
+
+	/**
+	 * Fill the aligned span tables for the sure links of al and reset the indexed sentence
+	 */
+	private void prepare(Alignment al, int enLength, int foreignLength) {
+		if (english.length < enLength) {
+			english = new int[enLength];
+			enMinFr = new int[enLength];
+			enMaxFr = new int[enLength];
+		}
+		if (foreign.length < foreignLength) {
+			foreign = new int[foreignLength];
+			frMinEn = new int[foreignLength];
+			frMaxEn = new int[foreignLength];
+		}
+		Arrays.fill(english, 0, enLength, NOT_INDEXED);
+		Arrays.fill(foreign, 0, foreignLength, NOT_INDEXED);
+		Arrays.fill(enMinFr, 0, enLength, Integer.MAX_VALUE);
+		Arrays.fill(enMaxFr, 0, enLength, Integer.MIN_VALUE);
+		Arrays.fill(frMinEn, 0, foreignLength, Integer.MAX_VALUE);
+		Arrays.fill(frMaxEn, 0, foreignLength, Integer.MIN_VALUE);
+		if (al instanceof BitAlignment) {
+			BitAlignment bits = (BitAlignment) al;
+			for (int en = 0; en < enLength; ++en) {
+				for (int fr = bits.nextSureFrench(en, 0); fr >= 0 && fr < foreignLength; fr = bits.nextSureFrench(en, fr + 1))
+					addLink(en, fr);
+			}
+		} else {
+			for (Pair<Integer, Integer> link : al.getSureAlignments()) {
+				if (link.getFirst() < enLength && link.getSecond() < foreignLength) addLink(link.getFirst(), link.getSecond());
+			}
+		}
+	}
 
+	private void addLink(int en, int fr) {
+		enMinFr[en] = Math.min(enMinFr[en], fr);
+		enMaxFr[en] = Math.max(enMaxFr[en], fr);
+		frMinEn[fr] = Math.min(frMinEn[fr], en);
+		frMaxEn[fr] = Math.max(frMaxEn[fr], en);
 	}
 
-	private static int[] toArray(final String[] ngram, StringIndexer eWordIndexer) {
-		int[] ngramArray = new int[ngram.length];
-		for (int w = 0; w < ngramArray.length; ++w) {
-			ngramArray[w] = eWordIndexer.addAndGetIndex(ngram[w]);
+	/**
+	 * @return true if no french word in [frMin, frMax] is aligned outside of [enStart, enEnd)
+	 */
+	private boolean frenchSpanConsistent(int frMin, int frMax, int enStart, int enEnd) {
+		for (int fr = frMin; fr <= frMax; ++fr) {
+			if (frMinEn[fr] == Integer.MAX_VALUE) continue;
+			if (frMinEn[fr] < enStart || frMaxEn[fr] >= enEnd) return false;
+		}
+		return true;
+	}
+
+	private static void index(List<String> sentence, int[] indexed, int start, int end, StringIndexer indexer) {
+		for (int i = start; i < end; ++i) {
+			if (indexed[i] != NOT_INDEXED) continue;
+			synchronized (indexer) {
+				indexed[i] = indexer.addAndGetIndex(sentence.get(i));
+			}
 		}
-		return ngramArray;
 	}
-}
\ No newline at end of file
+}
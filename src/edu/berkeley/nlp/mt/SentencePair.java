@@ -27,10 +27,18 @@ public class SentencePair
 	public static final String FRENCH_EXTENSION = "fr";
 
 	public static Iterable<SentencePair> readSentencePairs(String path, int maxSentencePairs) {
+		return readSentencePairs(path, maxSentencePairs, true);
+	}
+
+	/**
+	 * @param cacheInMemory if false, the files are re-read on every pass instead of being kept as SentencePairs
+	 */
+	public static Iterable<SentencePair> readSentencePairs(String path, int maxSentencePairs, boolean cacheInMemory) {
 		SentencePairReader sentencePairReader = new SentencePairReader();
 		sentencePairReader.setForeignExtension(FRENCH_EXTENSION);
 		sentencePairReader.setEnglishExtension(ENGLISH_EXTENSION);
-		PairDepot sentencePairsIteratorFromFile = sentencePairReader.pairDepotFromSource(path, maxSentencePairs);
+		PairDepot sentencePairsIteratorFromFile = sentencePairReader.pairDepotFromSource(path, 0, maxSentencePairs, Filters.<SentencePair> acceptFilter(),
+			!cacheInMemory);
 		return sentencePairsIteratorFromFile;
 
 	}
@@ -1,6 +1,141 @@
 package edu.berkeley.nlp.mt;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 public interface WordAligner
 {
 	Alignment alignSentencePair(SentencePair sentencePair);
-}
\ No newline at end of file
+
+	/**
+	 * Aligns every pair using numThreads threads. Alignments are produced lazily and come back in the order of
+	 * sentencePairs, whatever the number of threads. The default runs alignSentencePair on a pool of threads, so
+	 * it needs alignSentencePair to be safe to call concurrently on a trained aligner.
+	 */
+	default Iterable<Alignment> alignAll(Iterable<SentencePair> sentencePairs, int numThreads) {
+		return DefaultImplementations.alignAll(sentencePairs, numThreads, this);
+	}
+
+	public static class DefaultImplementations
+	{
+		/**
+		 * Sentences aligned by one task. At most 2 * numThreads blocks are in flight, so memory does not grow
+		 * with the corpus.
+		 */
+		public static final int BLOCK_SIZE = 256;
+
+		public static Iterable<Alignment> alignAll(final Iterable<SentencePair> sentencePairs, final int numThreads, final WordAligner aligner) {
+			return new Iterable<Alignment>()
+			{
+				public Iterator<Alignment> iterator() {
+					final Iterator<SentencePair> input = sentencePairs.iterator();
+					if (numThreads > 1) return new ParallelAlignmentIterator(input, numThreads, aligner);
+					return new Iterator<Alignment>()
+					{
+						public boolean hasNext() {
+							return input.hasNext();
+						}
+
+						public Alignment next() {
+							return aligner.alignSentencePair(input.next());
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+
+		private static class ParallelAlignmentIterator implements Iterator<Alignment>
+		{
+			private final Iterator<SentencePair> input;
+
+			private final WordAligner aligner;
+
+			private final int maxPending;
+
+			private final ExecutorService pool;
+
+			private final ArrayDeque<Future<List<Alignment>>> pending = new ArrayDeque<Future<List<Alignment>>>();
+
+			private Iterator<Alignment> current = Collections.<Alignment> emptyList().iterator();
+
+			ParallelAlignmentIterator(Iterator<SentencePair> input, int numThreads, WordAligner aligner) {
+				this.input = input;
+				this.aligner = aligner;
+				this.maxPending = 2 * numThreads;
+				this.pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+				{
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "word-aligner");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					fill();
+					if (pending.isEmpty()) {
+						pool.shutdown();
+						return false;
+					}
+					current = waitFor(pending.poll()).iterator();
+				}
+				return true;
+			}
+
+			public Alignment next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return current.next();
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private void fill() {
+				while (pending.size() < maxPending && input.hasNext()) {
+					final List<SentencePair> block = new ArrayList<SentencePair>(BLOCK_SIZE);
+					while (block.size() < BLOCK_SIZE && input.hasNext())
+						block.add(input.next());
+					pending.add(pool.submit(new Callable<List<Alignment>>()
+					{
+						public List<Alignment> call() {
+							List<Alignment> alignments = new ArrayList<Alignment>(block.size());
+							for (SentencePair sentencePair : block)
+								alignments.add(aligner.alignSentencePair(sentencePair));
+							return alignments;
+						}
+					}));
+				}
+			}
+
+			private List<Alignment> waitFor(Future<List<Alignment>> future) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					pool.shutdownNow();
+					throw new RuntimeException(e);
+				} catch (ExecutionException e) {
+					pool.shutdownNow();
+					throw new RuntimeException(e.getCause());
+				}
+			}
+		}
+	}
+}
@@ -5,10 +5,13 @@ import java.util.List;
 
 import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
 import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedLanguageModelAdaptor;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel.LmContextInfo;
 import edu.berkeley.nlp.mt.phrasetable.PhraseTable;
 import edu.berkeley.nlp.mt.phrasetable.PhraseTableForSentence;
 import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
-import edu.berkeley.nlp.util.CollectionUtils;
+import edu.berkeley.nlp.util.StringIndexer;
 
 /**
  * A very simple (and bad) monotonic decoder implementation. This implementation
@@ -21,6 +24,8 @@ public class MonotonicGreedyDecoder implements Decoder
 
 	private NgramLanguageModel lm;
 
+	private ContextEncodedNgramLanguageModel contextLm;
+
 	private DistortionModel dm;
 
 	/**
@@ -31,6 +36,7 @@ public class MonotonicGreedyDecoder implements Decoder
 		super();
 		this.tm = tm;
 		this.lm = lm;
+		this.contextLm = ContextEncodedLanguageModelAdaptor.getContextEncodedLm(lm, EnglishWordIndexer.getIndexer());
 		this.dm = dm;
 	}
 
@@ -48,46 +54,39 @@ public class MonotonicGreedyDecoder implements Decoder
 		PhraseTableForSentence tmState = tm.initialize(sentence);
 		int start = 0;
 		List<ScoredPhrasePairForSentence> ret = new ArrayList<ScoredPhrasePairForSentence>();
-		int[] lmContextBuf = new int[lm.getOrder() + tmState.getMaxPhraseLength() + 1];
-		lmContextBuf[0] = EnglishWordIndexer.getIndexer().addAndGetIndex(NgramLanguageModel.START);
-		int currLmContextLength = 1;
+		final StringIndexer indexer = EnglishWordIndexer.getIndexer();
+		final int stopWord = indexer.addAndGetIndex(NgramLanguageModel.STOP);
+		LmContextInfo lmContext = new LmContextInfo();
+		// the probability of the start symbol itself is not part of the score
+		contextLm.getLogProb(0L, -1, indexer.addAndGetIndex(NgramLanguageModel.START), lmContext);
+		LmContextInfo newLmContext = new LmContextInfo();
+		LmContextInfo bestLmContext = new LmContextInfo();
 		double totalScore = 0.0;
 		while (start < length) {
 			ScoredPhrasePairForSentence best = null;
-			int bestLmContextLength = -1;
-			int[] bestLmContextBuf = null;
 
 			double max = Double.NEGATIVE_INFINITY;
-			if (currLmContextLength >= lm.getOrder()) {
-				System.arraycopy(lmContextBuf, currLmContextLength - lm.getOrder() + 1, lmContextBuf, 0, lm.getOrder() - 1);
-				currLmContextLength = lm.getOrder() - 1;
-			}
 			for (int end = start + 1; end <= start + tmState.getMaxPhraseLength(); ++end) {
 				List<ScoredPhrasePairForSentence> scoreSortedTranslationsForSpan = tmState.getScoreSortedTranslationsForSpan(start, end);
 				if (scoreSortedTranslationsForSpan != null) {
 					for (final ScoredPhrasePairForSentence translation : scoreSortedTranslationsForSpan) {
 						double score = translation.score;
-						System.arraycopy(translation.english.indexedEnglish, 0, lmContextBuf, currLmContextLength, translation.english.indexedEnglish.length);
-						int currTrgLength = currLmContextLength + translation.english.indexedEnglish.length;
-						if (end == length) {
-							lmContextBuf[currTrgLength] = EnglishWordIndexer.getIndexer().addAndGetIndex(NgramLanguageModel.STOP);
-							currTrgLength++;
-						}
-						double lmScore = scoreLm(lm.getOrder(), currLmContextLength, lmContextBuf, currTrgLength, lm);
-						score += lmScore;
+						newLmContext.context = lmContext.context;
+						newLmContext.order = lmContext.order;
+						score += scoreLm(contextLm, translation.english.indexedEnglish, end == length ? stopWord : -1, newLmContext);
 						if (score > max) {
 							best = translation;
 							max = score;
-							bestLmContextBuf = CollectionUtils.copyOf(lmContextBuf, lmContextBuf.length);
-							bestLmContextLength = currLmContextLength + translation.english.indexedEnglish.length;
+							bestLmContext.context = newLmContext.context;
+							bestLmContext.order = newLmContext.order;
 						}
 					}
 				}
 			}
 			ret.add(best);
 			totalScore += max;
-			currLmContextLength = bestLmContextLength;
-			lmContextBuf = bestLmContextBuf;
+			lmContext.context = bestLmContext.context;
+			lmContext.order = bestLmContext.order;
 			assert best != null;
 			start += best.getForeignLength();
 		}
@@ -98,19 +97,15 @@ public class MonotonicGreedyDecoder implements Decoder
 		return ret;
 	}
 
-	private static double scoreLm(final int lmOrder, final int prevLmStateLength, final int[] lmStateBuf, final int totalTrgLength, final NgramLanguageModel lm) {
+	/**
+	 * Scores words (then stopWord, if not negative) one at a time against lmContext, which is advanced in place.
+	 */
+	private static double scoreLm(final ContextEncodedNgramLanguageModel lm, final int[] words, final int stopWord, final LmContextInfo lmContext) {
 		double score = 0.0;
-
-		if (prevLmStateLength < lmOrder - 1) {
-			for (int i = 1; prevLmStateLength + i < lmOrder; ++i) {
-				final double lmProb = lm.getNgramLogProbability(lmStateBuf, 0, prevLmStateLength + i);
-				score += lmProb;
-			}
-		}
-		for (int i = 0; i <= totalTrgLength - lmOrder; ++i) {
-			final double lmProb = lm.getNgramLogProbability(lmStateBuf, i, i + lmOrder);
-			score += lmProb;
+		for (int word : words) {
+			score += lm.getLogProb(lmContext.context, lmContext.order, word, lmContext);
 		}
+		if (stopWord >= 0) score += lm.getLogProb(lmContext.context, lmContext.order, stopWord, lmContext);
 		return score;
 	}
 }
@@ -73,4 +73,29 @@ public class MurmurHash
 		return h;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Finalization mix of MurmurHash3 (fmix32). A bijection on int that makes every input bit affect every
+	 * output bit, cheap enough to hash primitive keys of open addressing tables.
+	 */
+	public static int fmix32(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Finalization mix of MurmurHash3 (fmix64), see fmix32.
+	 */
+	public static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
@@ -0,0 +1,133 @@
+package edu.berkeley.nlp.mt.decoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.mt.phrasetable.PhraseTable;
+import edu.berkeley.nlp.mt.phrasetable.PhraseTableForSentence;
+import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Decodes a list of sentences on numThreads threads which share one read-only phrase table and language model.
+ * Every thread gets its own Decoder from the factory and keeps it for all the sentences it decodes, so decoders
+ * can reuse their scratch space (the chart of BeamDecoder). Sentences are handed out one at a time, since decoding
+ * time grows quickly with length, and the translations come back in input order whatever the number of threads.
+ *
+ * EnglishWordIndexer is not thread-safe: the words a decoder would add to it (START, STOP and the fake translations
+ * of unknown foreign words) are indexed on the calling thread first, so the decoding threads only read it.
+ */
+public class ParallelDecoder
+{
+	private final DecoderFactory decoderFactory;
+
+	private final PhraseTable tm;
+
+	private final NgramLanguageModel lm;
+
+	private final DistortionModel dm;
+
+	private final int numThreads;
+
+	public ParallelDecoder(DecoderFactory decoderFactory, PhraseTable tm, NgramLanguageModel lm, DistortionModel dm, int numThreads) {
+		this.decoderFactory = decoderFactory;
+		this.tm = tm;
+		this.lm = lm;
+		this.dm = dm;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * @return the translation of every sentence, in the order of sentences
+	 */
+	public List<List<ScoredPhrasePairForSentence>> decodeAll(List<List<String>> sentences) {
+		StringIndexer indexer = EnglishWordIndexer.getIndexer();
+		indexer.addAndGetIndex(NgramLanguageModel.START);
+		indexer.addAndGetIndex(NgramLanguageModel.STOP);
+		for (List<String> sentence : sentences)
+			PhraseTableForSentence.indexUnknownWords(tm, sentence);
+
+		// every worker sets its own entries, future.get() makes them visible here
+		List<List<ScoredPhrasePairForSentence>> translations = new ArrayList<List<ScoredPhrasePairForSentence>>(
+			Collections.<List<ScoredPhrasePairForSentence>> nCopies(sentences.size(), null));
+		AtomicInteger next = new AtomicInteger();
+		long start = System.nanoTime();
+		final int threads = Math.min(numThreads, Math.max(1, sentences.size()));
+		if (threads == 1) {
+			new Worker(sentences, translations, next).call();
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "decoder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			try {
+				List<Future<Object>> workers = new ArrayList<Future<Object>>(threads);
+				for (int t = 0; t < threads; ++t)
+					workers.add(pool.submit(new Worker(sentences, translations, next)));
+				for (Future<Object> worker : workers)
+					waitFor(worker);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		Logger.logss(String.format("Decoded %d sentences in %.1fs on %d threads: %.1f sentences/s", sentences.size(), seconds, threads, sentences.size()
+			/ seconds));
+		return translations;
+	}
+
+	private static void waitFor(Future<?> future) {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decodes the next sentence not taken yet until there is none left, with its own decoder
+	 */
+	private class Worker implements Callable<Object>
+	{
+		private final List<List<String>> sentences;
+
+		private final List<List<ScoredPhrasePairForSentence>> translations;
+
+		private final AtomicInteger next;
+
+		Worker(List<List<String>> sentences, List<List<ScoredPhrasePairForSentence>> translations, AtomicInteger next) {
+			this.sentences = sentences;
+			this.translations = translations;
+			this.next = next;
+		}
+
+		public Object call() {
+			Decoder decoder = decoderFactory.newDecoder(tm, lm, dm);
+			try {
+				for (int i = next.getAndIncrement(); i < translations.size(); i = next.getAndIncrement())
+					translations.set(i, decoder.decode(sentences.get(i)));
+			} catch (RuntimeException e) {
+				next.set(translations.size()); // stops the other workers
+				throw e;
+			}
+			return null;
+		}
+	}
+}
@@ -6,30 +6,91 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
 
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
 import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedLanguageModelAdaptor;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel.LmContextInfo;
 import edu.berkeley.nlp.mt.decoder.Decoder;
+import edu.berkeley.nlp.mt.decoder.DecoderFactory;
+import edu.berkeley.nlp.mt.decoder.DistortionModel;
 import edu.berkeley.nlp.mt.decoder.MurmurHash;
 import edu.berkeley.nlp.mt.phrasetable.PhraseTable;
 import edu.berkeley.nlp.mt.phrasetable.PhraseTableForSentence;
 import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
 import edu.berkeley.nlp.util.BoundedList;
-import edu.berkeley.nlp.util.CollectionUtils;
 import edu.berkeley.nlp.util.IntPriorityQueue;
 import edu.berkeley.nlp.util.StringIndexer;
 
+/**
+ * Monotone beam decoder. The chart is kept from sentence to sentence (and grown
+ * to the longest sentence seen), so a BeamDecoder must not be shared between
+ * threads: use one per thread, see ParallelDecoder.
+ * 
+ * By default every state of a beam is expanded with every translation of every
+ * span. With cube pruning, the beam of the states which have consumed i words
+ * is filled from the popLimit best (state, translation) pairs only: the beams
+ * ending before i are sorted best first, translations already are, and the
+ * pairs are popped in order of their score from a queue which only scores
+ * (with the LM) the neighbours of the pairs popped so far.
+ */
 public class BeamDecoder implements Decoder
 {
 
+	public static class BeamDecoderFactory implements DecoderFactory
+	{
+
+		private final int popLimit;
+
+		public BeamDecoderFactory() {
+			this(0);
+		}
+
+		/**
+		 * @param popLimit
+		 *            pairs popped per beam with cube pruning, or 0 to expand
+		 *            every pair
+		 */
+		public BeamDecoderFactory(int popLimit) {
+			this.popLimit = popLimit;
+		}
+
+		public Decoder newDecoder(PhraseTable tm, NgramLanguageModel lm, DistortionModel dm) {
+			return new BeamDecoder(lm, tm, EnglishWordIndexer.getIndexer(), popLimit);
+		}
+
+	}
+
+	/**
+	 * Pop limit of cube pruning which scores about ten times fewer pairs than
+	 * the full expansion, for a loss of model score well under 0.1%
+	 */
+	public static final int DEFAULT_POP_LIMIT = 100;
+
 	private final StringIndexer lexIndexer;
 
 	private final NgramLanguageModel lm;
 
+	// hypotheses carry the (context offset, order) of this model as their LM state
+	private final ContextEncodedNgramLanguageModel contextLm;
+
 	private PhraseTable tm;
 
+	// 0 unless decoding with cube pruning
+	private final int popLimit;
+
+	private final Chart chart = new Chart();
+
 	public BeamDecoder(NgramLanguageModel lm, PhraseTable tm, StringIndexer wordIndexer) {
+		this(lm, tm, wordIndexer, 0);
+	}
+
+	public BeamDecoder(NgramLanguageModel lm, PhraseTable tm, StringIndexer wordIndexer, int popLimit) {
 		this.lm = lm;
 		this.tm = tm;
 		this.lexIndexer = wordIndexer;
+		this.contextLm = ContextEncodedLanguageModelAdaptor.getContextEncodedLm(lm, wordIndexer);
+		this.popLimit = popLimit;
 
 	}
 
@@ -38,46 +99,64 @@ public class BeamDecoder implements Decoder
 		for (int i = 0; i < sentence.size(); ++i) {
 			intSentence[i] = lexIndexer.indexOf(sentence.get(i));
 		}
-		final int lmOrder = lm.getOrder();
 		int length = sentence.size();
 		final int k = 1000;
 		final boolean hash = false;
-		final int arraySize = (int) (k * 1.2) + 1;
-		final double[][] scoreChart = new double[length + 1][arraySize];
-		final int[][][] lmContexts = new int[length + 1][arraySize][lmOrder - 1];
-		final int[][] lmContextLengths = new int[length + 1][arraySize];
-		final int[][] transBackpointers = new int[length + 1][arraySize];
-		final int[][] prevStateBackpointers = new int[length + 1][arraySize];
-		final int[][] startBackpointers = new int[length + 1][arraySize];
-		fill(transBackpointers, -1);
-		fill(lmContextLengths, -1);
-		fill(prevStateBackpointers, -1);
-		fill(startBackpointers, -1);
+		// a beam holds k states, plus the one added before the worst is dropped
+		final int arraySize = k + 1;
+		chart.ensureCapacity(length + 1, arraySize);
+		final double[][] scoreChart = chart.scoreChart;
+		final long[][] lmContexts = chart.lmContexts;
+		final int[][] lmContextOrders = chart.lmContextOrders;
+		final int[][] transBackpointers = chart.transBackpointers;
+		final int[][] prevStateBackpointers = chart.prevStateBackpointers;
+		final int[][] startBackpointers = chart.startBackpointers;
+		fill(transBackpointers, length + 1, -1);
+		fill(prevStateBackpointers, length + 1, -1);
+		fill(startBackpointers, length + 1, -1);
 
 		// note: these beams are meant to keep the k *best* (highest scoring) items.
 		// However, this beam is a min-heap because we would like to be able to delete the lowest scoring item whenever we add a new item (and the beam is full). 
-		final IntPriorityQueue[] beams = new IntPriorityQueue[length + 1];
+		final IntPriorityQueue[] beams = chart.beams;
+		final RecombinationTable[] tables = chart.tables;
 		for (int i = 0; i < length + 1; ++i) {
-			if (!hash) beams[i] = new IntPriorityQueue(arraySize, arraySize);
+			if (!hash) beams[i].clear();
+			tables[i].clear();
 		}
-		fill(scoreChart, Double.NEGATIVE_INFINITY);
+		fill(scoreChart, length + 1, Integer.MAX_VALUE, Double.NEGATIVE_INFINITY);
+		final int stopWord = lexIndexer.indexOf(NgramLanguageModel.STOP);
+		final LmContextInfo startContext = new LmContextInfo();
+		// the probability of the start symbol itself is not part of the score
+		contextLm.getLogProb(0L, -1, lexIndexer.indexOf(NgramLanguageModel.START), startContext);
+		final LmContextInfo lmContext = new LmContextInfo();
 		PhraseTableForSentence tmState = tm.initialize(sentence);
-		for (int start = 0; start < length; ++start) {
-			final boolean isBegin = start == 0;
-			for (int end = start + 1; end <= start + tmState.getMaxPhraseLength(); ++end) {
-				final List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
-				if (translations == null) continue;
-				final int prevStateEnd = isBegin ? 1 : arraySize;
-				for (int prevState = 0; prevState < prevStateEnd; ++prevState) {
-					double prevScore = isBegin ? 0.0 : scoreChart[start][prevState];
-					if (prevScore == Double.NEGATIVE_INFINITY) continue;
-					int[] prevLmState = isBegin ? new int[] { lexIndexer.indexOf(NgramLanguageModel.START) } : lmContexts[start][prevState];
-					final int prevLmStateLength = isBegin ? 1 : lmContextLengths[start][prevState];
-					int[] lmStateBuf = CollectionUtils.copyOf(prevLmState, prevLmStateLength + tmState.getMaxPhraseLength() + 1);
-					final int numTranslations = translations.size();
-					for (int transIndex = 0; transIndex < numTranslations; ++transIndex) {
-						innerLoop(lmOrder, length, k, hash, scoreChart, lmContexts, lmContextLengths, transBackpointers, prevStateBackpointers,
-							startBackpointers, beams, start, translations, prevState, prevScore, prevLmStateLength, lmStateBuf, transIndex, lexIndexer, lm);
+		if (popLimit > 0) {
+			scoreChart[0][0] = 0.0;
+			lmContexts[0][0] = startContext.context;
+			lmContextOrders[0][0] = startContext.order;
+			chart.sortedStates[0][0] = 0;
+			chart.numSortedStates[0] = 1;
+			for (int end = 1; end <= length; ++end) {
+				if (end > 1) sortBeam(beams[end - 1], chart.sortedStates[end - 1], chart.numSortedStates, end - 1);
+				cubePrune(end, length, k, popLimit, tmState, chart, lmContext, stopWord, contextLm);
+			}
+		} else {
+			for (int start = 0; start < length; ++start) {
+				final boolean isBegin = start == 0;
+				for (int end = start + 1; end <= start + tmState.getMaxPhraseLength(); ++end) {
+					final List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
+					if (translations == null) continue;
+					final int prevStateEnd = isBegin ? 1 : arraySize;
+					for (int prevState = 0; prevState < prevStateEnd; ++prevState) {
+						double prevScore = isBegin ? 0.0 : scoreChart[start][prevState];
+						if (prevScore == Double.NEGATIVE_INFINITY) continue;
+						final long prevLmContext = isBegin ? startContext.context : lmContexts[start][prevState];
+						final int prevLmContextOrder = isBegin ? startContext.order : lmContextOrders[start][prevState];
+						final int numTranslations = translations.size();
+						for (int transIndex = 0; transIndex < numTranslations; ++transIndex) {
+							innerLoop(length, k, hash, scoreChart, lmContexts, lmContextOrders, transBackpointers, prevStateBackpointers, startBackpointers, beams,
+								tables, start, translations, prevState, prevScore, prevLmContext, prevLmContextOrder, lmContext, transIndex, stopWord, contextLm);
+						}
 					}
 				}
 			}
@@ -159,51 +238,49 @@ public class BeamDecoder implements Decoder
 	}
 
 	/**
-	 * @param lmOrder
 	 * @param length
 	 * @param k
 	 * @param hash
 	 * @param scoreChart
 	 * @param lmContexts
-	 * @param lmContextLengths
+	 * @param lmContextOrders
 	 * @param transBackpointers
 	 * @param prevStateBackpointers
 	 * @param startBackpointers
 	 * @param beams
+	 * @param tables
 	 * @param start
 	 * @param lexSortedTranslations
 	 * @param prevState
 	 * @param prevScore
-	 * @param prevLmStateLength
-	 * @param lmStateBuf
+	 * @param prevLmContext
+	 * @param prevLmContextOrder
+	 * @param lmContext
+	 *            scratch, receives the LM state after the translation
 	 * @param transIndex
+	 * @param stopWord
 	 */
-	private static void innerLoop(final int lmOrder, int length, final int k, final boolean hash, final double[][] scoreChart, final int[][][] lmContexts,
-		final int[][] lmContextLengths, final int[][] transBackpointers, final int[][] prevStateBackpointers, final int[][] startBackpointers,
-		final IntPriorityQueue[] beams, int start, List<ScoredPhrasePairForSentence> lexSortedTranslations, int prevState, double prevScore,
-		final int prevLmStateLength, int[] lmStateBuf, int transIndex, StringIndexer lexIndexer, final NgramLanguageModel lm) {
+	private static void innerLoop(int length, final int k, final boolean hash, final double[][] scoreChart, final long[][] lmContexts,
+		final int[][] lmContextOrders, final int[][] transBackpointers, final int[][] prevStateBackpointers, final int[][] startBackpointers,
+		final IntPriorityQueue[] beams, final RecombinationTable[] tables, int start, List<ScoredPhrasePairForSentence> lexSortedTranslations,
+		int prevState, double prevScore, final long prevLmContext, final int prevLmContextOrder, final LmContextInfo lmContext, int transIndex,
+		final int stopWord, final ContextEncodedNgramLanguageModel lm) {
 		ScoredPhrasePairForSentence trans = lexSortedTranslations.get(transIndex);
-		int[] indexedTrg = trans.english.indexedEnglish;
-		System.arraycopy(indexedTrg, 0, lmStateBuf, prevLmStateLength, indexedTrg.length);
 		final int newConsumedLength = start + trans.getForeignLength();
 		final boolean isEnd = newConsumedLength == length;
-		final int prevStatePlusPhraselength = prevLmStateLength + indexedTrg.length;
-		if (isEnd) lmStateBuf[prevStatePlusPhraselength] = lexIndexer.indexOf(NgramLanguageModel.STOP);
-		final int totalTrgLength = prevStatePlusPhraselength + (isEnd ? 1 : 0);
 		double score = prevScore + trans.score;
 
-		score += scoreLm(lmOrder, prevLmStateLength, lmStateBuf, totalTrgLength, lm);
-		final int lmStartPos = Math.max(0, totalTrgLength - lmOrder + 1);
-		final int hashIndex = hash(lmStateBuf, lmStartPos, totalTrgLength, k);
+		lmContext.context = prevLmContext;
+		lmContext.order = prevLmContextOrder;
+		score += scoreLm(trans.english.indexedEnglish, isEnd ? stopWord : -1, lmContext, lm);
+		final long stateKey = stateKey(lmContext.context, lmContext.order);
 		if (hash) {
-			int newStateIndex = hashIndex;
+			int newStateIndex = (int) ((stateKey & Long.MAX_VALUE) % k);
 			final double[] scoreChartHere = scoreChart[newConsumedLength];
 			if (score > scoreChartHere[newStateIndex]) {
 				scoreChartHere[newStateIndex] = score;
-				lmContextLengths[newConsumedLength][newStateIndex] = totalTrgLength - lmStartPos;
-				System.arraycopy(lmStateBuf, lmStartPos, lmContexts[newConsumedLength][newStateIndex], 0, totalTrgLength - lmStartPos);
-
-				//			lmContexts[newConsumedLength][newStateIndex] = Arrays.copyOfRange(lmStateBuf, lmStartPos, totalTrgLength);
+				lmContexts[newConsumedLength][newStateIndex] = lmContext.context;
+				lmContextOrders[newConsumedLength][newStateIndex] = lmContext.order;
 
 				transBackpointers[newConsumedLength][newStateIndex] = transIndex;
 				startBackpointers[newConsumedLength][newStateIndex] = start;
@@ -211,33 +288,29 @@ public class BeamDecoder implements Decoder
 
 			}
 		} else {
-			doBeamUpdate(k, scoreChart, lmContexts, lmContextLengths, transBackpointers, prevStateBackpointers, startBackpointers, beams, start, prevState,
-				lmStateBuf, transIndex, newConsumedLength, totalTrgLength, score, lmStartPos, hashIndex);
+			doBeamUpdate(k, scoreChart, lmContexts, lmContextOrders, transBackpointers, prevStateBackpointers, startBackpointers, beams, tables, start,
+				prevState, transIndex, newConsumedLength, score, lmContext.context, lmContext.order, stateKey);
 		}
 
 	}
 
 	/**
-	 * @param lmOrder
-	 * @param prevLmState
-	 * @param lmStateBuf
-	 * @param totalTrgLength
-	 * @param score
+	 * Scores the target words (then stopWord, if not negative) one at a time
+	 * against the LM state in lmContext, which is advanced in place: one lookup
+	 * per word.
+	 * 
+	 * @param words
+	 * @param stopWord
+	 * @param lmContext
+	 * @param lm
 	 * @return
 	 */
-	private static double scoreLm(final int lmOrder, final int prevLmStateLength, final int[] lmStateBuf, final int totalTrgLength, final NgramLanguageModel lm) {
+	private static double scoreLm(final int[] words, final int stopWord, final LmContextInfo lmContext, final ContextEncodedNgramLanguageModel lm) {
 		double score = 0.0;
-
-		if (prevLmStateLength < lmOrder - 1) {
-			for (int i = 1; prevLmStateLength + i < lmOrder; ++i) {
-				final double lmProb = lm.getNgramLogProbability(lmStateBuf, 0, prevLmStateLength + i);
-				score += lmProb;
-			}
-		}
-		for (int i = 0; i <= totalTrgLength - lmOrder; ++i) {
-			final double lmProb = lm.getNgramLogProbability(lmStateBuf, i, i + lmOrder);
-			score += lmProb;
+		for (int word : words) {
+			score += lm.getLogProb(lmContext.context, lmContext.order, word, lmContext);
 		}
+		if (stopWord >= 0) score += lm.getLogProb(lmContext.context, lmContext.order, stopWord, lmContext);
 		return score;
 	}
 
@@ -245,68 +318,57 @@ public class BeamDecoder implements Decoder
 	 * @param k
 	 * @param scoreChart
 	 * @param lmContexts
+	 * @param lmContextOrders
 	 * @param transBackpointers
 	 * @param prevStateBackpointers
 	 * @param startBackpointers
-	 * @param startBackpointers2
 	 * @param beams
+	 * @param tables
 	 * @param start
 	 * @param prevState
-	 * @param lmStateBuf
 	 * @param transIndex
 	 * @param newConsumedLength
-	 * @param totalTrgLength
 	 * @param score
-	 * @param lmStartPos
-	 * @param hashIndex
+	 * @param lmContext
+	 * @param lmContextOrder
+	 * @param stateKey
+	 *            stateKey(lmContext, lmContextOrder)
 	 */
-	private static void doBeamUpdate(final int k, final double[][] scoreChart, final int[][][] lmContexts, final int[][] lmContextLengths,
-		final int[][] transBackpointers, final int[][] prevStateBackpointers, final int[][] startBackpointers, final IntPriorityQueue[] beams, int start,
-		int prevState, int[] lmStateBuf, int transIndex, final int newConsumedLength, final int totalTrgLength, double score, final int lmStartPos,
-		final int hashIndex) {
-//		assert hasMinusOne(lmContextLengths[newConsumedLength]) > 3;
-//		if (newConsumedLength == 5) {
-//			System.out.println(hasMinusOne(lmContextLengths[newConsumedLength]));
-//			
-//		}
-		int newStateIndex = findStateIndex(lmStateBuf, lmStartPos, totalTrgLength, lmContexts[newConsumedLength], lmContextLengths[newConsumedLength],
-			hashIndex);
-		
+	private static void doBeamUpdate(final int k, final double[][] scoreChart, final long[][] lmContexts, final int[][] lmContextOrders,
+		final int[][] transBackpointers, final int[][] prevStateBackpointers, final int[][] startBackpointers, final IntPriorityQueue[] beams,
+		final RecombinationTable[] tables, int start, int prevState, int transIndex, final int newConsumedLength, double score, final long lmContext,
+		final int lmContextOrder, final long stateKey) {
 		IntPriorityQueue beam = beams[newConsumedLength];
 		final double cost = -1.0 * score;
 		if (beam.size() < k || cost < beam.getPriorityOfBest()) {
-			double oldCost = beam.getPriorityOfElement(newStateIndex);
-			final boolean isNaN = Double.isNaN(oldCost);
-			final boolean less = cost < oldCost;
-			if (isNaN || less) {
-				if (isNaN) {
-					beam.put(newStateIndex, cost);
-					
-					if (beam.size() > k) {
-						int indexWhichFellOfBeam = beam.next();
-						lmContextLengths[newConsumedLength][indexWhichFellOfBeam] = -1;
-						scoreChart[newConsumedLength][indexWhichFellOfBeam] = Double.NEGATIVE_INFINITY;
-
-						transBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
-						startBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
-						prevStateBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
-					}
-				} else {
-					assert lmContextLengths[newConsumedLength][newStateIndex] != -1;
-					beam.increaseKey(newStateIndex, cost);
+			final RecombinationTable table = tables[newConsumedLength];
+			final long[] lmContextsHere = lmContexts[newConsumedLength];
+			final int[] lmContextOrdersHere = lmContextOrders[newConsumedLength];
+			int newStateIndex = table.find(stateKey, lmContext, lmContextOrder, lmContextsHere, lmContextOrdersHere);
+			if (newStateIndex < 0) {
+				newStateIndex = table.add(stateKey);
+				beam.put(newStateIndex, cost);
+				if (beam.size() > k) {
+					int indexWhichFellOfBeam = beam.next();
+					table.remove(stateKey(lmContextsHere[indexWhichFellOfBeam], lmContextOrdersHere[indexWhichFellOfBeam]), indexWhichFellOfBeam);
+					scoreChart[newConsumedLength][indexWhichFellOfBeam] = Double.NEGATIVE_INFINITY;
+
+					transBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
+					startBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
+					prevStateBackpointers[newConsumedLength][indexWhichFellOfBeam] = -1;
 				}
-				transBackpointers[newConsumedLength][newStateIndex] = transIndex;
-				startBackpointers[newConsumedLength][newStateIndex] = start;
-				prevStateBackpointers[newConsumedLength][newStateIndex] = prevState;
-
-				lmContextLengths[newConsumedLength][newStateIndex] = totalTrgLength - lmStartPos;
-//				assert hasMinusOne(lmContextLengths[newConsumedLength]) > 3;
-				System.arraycopy(lmStateBuf, lmStartPos, lmContexts[newConsumedLength][newStateIndex], 0, totalTrgLength - lmStartPos);
-				lmContexts[newConsumedLength][newStateIndex] = CollectionUtils.copyOfRange(lmStateBuf, lmStartPos, totalTrgLength);
-				scoreChart[newConsumedLength][newStateIndex] = score;
-//				assert beamAndContextMatch(beam, lmContextLengths[newConsumedLength]);
-
+			} else if (cost < beam.getPriorityOfElement(newStateIndex)) {
+				beam.increaseKey(newStateIndex, cost);
+			} else {
+				return;
 			}
+			transBackpointers[newConsumedLength][newStateIndex] = transIndex;
+			startBackpointers[newConsumedLength][newStateIndex] = start;
+			prevStateBackpointers[newConsumedLength][newStateIndex] = prevState;
+
+			lmContextOrdersHere[newStateIndex] = lmContextOrder;
+			lmContextsHere[newStateIndex] = lmContext;
+			scoreChart[newConsumedLength][newStateIndex] = score;
 		}
 	}
 
@@ -334,38 +396,79 @@ public class BeamDecoder implements Decoder
 		return x;
 	}
 
-	private static int findStateIndex(int[] lmStateBuf, int start, int end, int[][] lmContexts, int[] lmContextLengths, final int hashIndex) {
-		int currIndex = hashIndex;
-		while (true) {
-			final int lmContextLength = lmContextLengths[currIndex];
-			if (lmContextLength < 0 || equals(lmContexts[currIndex], lmContextLength, lmStateBuf, start, end)) { return currIndex; }
-			currIndex++;
-			if (currIndex == lmContexts.length) currIndex = 0;
+	/**
+	 * Empties a beam which will not be updated any more into its states, best
+	 * first
+	 */
+	private static void sortBeam(IntPriorityQueue beam, int[] sortedStates, int[] numSortedStates, int row) {
+		// the beam pops its worst state first
+		final int size = beam.size();
+		for (int i = size - 1; i >= 0; --i) {
+			sortedStates[i] = beam.next();
 		}
+		numSortedStates[row] = size;
 	}
 
-	private static boolean equals(final int[] a, final int length, final int[] b, final int start, final int end) {
-		if (end - start != length) return false;
-		for (int i = 0; i < length; ++i) {
-			if (a[i] != b[start + i]) return false;
+	/**
+	 * Fills the beam of the states which have consumed end words from the
+	 * popLimit best pairs of a (sorted) earlier state and a translation of the rest of
+	 * the span. The pair (rank r, translation t) is queued once (r, t - 1), or
+	 * (r - 1, 0) if t is 0, has been popped, so every pair is scored at most
+	 * once and the number of pairs scored is at most 2 * popLimit plus the
+	 * number of spans.
+	 */
+	private static void cubePrune(final int end, final int length, final int k, final int popLimit, final PhraseTableForSentence tmState, final Chart chart,
+		final LmContextInfo lmContext, final int stopWord, final ContextEncodedNgramLanguageModel lm) {
+		final CandidateQueue queue = chart.candidates;
+		queue.clear();
+		for (int start = Math.max(0, end - tmState.getMaxPhraseLength()); start < end; ++start) {
+			final List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
+			if (translations == null || translations.isEmpty() || chart.numSortedStates[start] == 0) continue;
+			pushCandidate(start, 0, 0, translations, end == length, chart, lmContext, stopWord, lm);
+		}
+		for (int popped = 0; popped < popLimit && queue.size() > 0; ++popped) {
+			final int start = queue.starts[0];
+			final int rank = queue.ranks[0];
+			final int transIndex = queue.transIndices[0];
+			final double score = queue.scores[0];
+			final long newLmContext = queue.lmContexts[0];
+			final int newLmContextOrder = queue.lmContextOrders[0];
+			queue.pop();
+			final int prevState = chart.sortedStates[start][rank];
+			doBeamUpdate(k, chart.scoreChart, chart.lmContexts, chart.lmContextOrders, chart.transBackpointers, chart.prevStateBackpointers,
+				chart.startBackpointers, chart.beams, chart.tables, start, prevState, transIndex, end, score, newLmContext, newLmContextOrder,
+				stateKey(newLmContext, newLmContextOrder));
+			final List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
+			if (transIndex == 0 && rank + 1 < chart.numSortedStates[start]) {
+				pushCandidate(start, rank + 1, 0, translations, end == length, chart, lmContext, stopWord, lm);
+			}
+			if (transIndex + 1 < translations.size()) {
+				pushCandidate(start, rank, transIndex + 1, translations, end == length, chart, lmContext, stopWord, lm);
+			}
 		}
-		return true;
 	}
 
-	private static int hash(int[] lmStateBuf, int start, int end, int k) {
-		int hash = MurmurHash.hash32(lmStateBuf, start, end, 13);
-		if (hash < 0) hash = -hash;
-		return (hash % k);
+	private static void pushCandidate(int start, int rank, int transIndex, List<ScoredPhrasePairForSentence> translations, boolean isEnd,
+		final Chart chart, final LmContextInfo lmContext, final int stopWord, final ContextEncodedNgramLanguageModel lm) {
+		final int prevState = chart.sortedStates[start][rank];
+		final ScoredPhrasePairForSentence trans = translations.get(transIndex);
+		lmContext.context = chart.lmContexts[start][prevState];
+		lmContext.order = chart.lmContextOrders[start][prevState];
+		final double score = chart.scoreChart[start][prevState] + trans.score
+			+ scoreLm(trans.english.indexedEnglish, isEnd ? stopWord : -1, lmContext, lm);
+		chart.candidates.push(score, start, rank, transIndex, lmContext.context, lmContext.order);
 	}
 
-	private static void fill(double[][] a, double val) {
-		for (int i = 0; i < a.length; i++) {
-			Arrays.fill(a[i], val);
-		}
+	/**
+	 * 64-bit key of an LM state for the recombination tables: mixed, so its low
+	 * bits can be used as a slot
+	 */
+	private static long stateKey(long lmContext, int lmContextOrder) {
+		return MurmurHash.hashOneLong(lmContext, 13) + lmContextOrder;
 	}
 
-	private static void fill(int[][] a, int val) {
-		for (int i = 0; i < a.length; i++) {
+	private static void fill(int[][] a, int until1, int val) {
+		for (int i = 0; i < until1; i++) {
 			Arrays.fill(a[i], val);
 		}
 	}
@@ -376,4 +479,241 @@ public class BeamDecoder implements Decoder
 		}
 	}
 
+	/**
+	 * Chart of one decoder, reused from sentence to sentence: row i holds the
+	 * states which have consumed the first i foreign words.
+	 */
+	private static class Chart
+	{
+		double[][] scoreChart = new double[0][];
+
+		long[][] lmContexts = new long[0][];
+
+		int[][] lmContextOrders = new int[0][];
+
+		int[][] transBackpointers = new int[0][];
+
+		int[][] prevStateBackpointers = new int[0][];
+
+		int[][] startBackpointers = new int[0][];
+
+		IntPriorityQueue[] beams = new IntPriorityQueue[0];
+
+		RecombinationTable[] tables = new RecombinationTable[0];
+
+		// for cube pruning: the states of row i, best first
+		int[][] sortedStates = new int[0][];
+
+		int[] numSortedStates = new int[0];
+
+		final CandidateQueue candidates = new CandidateQueue();
+
+		/**
+		 * Grows the chart to at least numRows rows of arraySize states. Rows
+		 * are not cleared.
+		 */
+		void ensureCapacity(int numRows, int arraySize) {
+			final int oldRows = scoreChart.length;
+			if (numRows <= oldRows) return;
+			final int newRows = Math.max(numRows, 2 * oldRows);
+			scoreChart = Arrays.copyOf(scoreChart, newRows);
+			lmContexts = Arrays.copyOf(lmContexts, newRows);
+			lmContextOrders = Arrays.copyOf(lmContextOrders, newRows);
+			transBackpointers = Arrays.copyOf(transBackpointers, newRows);
+			prevStateBackpointers = Arrays.copyOf(prevStateBackpointers, newRows);
+			startBackpointers = Arrays.copyOf(startBackpointers, newRows);
+			beams = Arrays.copyOf(beams, newRows);
+			tables = Arrays.copyOf(tables, newRows);
+			sortedStates = Arrays.copyOf(sortedStates, newRows);
+			numSortedStates = Arrays.copyOf(numSortedStates, newRows);
+			for (int i = oldRows; i < newRows; ++i) {
+				scoreChart[i] = new double[arraySize];
+				lmContexts[i] = new long[arraySize];
+				lmContextOrders[i] = new int[arraySize];
+				transBackpointers[i] = new int[arraySize];
+				prevStateBackpointers[i] = new int[arraySize];
+				startBackpointers[i] = new int[arraySize];
+				beams[i] = new IntPriorityQueue(arraySize, arraySize);
+				tables[i] = new RecombinationTable(arraySize);
+				sortedStates[i] = new int[arraySize];
+			}
+		}
+	}
+
+	/**
+	 * Map from LM state to state index for one row of the chart, by open
+	 * addressing (linear probing) over stateKey(); a slot matches when its key
+	 * does and the (context, order) stored at its state index in the row is the
+	 * one looked up. Also hands out the state indices of the row: fresh ones
+	 * until all numStates are used, then the one last removed, which is free
+	 * since a beam drops a state whenever it goes over k.
+	 */
+	private static class RecombinationTable
+	{
+		private final long[] keys;
+
+		// state index of each slot, -1 if free
+		private final int[] states;
+
+		private final int mask;
+
+		private final int numStates;
+
+		private int nextState;
+
+		private int freeState;
+
+		RecombinationTable(int numStates) {
+			this.numStates = numStates;
+			final int numSlots = Integer.highestOneBit(Math.max(1, 2 * numStates - 1)) << 1;
+			keys = new long[numSlots];
+			states = new int[numSlots];
+			mask = numSlots - 1;
+			Arrays.fill(states, -1);
+		}
+
+		void clear() {
+			if (nextState > 0) Arrays.fill(states, -1);
+			nextState = 0;
+			freeState = -1;
+		}
+
+		/**
+		 * @return the state index of (lmContext, lmContextOrder), or -1
+		 */
+		int find(long key, long lmContext, int lmContextOrder, long[] lmContexts, int[] lmContextOrders) {
+			for (int slot = (int) key & mask;; slot = (slot + 1) & mask) {
+				final int state = states[slot];
+				if (state < 0) return -1;
+				if (keys[slot] == key && lmContexts[state] == lmContext && lmContextOrders[state] == lmContextOrder) return state;
+			}
+		}
+
+		/**
+		 * Takes a free state index for a key which is not in the table
+		 */
+		int add(long key) {
+			final int state;
+			if (nextState < numStates) {
+				state = nextState++;
+			} else {
+				assert freeState >= 0;
+				state = freeState;
+				freeState = -1;
+			}
+			int slot = (int) key & mask;
+			while (states[slot] >= 0)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+			states[slot] = state;
+			return state;
+		}
+
+		/**
+		 * Frees a state index, moving back the slots after it which would not
+		 * be found any more
+		 */
+		void remove(long key, int state) {
+			int slot = (int) key & mask;
+			while (states[slot] != state)
+				slot = (slot + 1) & mask;
+			freeState = state;
+			int next = (slot + 1) & mask;
+			while (states[next] >= 0) {
+				final int home = (int) keys[next] & mask;
+				// the entry at next may fill the hole at slot if its probe sequence passes slot
+				if (((next - home) & mask) >= ((next - slot) & mask)) {
+					keys[slot] = keys[next];
+					states[slot] = states[next];
+					slot = next;
+				}
+				next = (next + 1) & mask;
+			}
+			states[slot] = -1;
+		}
+	}
+
+	/**
+	 * Max-heap of the (state, translation) pairs of cube pruning, on their
+	 * score: the pair is the rank of the state in sortedStates[start] and the
+	 * index of the translation, and the LM state after it is kept so it is not
+	 * computed again when the pair is popped.
+	 */
+	private static class CandidateQueue
+	{
+		double[] scores = new double[64];
+
+		int[] starts = new int[64];
+
+		int[] ranks = new int[64];
+
+		int[] transIndices = new int[64];
+
+		long[] lmContexts = new long[64];
+
+		int[] lmContextOrders = new int[64];
+
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		void push(double score, int start, int rank, int transIndex, long lmContext, int lmContextOrder) {
+			if (size == scores.length) {
+				final int newLength = 2 * size;
+				scores = Arrays.copyOf(scores, newLength);
+				starts = Arrays.copyOf(starts, newLength);
+				ranks = Arrays.copyOf(ranks, newLength);
+				transIndices = Arrays.copyOf(transIndices, newLength);
+				lmContexts = Arrays.copyOf(lmContexts, newLength);
+				lmContextOrders = Arrays.copyOf(lmContextOrders, newLength);
+			}
+			int pos = size++;
+			while (pos > 0) {
+				final int parent = (pos - 1) / 2;
+				if (scores[parent] >= score) break;
+				move(parent, pos);
+				pos = parent;
+			}
+			set(pos, score, start, rank, transIndex, lmContext, lmContextOrder);
+		}
+
+		/**
+		 * Removes the best pair, at index 0
+		 */
+		void pop() {
+			final int last = --size;
+			if (last == 0) return;
+			final double score = scores[last];
+			int pos = 0;
+			while (true) {
+				int child = 2 * pos + 1;
+				if (child >= last) break;
+				if (child + 1 < last && scores[child + 1] > scores[child]) child++;
+				if (scores[child] <= score) break;
+				move(child, pos);
+				pos = child;
+			}
+			set(pos, score, starts[last], ranks[last], transIndices[last], lmContexts[last], lmContextOrders[last]);
+		}
+
+		private void move(int from, int to) {
+			set(to, scores[from], starts[from], ranks[from], transIndices[from], lmContexts[from], lmContextOrders[from]);
+		}
+
+		private void set(int pos, double score, int start, int rank, int transIndex, long lmContext, int lmContextOrder) {
+			scores[pos] = score;
+			starts[pos] = start;
+			ranks[pos] = rank;
+			transIndices[pos] = transIndex;
+			lmContexts[pos] = lmContext;
+			lmContextOrders[pos] = lmContextOrder;
+		}
+	}
+
 }
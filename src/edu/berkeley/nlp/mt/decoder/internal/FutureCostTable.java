@@ -0,0 +1,86 @@
+package edu.berkeley.nlp.mt.decoder.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.mt.phrasetable.PhraseTableForSentence;
+import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
+
+/**
+ * Estimated score of translating the foreign spans of one sentence, used to compare hypotheses which have not
+ * covered the same words. A span is worth its best translation scored alone (phrase score plus the LM score of the
+ * english words without context), or the best split of it into two spans. The table is kept from sentence to
+ * sentence: compute() fills it for the next one.
+ */
+class FutureCostTable
+{
+	// costs[start][end], for start < end <= length
+	private double[][] costs = new double[0][];
+
+	private int length;
+
+	private final LmContextInfo lmContext = new LmContextInfo();
+
+	public void compute(PhraseTableForSentence tmState, int length, ContextEncodedNgramLanguageModel lm) {
+		this.length = length;
+		if (costs.length < length + 1) costs = new double[length + 1][length + 1];
+		for (int start = 0; start < length; ++start) {
+			Arrays.fill(costs[start], 0, length + 1, Double.NEGATIVE_INFINITY);
+			for (int end = start + 1; end <= Math.min(length, start + tmState.getMaxPhraseLength()); ++end) {
+				List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
+				if (translations == null) continue;
+				for (ScoredPhrasePairForSentence trans : translations) {
+					costs[start][end] = Math.max(costs[start][end], trans.score + scoreLm(trans.english.indexedEnglish, lm));
+				}
+			}
+		}
+		for (int spanLength = 2; spanLength <= length; ++spanLength) {
+			for (int start = 0; start + spanLength <= length; ++start) {
+				final int end = start + spanLength;
+				double best = costs[start][end];
+				for (int split = start + 1; split < end; ++split) {
+					best = Math.max(best, costs[start][split] + costs[split][end]);
+				}
+				costs[start][end] = best;
+			}
+		}
+	}
+
+	public double get(int start, int end) {
+		return costs[start][end];
+	}
+
+	/**
+	 * Sum of the costs of the uncovered spans of a coverage, see ReorderingBeamDecoder: every word before firstGap
+	 * is covered, and bit i of window tells if word firstGap + i is.
+	 */
+	public double estimate(int firstGap, long window) {
+		double estimate = 0.0;
+		int pos = firstGap;
+		long bits = window;
+		while (pos < length) {
+			// bits holds the coverage from pos on, and word pos is not covered
+			int gap = Long.numberOfTrailingZeros(bits);
+			int gapEnd = gap == 64 ? length : Math.min(length, pos + gap);
+			estimate += costs[pos][gapEnd];
+			if (gapEnd == length) break;
+			bits >>>= gap;
+			int covered = Long.numberOfTrailingZeros(~bits);
+			pos = gapEnd + covered;
+			bits = covered == 64 ? 0L : bits >>> covered;
+		}
+		return estimate;
+	}
+
+	private double scoreLm(int[] words, ContextEncodedNgramLanguageModel lm) {
+		lmContext.context = 0L;
+		lmContext.order = -1;
+		double score = 0.0;
+		for (int word : words) {
+			score += lm.getLogProb(lmContext.context, lmContext.order, word, lmContext);
+		}
+		return score;
+	}
+}
@@ -0,0 +1,293 @@
+package edu.berkeley.nlp.mt.decoder.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.langmodel.NgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedLanguageModelAdaptor;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel;
+import edu.berkeley.nlp.langmodel.impl.ContextEncodedNgramLanguageModel.LmContextInfo;
+import edu.berkeley.nlp.mt.decoder.Decoder;
+import edu.berkeley.nlp.mt.decoder.DecoderFactory;
+import edu.berkeley.nlp.mt.decoder.DistortionModel;
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
+import edu.berkeley.nlp.mt.phrasetable.PhraseTable;
+import edu.berkeley.nlp.mt.phrasetable.PhraseTableForSentence;
+import edu.berkeley.nlp.mt.phrasetable.ScoredPhrasePairForSentence;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Beam decoder which may translate the foreign phrases out of order, within the distortion limit of the
+ * DistortionModel. Hypotheses go to one stack per number of foreign words covered; a stack recombines hypotheses
+ * with the same coverage, end of the last phrase and LM state, and keeps at most beamSize of them, none more than
+ * threshold below its best. Hypotheses are compared on their score plus the FutureCostTable estimate of the words
+ * they have not covered yet.
+ *
+ * The coverage is packed in a long: every word before firstGap is covered and bit i of window tells if word firstGap
+ * + i is. A phrase may start at most limit words after firstGap, so the window only holds the words around the
+ * current position and sentences can be of any length; phrases ending 64 or more words after firstGap are not
+ * tried. A phrase which leaves a gap behind must also end within limit words of that gap, so the decoder can still
+ * jump back to it.
+ *
+ * As with BeamDecoder, the stacks are kept from sentence to sentence, so a decoder must not be shared between
+ * threads.
+ */
+public class ReorderingBeamDecoder implements Decoder
+{
+
+	public static class ReorderingBeamDecoderFactory implements DecoderFactory
+	{
+
+		public Decoder newDecoder(PhraseTable tm, NgramLanguageModel lm, DistortionModel dm) {
+			return new ReorderingBeamDecoder(lm, tm, dm, EnglishWordIndexer.getIndexer(), DEFAULT_BEAM_SIZE, DEFAULT_THRESHOLD);
+		}
+
+	}
+
+	public static final int DEFAULT_BEAM_SIZE = 100;
+
+	public static final double DEFAULT_THRESHOLD = 10.0;
+
+	private final StringIndexer lexIndexer;
+
+	private final ContextEncodedNgramLanguageModel contextLm;
+
+	private final PhraseTable tm;
+
+	private final DistortionModel dm;
+
+	private final int beamSize;
+
+	private final double threshold;
+
+	private final FutureCostTable futureCosts = new FutureCostTable();
+
+	private Stack[] stacks = new Stack[0];
+
+	public ReorderingBeamDecoder(NgramLanguageModel lm, PhraseTable tm, DistortionModel dm, StringIndexer wordIndexer, int beamSize, double threshold) {
+		this.tm = tm;
+		this.dm = dm;
+		this.lexIndexer = wordIndexer;
+		this.contextLm = ContextEncodedLanguageModelAdaptor.getContextEncodedLm(lm, wordIndexer);
+		this.beamSize = beamSize;
+		this.threshold = threshold;
+	}
+
+	public List<ScoredPhrasePairForSentence> decode(List<String> sentence) {
+		final int length = sentence.size();
+		final int limit = dm.getDistortionLimit();
+		final PhraseTableForSentence tmState = tm.initialize(sentence);
+		final int maxPhraseLength = tmState.getMaxPhraseLength();
+		futureCosts.compute(tmState, length, contextLm);
+		if (stacks.length < length + 1) {
+			final int oldLength = stacks.length;
+			stacks = Arrays.copyOf(stacks, Math.max(length + 1, 2 * oldLength));
+			for (int i = oldLength; i < stacks.length; ++i)
+				stacks[i] = new Stack();
+		}
+		for (int i = 0; i <= length; ++i)
+			stacks[i].clear();
+
+		final int stopWord = lexIndexer.indexOf(NgramLanguageModel.STOP);
+		final LmContextInfo lmContext = new LmContextInfo();
+		// the probability of the start symbol itself is not part of the score
+		contextLm.getLogProb(0L, -1, lexIndexer.indexOf(NgramLanguageModel.START), lmContext);
+		stacks[0].add(0.0, length == 0 ? 0.0 : futureCosts.get(0, length), 0, 0L, 0, lmContext.context, lmContext.order, null, null, beamSize, threshold);
+
+		for (int numCovered = 0; numCovered < length; ++numCovered) {
+			final Stack stack = stacks[numCovered];
+			stack.prune(beamSize, threshold);
+			for (int h = 0; h < stack.size(); ++h) {
+				final Hypothesis hyp = stack.get(h);
+				final int firstGap = hyp.firstGap;
+				for (int start = firstGap; start < length && start - firstGap <= limit; ++start) {
+					if (isCovered(hyp, start)) continue;
+					final double distortionScore = dm.getDistortionScore(hyp.lastEnd, start);
+					if (distortionScore == Double.NEGATIVE_INFINITY) continue;
+					for (int end = start + 1; end <= Math.min(length, start + maxPhraseLength) && end - firstGap < 64; ++end) {
+						if (isCovered(hyp, end - 1)) break;
+						final List<ScoredPhrasePairForSentence> translations = tmState.getScoreSortedTranslationsForSpan(start, end);
+						if (translations == null) continue;
+						final long covered = hyp.window | (((1L << (end - firstGap)) - 1) & ~((1L << (start - firstGap)) - 1));
+						final int shift = Long.numberOfTrailingZeros(~covered);
+						final int newFirstGap = firstGap + shift;
+						final long newWindow = covered >>> shift;
+						final boolean isEnd = newFirstGap == length;
+						if (!isEnd && Math.abs(end - newFirstGap) > limit) continue;
+						final double futureCost = futureCosts.estimate(newFirstGap, newWindow);
+						final Stack nextStack = stacks[numCovered + end - start];
+						final double prevScore = hyp.score + distortionScore;
+						for (ScoredPhrasePairForSentence trans : translations) {
+							lmContext.context = hyp.lmContext;
+							lmContext.order = hyp.lmContextOrder;
+							final double score = prevScore + trans.score + scoreLm(trans.english.indexedEnglish, isEnd ? stopWord : -1, lmContext, contextLm);
+							nextStack.add(score, futureCost, newFirstGap, newWindow, end, lmContext.context, lmContext.order, hyp, trans, beamSize, threshold);
+						}
+					}
+				}
+			}
+		}
+
+		Hypothesis best = null;
+		final Stack last = stacks[length];
+		for (int h = 0; h < last.size(); ++h) {
+			if (best == null || last.get(h).score > best.score) best = last.get(h);
+		}
+		if (best == null || best.score == Double.NEGATIVE_INFINITY) {
+			throw new RuntimeException("Error in decoder: Language model probably returned NEGATIVE_INFINITY or NaN");
+		}
+		List<ScoredPhrasePairForSentence> translation = new ArrayList<ScoredPhrasePairForSentence>();
+		for (Hypothesis hyp = best; hyp.trans != null; hyp = hyp.prev)
+			translation.add(hyp.trans);
+		Collections.reverse(translation);
+		return translation;
+	}
+
+	private static boolean isCovered(Hypothesis hyp, int pos) {
+		final int offset = pos - hyp.firstGap;
+		return offset < 0 || (offset < 64 && (hyp.window & (1L << offset)) != 0);
+	}
+
+	/**
+	 * Scores the target words (then stopWord, if not negative) against the LM state in lmContext, which is advanced
+	 * in place, as in BeamDecoder.
+	 */
+	private static double scoreLm(final int[] words, final int stopWord, final LmContextInfo lmContext, final ContextEncodedNgramLanguageModel lm) {
+		double score = 0.0;
+		for (int word : words) {
+			score += lm.getLogProb(lmContext.context, lmContext.order, word, lmContext);
+		}
+		if (stopWord >= 0) score += lm.getLogProb(lmContext.context, lmContext.order, stopWord, lmContext);
+		return score;
+	}
+
+	private static final class Hypothesis
+	{
+		double score;
+
+		// estimate of the score of the words not covered yet
+		double futureCost;
+
+		int firstGap;
+
+		long window;
+
+		// foreign index after the last phrase translated
+		int lastEnd;
+
+		long lmContext;
+
+		int lmContextOrder;
+
+		Hypothesis prev;
+
+		ScoredPhrasePairForSentence trans;
+
+		boolean sameState(int firstGap, long window, int lastEnd, long lmContext, int lmContextOrder) {
+			return this.firstGap == firstGap && this.window == window && this.lastEnd == lastEnd && this.lmContext == lmContext
+				&& this.lmContextOrder == lmContextOrder;
+		}
+	}
+
+	private static final Comparator<Hypothesis> BEST_FIRST = new Comparator<Hypothesis>()
+	{
+		public int compare(Hypothesis a, Hypothesis b) {
+			return Double.compare(b.score + b.futureCost, a.score + a.futureCost);
+		}
+	};
+
+	/**
+	 * Hypotheses covering the same number of foreign words, with an open addressing table (linear probing) from their
+	 * state to their index in hyps for recombination. Pruning is lazy: the stack is cut back to beamSize once it
+	 * holds twice as many hypotheses, and for good before it is expanded.
+	 */
+	private static final class Stack
+	{
+		private final List<Hypothesis> hyps = new ArrayList<Hypothesis>();
+
+		private int[] slots = new int[64];
+
+		private double best;
+
+		void clear() {
+			hyps.clear();
+			Arrays.fill(slots, -1);
+			best = Double.NEGATIVE_INFINITY;
+		}
+
+		int size() {
+			return hyps.size();
+		}
+
+		Hypothesis get(int i) {
+			return hyps.get(i);
+		}
+
+		void add(double score, double futureCost, int firstGap, long window, int lastEnd, long lmContext, int lmContextOrder, Hypothesis prev,
+			ScoredPhrasePairForSentence trans, int beamSize, double threshold) {
+			final double total = score + futureCost;
+			if (total < best - threshold || Double.isNaN(total)) return;
+			final int slot = findSlot(firstGap, window, lastEnd, lmContext, lmContextOrder);
+			Hypothesis hyp;
+			if (slots[slot] >= 0) {
+				hyp = hyps.get(slots[slot]);
+				if (hyp.score >= score) return;
+			} else {
+				hyp = new Hypothesis();
+				slots[slot] = hyps.size();
+				hyps.add(hyp);
+			}
+			hyp.score = score;
+			hyp.futureCost = futureCost;
+			hyp.firstGap = firstGap;
+			hyp.window = window;
+			hyp.lastEnd = lastEnd;
+			hyp.lmContext = lmContext;
+			hyp.lmContextOrder = lmContextOrder;
+			hyp.prev = prev;
+			hyp.trans = trans;
+			best = Math.max(best, total);
+			if (hyps.size() > 2 * beamSize) {
+				prune(beamSize, threshold);
+			} else if (2 * hyps.size() > slots.length) {
+				slots = new int[2 * slots.length];
+				reindex();
+			}
+		}
+
+		/**
+		 * Keeps the beamSize best hypotheses within threshold of the best one
+		 */
+		void prune(int beamSize, double threshold) {
+			Collections.sort(hyps, BEST_FIRST);
+			int keep = Math.min(beamSize, hyps.size());
+			while (keep > 0 && hyps.get(keep - 1).score + hyps.get(keep - 1).futureCost < best - threshold)
+				keep--;
+			hyps.subList(keep, hyps.size()).clear();
+			reindex();
+		}
+
+		private void reindex() {
+			Arrays.fill(slots, -1);
+			for (int i = 0; i < hyps.size(); ++i) {
+				Hypothesis hyp = hyps.get(i);
+				slots[findSlot(hyp.firstGap, hyp.window, hyp.lastEnd, hyp.lmContext, hyp.lmContextOrder)] = i;
+			}
+		}
+
+		private int findSlot(int firstGap, long window, int lastEnd, long lmContext, int lmContextOrder) {
+			final long hash = MurmurHash.hashOneLong(window * 31 + lmContext, 13) + (((long) firstGap << 40) ^ ((long) lastEnd << 20) ^ lmContextOrder);
+			int slot = (int) ((hash & Long.MAX_VALUE) % slots.length);
+			while (slots[slot] >= 0 && !hyps.get(slots[slot]).sameState(firstGap, window, lastEnd, lmContext, lmContextOrder)) {
+				slot++;
+				if (slot == slots.length) slot = 0;
+			}
+			return slot;
+		}
+	}
+
+}
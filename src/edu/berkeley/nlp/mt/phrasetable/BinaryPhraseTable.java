@@ -0,0 +1,304 @@
+package edu.berkeley.nlp.mt.phrasetable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+import edu.berkeley.nlp.util.StringIndexer;
+
+/**
+ * Compiled phrase table, memory-mapped from a file written by write(). Only the two vocabularies are read into
+ * memory on load; a source phrase is found by binary search in the mapped source index and only its own
+ * translations are decoded, so loading a table takes as long as reading its vocabularies and several decoders on
+ * one machine share one page-cached copy.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header    magic, version, maxPhraseSize, maxNumTranslations, numSources, targetBytes, minScore, maxScore
+ *           (doubles), then the foreign and english vocabularies (count, then DataOutput.writeUTF words)
+ *           zero padded to a multiple of 4
+ * sources   numSources + 1 records of maxPhraseSize foreign ids (padded with -1) and the offset of the first
+ *           translation in targets; sorted by ids, the last record only holds the end offset of targets
+ * targets   for every source, its translations best first: score (unsigned short), length (byte), english ids
+ * </pre>
+ * Scores are the feature scores already weighted, quantized to 16 bits over [minScore, maxScore]: the decoded
+ * score is off by at most (maxScore - minScore) / 131070 and the order of the translations is kept.
+ * Mapped buffers are only read with absolute gets, so lookups are thread-safe.
+ */
+public class BinaryPhraseTable
+{
+	private static final int MAGIC = 0x50485442; // "PHTB"
+
+	private static final int VERSION = 1;
+
+	private static final int SCORE_LEVELS = 0xffff;
+
+	private final int maxPhraseSize;
+
+	private final int maxNumTranslations;
+
+	private final int numSources;
+
+	private final double minScore;
+
+	private final double scoreStep;
+
+	private final Map<String, Integer> foreignIds;
+
+	// file english id -> EnglishWordIndexer id
+	private final int[] englishIds;
+
+	private final ByteBuffer sources;
+
+	private final ByteBuffer targets;
+
+	private BinaryPhraseTable(int maxPhraseSize, int maxNumTranslations, int numSources, double minScore, double maxScore,
+		Map<String, Integer> foreignIds, int[] englishIds, ByteBuffer sources, ByteBuffer targets) {
+		this.maxPhraseSize = maxPhraseSize;
+		this.maxNumTranslations = maxNumTranslations;
+		this.numSources = numSources;
+		this.minScore = minScore;
+		this.scoreStep = (maxScore - minScore) / SCORE_LEVELS;
+		this.foreignIds = foreignIds;
+		this.englishIds = englishIds;
+		this.sources = sources;
+		this.targets = targets;
+	}
+
+	public int getMaxPhraseSize() {
+		return maxPhraseSize;
+	}
+
+	public int getMaxNumTranslations() {
+		return maxNumTranslations;
+	}
+
+	/**
+	 * @return translations of the foreign phrase, best first, or null if it is not in the table
+	 */
+	public List<ScoredPhrase> getTranslationsFor(List<String> foreign) {
+		if (foreign.size() > maxPhraseSize) return null;
+		int[] ids = new int[foreign.size()];
+		for (int i = 0; i < ids.length; ++i) {
+			Integer id = foreignIds.get(foreign.get(i));
+			if (id == null) return null;
+			ids[i] = id;
+		}
+		int source = find(ids);
+		if (source < 0) return null;
+		int pos = targetOffset(source);
+		int end = targetOffset(source + 1);
+		List<ScoredPhrase> translations = new ArrayList<ScoredPhrase>();
+		while (pos < end) {
+			double score = minScore + (targets.getShort(pos) & 0xffff) * scoreStep;
+			int length = targets.get(pos + 2);
+			pos += 3;
+			int[] english = new int[length];
+			for (int i = 0; i < length; ++i, pos += 4)
+				english[i] = englishIds[targets.getInt(pos)];
+			translations.add(new ScoredPhrase(new EnglishPhrase(english), score));
+		}
+		return translations;
+	}
+
+	private int recordBytes() {
+		return 4 * (maxPhraseSize + 1);
+	}
+
+	private int targetOffset(int source) {
+		return sources.getInt(source * recordBytes() + 4 * maxPhraseSize);
+	}
+
+	/**
+	 * Binary search of the source index
+	 */
+	private int find(int[] ids) {
+		int lo = 0;
+		int hi = numSources - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareSource(mid, ids);
+			if (cmp == 0) return mid;
+			if (cmp < 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return -1;
+	}
+
+	private int compareSource(int source, int[] ids) {
+		int base = source * recordBytes();
+		for (int i = 0; i < maxPhraseSize; ++i) {
+			int id = sources.getInt(base + 4 * i);
+			int other = i < ids.length ? ids[i] : -1;
+			if (id != other) return id < other ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compile the translations of table, at most maxNumTranslations per source phrase of at most maxPhraseSize
+	 * words, and write them to file. The vocabularies are numbered in the order of the sorted source phrases, so
+	 * the same table always gives the same file.
+	 */
+	public static void write(Map<List<String>, List<ScoredPhrase>> table, int maxPhraseSize, int maxNumTranslations, File file) throws IOException {
+		StringIndexer foreignVocab = new StringIndexer();
+		StringIndexer englishVocab = new StringIndexer();
+		final List<int[]> sourceIds = new ArrayList<int[]>();
+		List<List<ScoredPhrase>> translations = new ArrayList<List<ScoredPhrase>>();
+		double minScore = Double.POSITIVE_INFINITY;
+		double maxScore = Double.NEGATIVE_INFINITY;
+		for (Map.Entry<List<String>, List<ScoredPhrase>> entry : PhraseTable.sortedEntries(table)) {
+			if (entry.getKey().size() > maxPhraseSize || entry.getValue().isEmpty()) continue;
+			int[] ids = new int[maxPhraseSize];
+			Arrays.fill(ids, -1);
+			for (int i = 0; i < entry.getKey().size(); ++i)
+				ids[i] = foreignVocab.addAndGetIndex(entry.getKey().get(i));
+			List<ScoredPhrase> kept = entry.getValue().subList(0, Math.min(maxNumTranslations, entry.getValue().size()));
+			for (ScoredPhrase t : kept) {
+				if (Double.isNaN(t.score) || Double.isInfinite(t.score)) throw new IllegalArgumentException("Non-finite score in " + t);
+				if (t.english.indexedEnglish.length > Byte.MAX_VALUE) throw new IllegalArgumentException("English phrase too long in " + t);
+				minScore = Math.min(minScore, t.score);
+				maxScore = Math.max(maxScore, t.score);
+			}
+			sourceIds.add(ids);
+			translations.add(kept);
+		}
+		if (sourceIds.isEmpty()) minScore = maxScore = 0;
+
+		Integer[] order = new Integer[sourceIds.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b) {
+				int[] x = sourceIds.get(a);
+				int[] y = sourceIds.get(b);
+				for (int i = 0; i < x.length; ++i) {
+					if (x[i] != y[i]) return x[i] < y[i] ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+
+		// targets first, to know the offsets
+		ByteArrayOutputStream targetBytes = new ByteArrayOutputStream();
+		DataOutputStream targets = new DataOutputStream(targetBytes);
+		int[] offsets = new int[order.length + 1];
+		double scoreStep = (maxScore - minScore) / SCORE_LEVELS;
+		for (int s = 0; s < order.length; ++s) {
+			offsets[s] = targets.size();
+			for (ScoredPhrase t : translations.get(order[s])) {
+				targets.writeShort(scoreStep == 0 ? 0 : (int) Math.round((t.score - minScore) / scoreStep));
+				targets.writeByte(t.english.indexedEnglish.length);
+				for (String word : t.english.getTarget())
+					targets.writeInt(englishVocab.addAndGetIndex(word));
+			}
+			if (targets.size() == Integer.MAX_VALUE) throw new IOException("Phrase table too large for " + file); // size() saturates
+		}
+		offsets[order.length] = targets.size();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeInt(MAGIC);
+			header.writeInt(VERSION);
+			header.writeInt(maxPhraseSize);
+			header.writeInt(maxNumTranslations);
+			header.writeInt(order.length);
+			header.writeInt(targets.size());
+			header.writeDouble(minScore);
+			header.writeDouble(maxScore);
+			writeVocab(foreignVocab, header);
+			writeVocab(englishVocab, header);
+			while (header.size() % 4 != 0)
+				header.writeByte(0);
+			headerBytes.writeTo(out);
+			for (int s = 0; s <= order.length; ++s) {
+				int[] ids = s < order.length ? sourceIds.get(order[s]) : null;
+				for (int i = 0; i < maxPhraseSize; ++i)
+					out.writeInt(ids == null ? -1 : ids[i]);
+				out.writeInt(offsets[s]);
+			}
+			targetBytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeVocab(StringIndexer vocab, DataOutputStream out) throws IOException {
+		out.writeInt(vocab.size());
+		for (int i = 0; i < vocab.size(); ++i)
+			out.writeUTF(vocab.get(i));
+	}
+
+	/**
+	 * Map a table written by write()
+	 */
+	public static BinaryPhraseTable map(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		int maxPhraseSize;
+		int maxNumTranslations;
+		int numSources;
+		int targetBytes;
+		double minScore;
+		double maxScore;
+		Map<String, Integer> foreignIds;
+		int[] englishIds;
+		long headerBytes;
+		try {
+			if (in.readInt() != MAGIC) throw new IOException(file + " is not a binary phrase table");
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported phrase table version " + version + " in " + file);
+			maxPhraseSize = in.readInt();
+			maxNumTranslations = in.readInt();
+			numSources = in.readInt();
+			targetBytes = in.readInt();
+			minScore = in.readDouble();
+			maxScore = in.readDouble();
+			int numForeign = in.readInt();
+			foreignIds = new HashMap<String, Integer>(2 * numForeign);
+			for (int i = 0; i < numForeign; ++i)
+				foreignIds.put(in.readUTF(), i);
+			int numEnglish = in.readInt();
+			englishIds = new int[numEnglish];
+			StringIndexer englishIndexer = EnglishWordIndexer.getIndexer();
+			for (int i = 0; i < numEnglish; ++i)
+				englishIds[i] = englishIndexer.addAndGetIndex(in.readUTF());
+			headerBytes = file.length() - (long) (numSources + 1) * 4 * (maxPhraseSize + 1) - targetBytes;
+		} finally {
+			in.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long sourceBytes = (long) (numSources + 1) * 4 * (maxPhraseSize + 1);
+			if (sourceBytes > Integer.MAX_VALUE) throw new IOException("Source index too large in " + file);
+			ByteBuffer sources = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes, sourceBytes);
+			ByteBuffer targets = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes + sourceBytes, targetBytes);
+			return new BinaryPhraseTable(maxPhraseSize, maxNumTranslations, numSources, minScore, maxScore, Collections.unmodifiableMap(foreignIds),
+				englishIds, sources, targets);
+		} finally {
+			raf.close(); // the mappings stay valid
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package edu.berkeley.nlp.mt.phrasetable;
+
+import java.util.Arrays;
+
+import edu.berkeley.nlp.assignments.align.student.util.LongIntOpenHashMap;
+import edu.berkeley.nlp.mt.decoder.MurmurHash;
+
+/**
+ * Counts of phrase pairs over int ids, with the marginal counts of both sides, in primitive arrays only.
+ *
+ * Every foreign phrase is a node of a trie of foreign words, every english phrase a node of a trie of english
+ * words; a node holds the marginal count of its phrase and shared prefixes are stored once. A phrase pair is the
+ * pair of its two nodes, kept with its count in a LongIntOpenHashMap keyed by (foreign node, english node).
+ * A distinct pair costs a slot of that table and at most one node per side, where a HashMap<IntPhrasePair,
+ * Integer> costs two int[], a key, a boxed count, a map node and the wrapper keys of the marginal maps.
+ *
+ * forEach() visits the pairs ordered by foreign phrase then english phrase (lexicographically by word id), so
+ * anything built from the counts does not depend on the order they were added in. Not thread-safe.
+ */
+public class PhrasePairCounts
+{
+	public interface PairProcedure
+	{
+		/**
+		 * The arrays are reused from call to call, only their first foreignLength / englishLength ids are valid
+		 */
+		void apply(int[] foreign, int foreignLength, int[] english, int englishLength, int count, int foreignCount, int englishCount);
+	}
+
+	private final PhraseTrie foreignTrie = new PhraseTrie();
+
+	private final PhraseTrie englishTrie = new PhraseTrie();
+
+	// pairs: key (foreign node << 32 | english node) -> count
+	private final LongIntOpenHashMap pairs = new LongIntOpenHashMap(1024);
+
+	private long totalCount = 0;
+
+	public void increment(int[] foreign, int[] english, int count) {
+		increment(foreign, 0, foreign.length, english, 0, english.length, count);
+	}
+
+	/**
+	 * Add count to the pair of foreign[frStart, frEnd) and english[enStart, enEnd), and to both marginals
+	 */
+	public void increment(int[] foreign, int frStart, int frEnd, int[] english, int enStart, int enEnd, int count) {
+		int f = foreignTrie.addPhrase(foreign, frStart, frEnd);
+		int e = englishTrie.addPhrase(english, enStart, enEnd);
+		addPair(f, e, count);
+	}
+
+	private void addPair(int f, int e, int count) {
+		foreignTrie.counts[f] += count;
+		englishTrie.counts[e] += count;
+		pairs.addTo(pairKey(f, e), count);
+		totalCount += count;
+	}
+
+	/**
+	 * Add all counts of other, which is left unchanged
+	 */
+	public void addAll(PhrasePairCounts other) {
+		final int[] foreignNodes = foreignTrie.mapNodes(other.foreignTrie);
+		final int[] englishNodes = englishTrie.mapNodes(other.englishTrie);
+		other.pairs.forEach(new LongIntOpenHashMap.EntryProcedure()
+		{
+			public void apply(long key, int count) {
+				addPair(foreignNodes[foreignNode(key)], englishNodes[englishNode(key)], count);
+			}
+		});
+	}
+
+	public int getCount(int[] foreign, int[] english) {
+		int f = foreignTrie.findPhrase(foreign, 0, foreign.length);
+		int e = englishTrie.findPhrase(english, 0, english.length);
+		return f < 0 || e < 0 ? 0 : pairs.get(pairKey(f, e));
+	}
+
+	/**
+	 * @return number of pairs counted with this foreign side
+	 */
+	public int getForeignCount(int[] foreign) {
+		int f = foreignTrie.findPhrase(foreign, 0, foreign.length);
+		return f < 0 ? 0 : foreignTrie.counts[f];
+	}
+
+	/**
+	 * @return number of pairs counted with this english side
+	 */
+	public int getEnglishCount(int[] english) {
+		int e = englishTrie.findPhrase(english, 0, english.length);
+		return e < 0 ? 0 : englishTrie.counts[e];
+	}
+
+	/**
+	 * @return number of distinct phrase pairs
+	 */
+	public int size() {
+		return pairs.size();
+	}
+
+	/**
+	 * @return sum of all pair counts
+	 */
+	public long totalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Forget all counts, keeping the allocated arrays
+	 */
+	public void clear() {
+		foreignTrie.clear();
+		englishTrie.clear();
+		pairs.clear();
+		totalCount = 0;
+	}
+
+	/**
+	 * Visit every pair, ordered by foreign phrase then english phrase
+	 */
+	public void forEach(PairProcedure procedure) {
+		int[] foreignRanks = foreignTrie.lexicographicRanks();
+		int[] englishRanks = englishTrie.lexicographicRanks();
+		int[] foreignNodeOfRank = inverse(foreignRanks, foreignTrie.numNodes);
+		int[] englishNodeOfRank = inverse(englishRanks, englishTrie.numNodes);
+		long[] sorted = pairs.getKeys();
+		for (int i = 0; i < sorted.length; ++i)
+			sorted[i] = pairKey(foreignRanks[foreignNode(sorted[i])], englishRanks[englishNode(sorted[i])]);
+		Arrays.sort(sorted);
+
+		int[] foreign = new int[foreignTrie.maxDepth];
+		int[] english = new int[englishTrie.maxDepth];
+		int foreignLength = 0;
+		int lastForeign = -1;
+		for (long rankKey : sorted) {
+			int f = foreignNodeOfRank[foreignNode(rankKey)];
+			int e = englishNodeOfRank[englishNode(rankKey)];
+			if (f != lastForeign) {
+				foreignLength = foreignTrie.getPhrase(f, foreign);
+				lastForeign = f;
+			}
+			int englishLength = englishTrie.getPhrase(e, english);
+			procedure.apply(foreign, foreignLength, english, englishLength, pairs.get(pairKey(f, e)), foreignTrie.counts[f], englishTrie.counts[e]);
+		}
+	}
+
+	private static int[] inverse(int[] ranks, int numNodes) {
+		int[] inverse = new int[numNodes];
+		for (int node = 0; node < numNodes; ++node)
+			inverse[ranks[node]] = node;
+		return inverse;
+	}
+
+	private static long pairKey(int foreignNode, int englishNode) {
+		return ((long) foreignNode << 32) | englishNode;
+	}
+
+	private static int foreignNode(long key) {
+		return (int) (key >>> 32);
+	}
+
+	private static int englishNode(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Trie of phrases, node 0 is the empty phrase. Nodes are numbers into parallel arrays. The children of all nodes
+	 * are found through one open addressing table of node numbers hashed by (parent, word), which compares the
+	 * parent and word of a node instead of storing them as a key again.
+	 */
+	private static final class PhraseTrie
+	{
+		private static final int ROOT = 0;
+
+		private static final double MAX_LOAD = 0.7;
+
+		int[] parents = new int[1024];
+
+		int[] words = new int[1024];
+
+		int[] counts = new int[1024];
+
+		int numNodes = 1;
+
+		int maxDepth = 0;
+
+		// node numbers, 0 (the root, never a child) for an empty slot
+		private int[] childSlots = new int[2048];
+
+		int addPhrase(int[] phrase, int start, int end) {
+			int node = ROOT;
+			for (int i = start; i < end; ++i)
+				node = addChild(node, phrase[i]);
+			maxDepth = Math.max(maxDepth, end - start);
+			return node;
+		}
+
+		private int addChild(int parent, int word) {
+			int slot = childSlot(parent, word);
+			if (childSlots[slot] != ROOT) return childSlots[slot];
+			if (numNodes == parents.length) {
+				int newLength = 2 * parents.length;
+				parents = Arrays.copyOf(parents, newLength);
+				words = Arrays.copyOf(words, newLength);
+				counts = Arrays.copyOf(counts, newLength);
+			}
+			int child = numNodes++;
+			parents[child] = parent;
+			words[child] = word;
+			counts[child] = 0;
+			childSlots[slot] = child;
+			if (numNodes > MAX_LOAD * childSlots.length) rehash();
+			return child;
+		}
+
+		/**
+		 * @return slot of the child of parent for word, or the empty slot where it would go
+		 */
+		private int childSlot(int parent, int word) {
+			final int mask = childSlots.length - 1;
+			int pos = (int) MurmurHash.fmix64(((long) parent << 32) | word) & mask;
+			while (true) {
+				int node = childSlots[pos];
+				if (node == ROOT || (parents[node] == parent && words[node] == word)) return pos;
+				pos = (pos + 1) & mask;
+			}
+		}
+
+		private void rehash() {
+			childSlots = new int[2 * childSlots.length];
+			for (int node = 1; node < numNodes; ++node)
+				childSlots[childSlot(parents[node], words[node])] = node;
+		}
+
+		/**
+		 * @return node of the phrase, or -1 if it was never added
+		 */
+		int findPhrase(int[] phrase, int start, int end) {
+			int node = ROOT;
+			for (int i = start; i < end; ++i) {
+				node = childSlots[childSlot(node, phrase[i])];
+				if (node == ROOT) return -1;
+			}
+			return node;
+		}
+
+		/**
+		 * Write the phrase of node to buffer
+		 * @return its length
+		 */
+		int getPhrase(int node, int[] buffer) {
+			int length = 0;
+			for (int n = node; n != ROOT; n = parents[n])
+				length++;
+			for (int n = node, i = length - 1; n != ROOT; n = parents[n], --i)
+				buffer[i] = words[n];
+			return length;
+		}
+
+		/**
+		 * @return for every node of other, the node of the same phrase in this trie, added if needed
+		 */
+		int[] mapNodes(PhraseTrie other) {
+			int[] mapped = new int[other.numNodes];
+			mapped[ROOT] = ROOT;
+			// parents are created before their children, so a parent is always mapped first
+			for (int node = 1; node < other.numNodes; ++node)
+				mapped[node] = addChild(mapped[other.parents[node]], other.words[node]);
+			maxDepth = Math.max(maxDepth, other.maxDepth);
+			return mapped;
+		}
+
+		/**
+		 * @return rank of every node when the phrases are sorted lexicographically by word id (a prefix first)
+		 */
+		int[] lexicographicRanks() {
+			// children of every node sorted by word: sort by (parent, word) and cut by parent
+			long[] byParent = new long[numNodes - 1];
+			for (int node = 1; node < numNodes; ++node)
+				byParent[node - 1] = ((long) parents[node] << 32) | words[node];
+			Arrays.sort(byParent);
+			int[] firstChild = new int[numNodes + 1];
+			for (int node = 1; node < numNodes; ++node)
+				firstChild[parents[node] + 1]++;
+			for (int node = 0; node < numNodes; ++node)
+				firstChild[node + 1] += firstChild[node];
+			int[] sortedChildren = new int[numNodes - 1];
+			for (int i = 0; i < byParent.length; ++i)
+				sortedChildren[i] = childSlots[childSlot((int) (byParent[i] >>> 32), (int) byParent[i])];
+
+			// pre-order walk
+			int[] ranks = new int[numNodes];
+			int[] stack = new int[numNodes];
+			int top = 0;
+			int rank = 0;
+			stack[top++] = ROOT;
+			while (top > 0) {
+				int node = stack[--top];
+				ranks[node] = rank++;
+				for (int i = firstChild[node + 1] - 1; i >= firstChild[node]; --i)
+					stack[top++] = sortedChildren[i];
+			}
+			return ranks;
+		}
+
+		void clear() {
+			numNodes = 1;
+			maxDepth = 0;
+			counts[ROOT] = 0;
+			Arrays.fill(childSlots, ROOT);
+		}
+	}
+}
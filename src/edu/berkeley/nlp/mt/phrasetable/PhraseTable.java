@@ -1,7 +1,9 @@
 package edu.berkeley.nlp.mt.phrasetable;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -55,6 +57,9 @@ public class PhraseTable
 
 	Map<List<String>, List<ScoredPhrase>> table;
 
+	// set instead of table by readFromBinaryFile
+	private BinaryPhraseTable binaryTable;
+
 	public static final String[] MOSES_FEATURE_NAMES = new String[] { "P(f|e)", "lex(f|e)", "P(e|f)", "lex(e|f)", "bias", "wordBonus" };
 
 	private static final int P_F_GIVEN_E = 0;
@@ -118,7 +123,7 @@ public class PhraseTable
 		Logger.endTrack();
 	}
 
-	public void readFromCounts(HashMap<IntPhrasePair, Integer> counter, HashMap<IntArrayWrapper, Integer> eCounter, HashMap<IntArrayWrapper, Integer> fCounter,
+	public void readFromCounts(Map<IntPhrasePair, Integer> counter, Map<IntArrayWrapper, Integer> eCounter, Map<IntArrayWrapper, Integer> fCounter,
 		Counter<String> featureWeights, StringIndexer fWordIndexer) {
 
 		initStorage();
@@ -146,6 +151,52 @@ public class PhraseTable
 		Logger.endTrack();
 	}
 
+	/**
+	 * Same as above, reading the pairs and both marginals from a PhrasePairCounts
+	 */
+	public void readFromCounts(PhrasePairCounts counts, final Counter<String> featureWeights, final StringIndexer fWordIndexer) {
+
+		initStorage();
+		Logger.startTrack("Reading phrase table from counts");
+		counts.forEach(new PhrasePairCounts.PairProcedure()
+		{
+			int l = 0;
+
+			// pairs come grouped by foreign phrase, only convert it to strings once
+			int[] lastIndexed = null;
+
+			List<String> lastForeign = null;
+
+			public void apply(int[] foreign, int foreignLength, int[] english, int englishLength, int count, int foreignCount, int englishCount) {
+				l++;
+				if (l % 100000 == 0) System.out.println("Phrase " + l);
+				if (englishLength > maxPhraseSize) return;
+				if (foreignLength > maxPhraseSize) return;
+				float[] features = new float[6];
+				features[P_F_GIVEN_E] = -(float) Math.log(count / (double) englishCount);
+				features[P_E_GIVEN_F] = -(float) Math.log(count / (double) foreignCount);
+				ScoredPhrase t = new ScoredPhrase(new EnglishPhrase(Arrays.copyOf(english, englishLength)), getFeatureCounter(features).dotProduct(featureWeights));
+
+				if (lastIndexed == null || !samePhrase(lastIndexed, foreign, foreignLength)) {
+					lastIndexed = Arrays.copyOf(foreign, foreignLength);
+					lastForeign = Arrays.asList(toStringArray(lastIndexed, fWordIndexer));
+				}
+				addTranslation(t, lastForeign);
+			}
+		});
+
+		sortTranslations();
+		Logger.endTrack();
+	}
+
+	private static boolean samePhrase(int[] phrase, int[] other, int otherLength) {
+		if (phrase.length != otherLength) return false;
+		for (int i = 0; i < otherLength; ++i) {
+			if (phrase[i] != other[i]) return false;
+		}
+		return true;
+	}
+
 	private String[] toStringArray(int[] foreign, StringIndexer fWordIndexer) {
 		String[] stringArray = new String[foreign.length];
 		for (int i = 0; i < foreign.length; ++i) {
@@ -155,6 +206,7 @@ public class PhraseTable
 	}
 
 	List<ScoredPhrase> getTranslationsFor(List<String> subList) {
+		if (binaryTable != null) return binaryTable.getTranslationsFor(subList);
 		return table.get(subList);
 	}
 
@@ -203,12 +255,17 @@ public class PhraseTable
 
 	private void initStorage() {
 		table = new HashMap<List<String>, List<ScoredPhrase>>();
+		binaryTable = null;
 	}
 
 	private void addTranslation(ScoredPhrase t, List<String> foreign) {
 		CollectionUtils.addToValueList(table, foreign, t);
 	}
 
+	/**
+	 * Best score first, ties ordered by the english words, so that the order (and which translations are kept by
+	 * maxNumTranslations) does not depend on the word ids or on the order the translations were added in
+	 */
 	private void sortTranslations() {
 
 		for (Entry<List<String>, List<ScoredPhrase>> entry : table.entrySet()) {
@@ -217,17 +274,45 @@ public class PhraseTable
 			{
 
 				public int compare(ScoredPhrase o1, ScoredPhrase o2) {
-					return Double.compare(o2.score, o1.score);
+					int c = Double.compare(o2.score, o1.score);
+					return c != 0 ? c : compareWords(o1.getEnglish(), o2.getEnglish());
 				}
 			});
 		}
 	}
 
+	/**
+	 * Entries of table ordered by their foreign words, the order both writers use
+	 */
+	static List<Entry<List<String>, List<ScoredPhrase>>> sortedEntries(Map<List<String>, List<ScoredPhrase>> table) {
+		List<Entry<List<String>, List<ScoredPhrase>>> entries = new ArrayList<Entry<List<String>, List<ScoredPhrase>>>(table.entrySet());
+		Collections.sort(entries, new Comparator<Entry<List<String>, List<ScoredPhrase>>>()
+		{
+
+			public int compare(Entry<List<String>, List<ScoredPhrase>> o1, Entry<List<String>, List<ScoredPhrase>> o2) {
+				return compareWords(o1.getKey(), o2.getKey());
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Lexicographic order of phrases, word by word, a prefix first
+	 */
+	private static int compareWords(List<String> a, List<String> b) {
+		for (int i = 0; i < Math.min(a.size(), b.size()); ++i) {
+			int c = a.get(i).compareTo(b.get(i));
+			if (c != 0) return c;
+		}
+		return a.size() - b.size();
+	}
+
 	public void writeToFile(String phraseTableOut) {
+		if (binaryTable != null) throw new IllegalStateException("Table was read from a binary file");
 		Logger.startTrack("Writing phrase table to " + phraseTableOut);
 		PrintWriter out = IOUtils.openOutHard(phraseTableOut);
 		int k = 0;
-		for (Entry<List<String>, List<ScoredPhrase>> entry : table.entrySet()) {
+		for (Entry<List<String>, List<ScoredPhrase>> entry : sortedEntries(table)) {
 			if (k % 100000 == 0) System.out.println("Phrase " + k);
 			k++;
 			for (ScoredPhrase p : entry.getValue()) {
@@ -239,4 +324,38 @@ public class PhraseTable
 		Logger.endTrack();
 	}
 
+
+	/**
+	 * Compile the table to a binary file, see BinaryPhraseTable. The scores are stored already weighted, so the
+	 * feature weights cannot be changed without compiling again.
+	 */
+	public void writeToBinaryFile(String file) {
+		if (binaryTable != null) throw new IllegalStateException("Table was read from a binary file");
+		Logger.startTrack("Writing binary phrase table to " + file);
+		try {
+			BinaryPhraseTable.write(table, maxPhraseSize, maxNumTranslations, new File(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		Logger.endTrack();
+	}
+
+	/**
+	 * Memory-map a table written by writeToBinaryFile. Translations are decoded lazily, span by span, by
+	 * PhraseTableForSentence.
+	 */
+	public void readFromBinaryFile(String file) {
+		initStorage();
+		Logger.startTrack("Mapping binary phrase table " + file);
+		try {
+			binaryTable = BinaryPhraseTable.map(new File(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		table = null;
+		maxPhraseSize = Math.min(maxPhraseSize, binaryTable.getMaxPhraseSize());
+		maxNumTranslations = Math.min(maxNumTranslations, binaryTable.getMaxNumTranslations());
+		Logger.endTrack();
+	}
+
 }
\ No newline at end of file
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import edu.berkeley.nlp.langmodel.EnglishWordIndexer;
+
 /**
  * This class pre-computes the phrase pairs which apply to a given (foreign)
  * sentence. To access these phrase pairs, call
@@ -53,6 +55,21 @@ public class PhraseTableForSentence
 
 	}
 
+	/**
+	 * Adds the foreign words of sentence which will get a fake translation to
+	 * EnglishWordIndexer. The indexer is not thread-safe: once this was called
+	 * on one thread, the sentence can be initialized on any thread without
+	 * writing to it.
+	 * 
+	 * @param phraseTable
+	 * @param sentence
+	 */
+	public static void indexUnknownWords(PhraseTable phraseTable, List<String> sentence) {
+		for (int i = 0; i < sentence.size(); ++i) {
+			if (phraseTable.getTranslationsFor(sentence.subList(i, i + 1)) == null) EnglishWordIndexer.getIndexer().addAndGetIndex(sentence.get(i));
+		}
+	}
+
 	/**
 	 * Create a "fake" translations for foreign words we've never seen before.
 	 * 
@@ -221,6 +221,17 @@ public class IntPriorityQueue
 		heapifyDown(loc);
 	}
 
+	/**
+	 * Removes all entries. The arrays are kept, so a queue can be reused
+	 * without allocating.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; ++i) {
+			elementPositions[elements[i]] = -1;
+		}
+		size = 0;
+	}
+
 	/**
 	 * Returns a clone of this priority queue. Modifications to one will not
 	 * affect modifications to the other.